@@ -0,0 +1,67 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Checksum of one file, which is in the page cache after the first iteration
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChecksumBenchmark {
+
+	@Param({ FileHasher.MD5, FileHasher.SHA256, FileHasher.XXHASH64 })
+	public String hash;
+
+	@Param({ "4096", "1048576", "67108864" })
+	public long size;
+
+	private File folder;
+	private File file;
+
+	@Setup(Level.Trial)
+	public void generate() throws IOException {
+		folder = Files.createTempDirectory("mirror-checksum").toFile();
+		TreeGenerator generator = new TreeGenerator();
+		generator.setFiles(1);
+		generator.setFolders(1);
+		generator.setSizes(size, size);
+		generator.generate(folder);
+		file = folder.listFiles()[0];
+	}
+
+	@TearDown(Level.Trial)
+	public void delete() throws IOException {
+		TreeGenerator.delete(folder);
+	}
+
+	@Benchmark
+	public byte[] createChecksum() throws Exception {
+		return FileHasher.checksum(file, hash);
+	}
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import mirror.copy.ver1.Copier.FolderInfo;
+
+// Comparing the results of Step 1 and Step 2: the removed and inserted locations of every identifier (what
+// used to be tableR and tableI), the plan built from them, and FolderInfo.equals, which decides whether
+// anything changed at all
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DiffBenchmark {
+
+	@Param({ "10000", "100000" })
+	public int files;
+
+	@Param({ "0.1" })
+	public double duplicateRatio;
+
+	@Param({ "0.01", "0.2" })
+	public double moveRatio;
+
+	private File folder;
+	private FolderInfo before;
+	private FolderInfo unchanged;
+	private FolderInfo after;
+
+	@Setup(Level.Trial)
+	public void generate() throws Exception {
+		folder = Files.createTempDirectory("mirror-diff").toFile();
+		TreeGenerator generator = new TreeGenerator();
+		generator.setFiles(files);
+		generator.setFolders(files / 100);
+		generator.setSizes(16, 4096);
+		generator.setDuplicateRatio(duplicateRatio);
+		generator.setMoveRatio(moveRatio);
+		generator.generate(folder);
+		before = scan();
+		unchanged = scan();
+		generator.modify(folder);
+		after = scan();
+	}
+
+	private FolderInfo scan() throws Exception {
+		FolderInfo results = new FolderInfo(folder, Copier.CHECKSUMS, FileHasher.XXHASH64);
+		new SyncSession(null).scan(folder, results, true);
+		return results;
+	}
+
+	@TearDown(Level.Trial)
+	public void delete() throws IOException {
+		TreeGenerator.delete(folder);
+	}
+
+	@Benchmark
+	public List<DiffEngine.Change> compare() {
+		return DiffEngine.compare(before, after);
+	}
+
+	@Benchmark
+	public List<Operation> plan() {
+		return new Planner().plan(DiffEngine.compare(before, after), before, after);
+	}
+
+	@Benchmark
+	public boolean equalsUnchanged() {
+		return before.equals(unchanged);
+	}
+
+	@Benchmark
+	public boolean equalsChanged() {
+		return before.equals(after);
+	}
+}
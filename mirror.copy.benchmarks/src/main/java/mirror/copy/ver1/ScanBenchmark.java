@@ -0,0 +1,82 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import mirror.copy.ver1.Copier.FolderInfo;
+
+// Step 1 of a generated folder, i.e. doStep1 with one thread or TreeScanner with more
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ScanBenchmark {
+
+	@Param({ Copier.CHECKSUMS, Copier.DATE_AND_SIZE, Copier.CHECKSUMS_AND_DATE_AND_SIZE, Copier.FINGERPRINTS })
+	public String method;
+
+	@Param({ FileHasher.MD5, FileHasher.XXHASH64 })
+	public String hash;
+
+	@Param({ "1", "4" })
+	public int threads;
+
+	@Param({ "10000" })
+	public int files;
+
+	private File folder;
+
+	@Setup(Level.Trial)
+	public void generate() throws IOException {
+		folder = Files.createTempDirectory("mirror-scan").toFile();
+		TreeGenerator generator = new TreeGenerator();
+		generator.setFiles(files);
+		generator.setFolders(files / 100);
+		generator.setSizes(512, 256 << 10);
+		generator.generate(folder);
+	}
+
+	@TearDown(Level.Trial)
+	public void delete() throws IOException {
+		TreeGenerator.delete(folder);
+	}
+
+	@Benchmark
+	public FolderInfo scan() throws Exception {
+		FolderInfo results = new FolderInfo(folder, method, hash);
+		if (threads > 1) {
+			new TreeScanner(threads, threads, PathFilter.ALL).scan(folder, results, true);
+		} else {
+			new SyncSession(null).scan(folder, results, true);
+		}
+		if (Copier.FINGERPRINTS.equals(method)) {
+			results = new FingerprintResolver(results).resolve();
+		}
+		return results;
+	}
+}
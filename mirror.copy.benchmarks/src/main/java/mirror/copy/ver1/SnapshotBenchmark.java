@@ -0,0 +1,83 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import mirror.copy.ver1.Copier.FolderInfo;
+
+// Saving and loading the results of Step 1. The folder is scanned by date and size, so setup is quick; the
+// snapshot of checksums only differs in the length of the identifiers.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SnapshotBenchmark {
+
+	@Param({ Copier.DATE_AND_SIZE, Copier.CHECKSUMS })
+	public String method;
+
+	@Param({ "10000", "100000" })
+	public int files;
+
+	private File folder;
+	private File snapshot;
+	private FolderInfo results;
+
+	@Setup(Level.Trial)
+	public void generate() throws Exception {
+		folder = Files.createTempDirectory("mirror-snapshot").toFile();
+		TreeGenerator generator = new TreeGenerator();
+		generator.setFiles(files);
+		generator.setFolders(files / 100);
+		generator.setSizes(16, 4096);
+		generator.generate(folder);
+		results = new FolderInfo(folder, method, FileHasher.XXHASH64);
+		new SyncSession(null).scan(folder, results, true);
+		snapshot = File.createTempFile("mirror-snapshot", ".checksum");
+		write();
+	}
+
+	@TearDown(Level.Trial)
+	public void delete() throws IOException {
+		TreeGenerator.delete(folder);
+		Files.delete(snapshot.toPath());
+	}
+
+	@Benchmark
+	public File write() throws IOException {
+		try (Snapshot.Writer writer = new Snapshot.Writer(snapshot, results, PathFilter.ALL, null)) {
+			results.writeTo(writer);
+		}
+		return snapshot;
+	}
+
+	@Benchmark
+	public FolderInfo load() throws Exception {
+		return Snapshot.load(snapshot, null);
+	}
+}
@@ -0,0 +1,221 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+// Creates a folder of files that is the same for the same settings, so modes and machines can be compared.
+// Sizes are spread evenly on a logarithmic scale between the smallest and the largest size, so most files are
+// small and most bytes are in a few large files, as in real folders. A share of the files are copies of other
+// files. modify then moves or renames a share of the files, as a user would between Step 1 and Step 2.
+public class TreeGenerator {
+
+	private static final long MODIFIED = 1500000000000L; // modification time of the first file
+
+	private long seed = 1;
+	private int files = 10000;
+	private int folders = 100;
+	private long minSize = 1024;
+	private long maxSize = 1 << 20;
+	private double duplicateRatio = 0.1;
+	private double moveRatio = 0.05;
+
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	public void setFiles(int files) {
+		this.files = files;
+	}
+
+	public void setFolders(int folders) {
+		this.folders = folders;
+	}
+
+	public void setSizes(long minSize, long maxSize) {
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+	}
+
+	// The share of files with the content of another file
+	public void setDuplicateRatio(double duplicateRatio) {
+		this.duplicateRatio = duplicateRatio;
+	}
+
+	// The share of files that modify moves to another folder or renames
+	public void setMoveRatio(double moveRatio) {
+		this.moveRatio = moveRatio;
+	}
+
+	// Folders are nested up to 3 levels, e.g. d1/d12/d125
+	public void generate(File root) throws IOException {
+		Random random = new Random(seed);
+		List<File> folderList = new ArrayList<>();
+		folderList.add(root);
+		for (int i = 1; i < folders; i++) {
+			File parent = folderList.get(random.nextInt(Math.min(folderList.size(), 1 + folderList.size() / 8)));
+			folderList.add(new File(parent, "d" + i));
+		}
+		for (File folder : folderList) {
+			Files.createDirectories(folder.toPath());
+		}
+		long[] contents = new long[files];
+		long[] sizes = new long[files];
+		for (int i = 0; i < files; i++) {
+			if (i > 0 && random.nextDouble() < duplicateRatio) {
+				int original = random.nextInt(i);
+				contents[i] = contents[original];
+				sizes[i] = sizes[original];
+			} else {
+				contents[i] = random.nextLong();
+				sizes[i] = size(random);
+			}
+			File file = new File(folderList.get(random.nextInt(folderList.size())), "f" + i + ".dat");
+			write(file, contents[i], sizes[i]);
+			Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(MODIFIED + i * 1000L));
+		}
+	}
+
+	// Moves or renames files of a generated folder; returns the number of files moved
+	public int modify(File root) throws IOException {
+		Random random = new Random(seed + 1);
+		List<Path> fileList = new ArrayList<>();
+		List<Path> folderList = new ArrayList<>();
+		Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+				folderList.add(dir);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				fileList.add(file);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		// The order of a walk depends on the file system
+		Collections.sort(fileList);
+		Collections.sort(folderList);
+		int moved = 0;
+		for (Path file : fileList) {
+			if (random.nextDouble() >= moveRatio) {
+				continue;
+			}
+			Path folder = random.nextBoolean() ? file.getParent() : folderList.get(random.nextInt(folderList.size()));
+			Path target = folder.resolve("m" + moved + "-" + file.getFileName());
+			Files.move(file, target);
+			moved++;
+		}
+		return moved;
+	}
+
+	private long size(Random random) {
+		double min = Math.log(minSize);
+		double max = Math.log(maxSize);
+		return Math.round(Math.exp(min + random.nextDouble() * (max - min)));
+	}
+
+	private static void write(File file, long content, long size) throws IOException {
+		Random random = new Random(content);
+		byte[] block = new byte[64 << 10];
+		try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file.toPath()))) {
+			for (long written = 0; written < size; written += block.length) {
+				random.nextBytes(block);
+				out.write(block, 0, (int) Math.min(block.length, size - written));
+			}
+		}
+	}
+
+	static void delete(File root) throws IOException {
+		if (!root.exists()) {
+			return;
+		}
+		Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	public static void main(String[] args) throws IOException {
+		System.out.println("Usage: java -cp benchmarks.jar mirror.copy.ver1.TreeGenerator <folder> [-seed <n>] [-files <n>] [-folders <n>]");
+		System.out.println("       [-minSize <bytes>] [-maxSize <bytes>] [-duplicates <ratio>] [-modify <ratio of files to move or rename>]");
+		System.out.println("With -modify, the files of a folder that was generated before are moved and renamed.\n");
+		if (args.length == 0) {
+			System.exit(1);
+		}
+		TreeGenerator generator = new TreeGenerator();
+		boolean modify = false;
+		long minSize = generator.minSize;
+		long maxSize = generator.maxSize;
+		for (int i = 1; i < args.length; i += 2) {
+			if (i + 1 >= args.length) {
+				System.out.println("No value specified for " + args[i]);
+				System.exit(1);
+			}
+			String value = args[i + 1];
+			switch (args[i]) {
+			case "-seed":
+				generator.setSeed(Long.parseLong(value));
+				break;
+			case "-files":
+				generator.setFiles(Integer.parseInt(value));
+				break;
+			case "-folders":
+				generator.setFolders(Integer.parseInt(value));
+				break;
+			case "-minSize":
+				minSize = Long.parseLong(value);
+				break;
+			case "-maxSize":
+				maxSize = Long.parseLong(value);
+				break;
+			case "-duplicates":
+				generator.setDuplicateRatio(Double.parseDouble(value));
+				break;
+			case "-modify":
+				modify = true;
+				generator.setMoveRatio(Double.parseDouble(value));
+				break;
+			default:
+				System.out.println("Unknown option " + args[i]);
+				System.exit(1);
+			}
+		}
+		generator.setSizes(minSize, maxSize);
+		File root = new File(args[0]);
+		if (modify) {
+			System.out.println(generator.modify(root) + " files moved or renamed in " + root.getAbsolutePath());
+		} else {
+			generator.generate(root);
+			System.out.println(generator.files + " files generated in " + root.getAbsolutePath());
+		}
+	}
+}
@@ -8,41 +8,76 @@
 package mirror.copy.ver1;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
 public class Copier {
 
-	private static final String CHECKSUMS_AND_DATE_AND_SIZE = "checksumsAndDateAndSize";
-	private static final String DATE_AND_SIZE = "dateAndSize";
-	private static final String CHECKSUMS = "checksums";
+	static final String CHECKSUMS_AND_DATE_AND_SIZE = "checksumsAndDateAndSize";
+	static final String DATE_AND_SIZE = "dateAndSize";
+	static final String CHECKSUMS = "checksums";
+	static final String FINGERPRINTS = "fingerprints";
+	static final String INODES = "inodes";
 	private static final String STEP1 = "step1";
 	private static final String STEP2 = "step2";
+	private static final String WATCH = "watch";
+	private static final String AGENT = "agent";
+	private static final String VERIFY = "verify";
 	private static final String SOURCE = "-source";
 	private static final String TARGET = "-target";
 	private static final String DEBUG = "-debug";
 	private static final String METHOD = "-method";
+	private static final String THREADS = "-threads";
+	private static final String IO_THREADS = "-ioThreads";
+	private static final String INCREMENTAL = "-incremental";
+	private static final String CHECKSUM_FALLBACK = "-checksumFallback";
+	private static final String SKIP_UNCHANGED_FOLDERS = "-skipUnchangedFolders";
+	private static final String HASH = "-hash";
+	private static final String DRY_RUN = "-dryrun";
+	private static final String COPY_THREADS = "-copyThreads";
+	private static final String COPIES_PER_STORE = "-copiesPerStore";
+	private static final String LOCAL_COPIES = "-localCopies";
+	private static final String HARD_LINKS = "-hardLinks";
+	private static final String DELTA = "-delta";
+	private static final String DELTA_THRESHOLD = "-deltaThreshold";
+	private static final int DEFAULT_DELTA_THRESHOLD = 16; // MB
+	private static final String QUIET = "-quiet";
+	private static final String REPORT = "-report";
+	private static final String RECONCILE = "-reconcile";
+	private static final int DEFAULT_RECONCILE_INTERVAL = 600; // seconds
+	private static final String BANDWIDTH = "-bandwidth";
+	private static final String READ_BANDWIDTH = "-readBandwidth";
+	private static final String WRITE_BANDWIDTH = "-writeBandwidth";
+	private static final String OPERATIONS_PER_SECOND = "-operationsPerSecond";
+	private static final String INCLUDE = "-include";
+	private static final String EXCLUDE = "-exclude";
+	private static final String FILTER_FILE = "-filterFile";
+	private static final String PORT = "-port";
+	private static final String BIND = "-bind";
+	private static final String DEFAULT_BIND = "127.0.0.1";
+	private static final String SECRET_FILE = "-secretFile";
+	private static final String SAMPLE = "-sample";
+	private static final String FAIL_FAST = "-failFast";
+	private static final String DIVERGENCES = "-divergences";
+	// The command line
 	private static String mode = null;
+	private static String reportFileString = null;
 	private static String sourceFolderString;
-	private static String targetFolderString;
-
-	private static FolderInfo results1 = null; // The state of the first folder in the beginning
-	private static FolderInfo results2 = null; // The state of the first folder after some changes
+	private static List<String> targetFolderStrings = new ArrayList<>();
 
 	public static void main(String[] args) throws Exception {
 		System.out.println("This program replays file movements of the first directory in the second directory.\n");
@@ -50,20 +85,102 @@ public class Copier {
 		System.out.println("Second, after the rename and specify a target folder.\n");
 		System.out.println("Usage:");
 		System.out.println("java -jar mirror.copy.ver1.jar step1 -source <path_to_source_folder> [-comparisonStrategy <one_of_methods>]");
-		System.out.println("where <one_of_methods> is one of: \"" + CHECKSUMS + "\", \"" + DATE_AND_SIZE + "\" or \"" + CHECKSUMS_AND_DATE_AND_SIZE + "\"");
+		System.out.println("where <one_of_methods> is one of: \"" + CHECKSUMS + "\", \"" + DATE_AND_SIZE + "\", \"" + CHECKSUMS_AND_DATE_AND_SIZE + "\", \"" + FINGERPRINTS
+				+ "\" or \"" + INODES + "\"");
+		System.out.println("(" + INODES + " identifies files by their file key, i.e. device and inode, size and modification time, without reading them)");
+		System.out.println("Checksums are calculated with -hash <algorithm>, one of: \"" + FileHasher.MD5 + "\" (default), \"" + FileHasher.SHA256 + "\" or \"" + FileHasher.XXHASH64 + "\"");
 		System.out.println("...");
-		System.out.println("java -jar mirror.copy.ver1.jar step2 -target <path_to_target_folder>\n\n");
+		System.out.println("java -jar mirror.copy.ver1.jar step2 -target <path_to_target_folder>\n");
+		System.out.println("Instead of Step 2, java -jar mirror.copy.ver1.jar watch -target <path_to_target_folder> [-reconcile <seconds>]");
+		System.out.println("replays changes as they happen, and rescans the source folder every " + DEFAULT_RECONCILE_INTERVAL + " seconds by default.\n");
+		System.out.println("On another host, java -jar mirror.copy.ver1.jar agent -target <path_to_target_folder> -secretFile <file> [-port <n>] [-bind <address>]");
+		System.out.println("replays the changes of Step 2 -target " + RemoteTarget.PREFIX + "<host>[:<port>] -secretFile <file> there, with the same secret");
+		System.out.println("in both files; it listens on " + DEFAULT_BIND + ":" + TargetAgent.DEFAULT_PORT + " by default.\n");
+		System.out.println("java -jar mirror.copy.ver1.jar verify -target <path_to_target_folder> [-sample <percent>] [-failFast] [-divergences <file>]");
+		System.out.println("checks the target folder against the results of the last step by size and modification time, checksums files whose");
+		System.out.println("modification time differs and a sample of the others, and saves the files that differ as JSON lines.\n");
+		System.out.println("Both steps accept -threads <n> to scan, hash and replay in parallel, and -ioThreads <n> to limit concurrent reads.");
+		System.out.println("Step 2 accepts -incremental to reuse Step 1 checksums of files whose size, modification time and file key did not change,");
+		System.out.println("-skipUnchangedFolders to also reuse them without reading the files of folders whose modification time and number of entries");
+		System.out.println("did not change (files modified in place in such folders are then missed),");
+		System.out.println("-checksumFallback to find files of the " + INODES + " method whose file key changed by their checksum,");
+		System.out.println("Step 2 copies files with -copyThreads <n> workers, at most -copiesPerStore <n> of them reading or writing one file system,");
+		System.out.println("-localCopies to copy files that already exist in the target folder from there, -hardLinks to link them instead,");
+		System.out.println("-delta to update changed files of at least -deltaThreshold <n> MB (" + DEFAULT_DELTA_THRESHOLD + " by default) in place,");
+		System.out.println("-bandwidth <n>, -readBandwidth <n> and -writeBandwidth <n> to limit the MB/s copied, read from the source folder and written");
+		System.out.println("to target folders, and -operationsPerSecond <n> to limit operations, e.g. to leave the disks to other programs,");
+		System.out.println("and -dryrun to print the planned operations without changing the target folder.");
+		System.out.println("Step 2 accepts -target several times to replay the changes in several target folders at once,");
+		System.out.println("and resumes an interrupted or failed Step 2 when it is run again.");
+		System.out.println("Step 1 accepts -include <pattern>, -exclude <pattern> and -filterFile <file> with \"+ pattern\" and \"- pattern\" lines,");
+		System.out.println("the first rule that matches a file or folder decides; Step 2 uses the same rules unless it is given others.");
+		System.out.println("Both steps accept -quiet to print only errors instead of every operation, and -report <file> to save");
+		System.out.println("the counters and timings of every phase and the latencies of operations as JSON.\n\n");
 		if (args == null || args.length == 0) {
 			System.out.println("Please specify arguments.");
 			System.exit(1);
 		}
-		boolean debugOn = false;
-		String method = CHECKSUMS; // default
+		SyncSession session = new SyncSession(new File("./saved.checksum"));
+		List<String> filterRules = null; // the rules recorded by Step 1
+		int reconcileInterval = DEFAULT_RECONCILE_INTERVAL;
+		int port = TargetAgent.DEFAULT_PORT;
+		String bindString = DEFAULT_BIND;
+		String divergencesFileString = null;
 		for (int i = 0; i < args.length; i++) {
 			String param = args[i];
 			switch (param) {
 			case DEBUG: {
-				debugOn = true;
+				session.setDebug(true);
+				break;
+			}
+			case INCREMENTAL: {
+				session.setIncremental(true);
+				break;
+			}
+			case CHECKSUM_FALLBACK: {
+				session.setChecksumFallback(true);
+				break;
+			}
+			case SKIP_UNCHANGED_FOLDERS: {
+				session.setIncremental(true);
+				session.setSkipUnchangedFolders(true);
+				break;
+			}
+			case DRY_RUN: {
+				session.setDryRun(true);
+				break;
+			}
+			case QUIET: {
+				session.setQuiet(true);
+				break;
+			}
+			case REPORT: {
+				i++;
+				if (args.length <= i) {
+					System.out.println("No report file specified.");
+					System.exit(1);
+				}
+				reportFileString = args[i];
+				break;
+			}
+			case LOCAL_COPIES: {
+				session.setLocalCopies(true);
+				break;
+			}
+			case HARD_LINKS: {
+				session.setLocalCopies(true);
+				session.setHardLinks(true);
+				break;
+			}
+			case DELTA: {
+				if (session.getDeltaThreshold() == 0) {
+					session.setDeltaThreshold(DEFAULT_DELTA_THRESHOLD);
+				}
+				break;
+			}
+			case DELTA_THRESHOLD: {
+				i++;
+				session.setDeltaThreshold(parseCount(args, i, "megabytes"));
 				break;
 			}
 			case STEP1: {
@@ -74,6 +191,124 @@ public class Copier {
 				mode = STEP2;
 				break;
 			}
+			case WATCH: {
+				mode = WATCH;
+				break;
+			}
+			case BANDWIDTH: {
+				i++;
+				session.setBandwidth(parseCount(args, i, "MB/s"));
+				break;
+			}
+			case READ_BANDWIDTH: {
+				i++;
+				session.setReadBandwidth(parseCount(args, i, "MB/s"));
+				break;
+			}
+			case WRITE_BANDWIDTH: {
+				i++;
+				session.setWriteBandwidth(parseCount(args, i, "MB/s"));
+				break;
+			}
+			case OPERATIONS_PER_SECOND: {
+				i++;
+				session.setOperationsPerSecond(parseCount(args, i, "operations per second"));
+				break;
+			}
+			case INCLUDE:
+			case EXCLUDE: {
+				i++;
+				if (args.length <= i) {
+					System.out.println("No pattern specified.");
+					System.exit(1);
+				}
+				if (filterRules == null) {
+					filterRules = new ArrayList<>();
+				}
+				filterRules.add(INCLUDE.equals(param) ? PathFilter.include(args[i]) : PathFilter.exclude(args[i]));
+				break;
+			}
+			case FILTER_FILE: {
+				i++;
+				if (args.length <= i) {
+					System.out.println("No rules file specified.");
+					System.exit(1);
+				}
+				if (filterRules == null) {
+					filterRules = new ArrayList<>();
+				}
+				try {
+					filterRules.addAll(PathFilter.read(new File(args[i])));
+				} catch (IOException e) {
+					System.out.println("Error reading rules file " + args[i] + ": " + e);
+					System.exit(1);
+				}
+				break;
+			}
+			case AGENT: {
+				mode = AGENT;
+				break;
+			}
+			case VERIFY: {
+				mode = VERIFY;
+				break;
+			}
+			case SAMPLE: {
+				i++;
+				int samplePercent = parseCount(args, i, "percent");
+				if (samplePercent > 100) {
+					System.out.println("The sample is at most 100 percent.");
+					System.exit(1);
+				}
+				session.setSamplePercent(samplePercent);
+				break;
+			}
+			case FAIL_FAST: {
+				session.setFailFast(true);
+				break;
+			}
+			case DIVERGENCES: {
+				i++;
+				if (args.length <= i) {
+					System.out.println("No divergences file specified.");
+					System.exit(1);
+				}
+				divergencesFileString = args[i];
+				break;
+			}
+			case PORT: {
+				i++;
+				port = parseCount(args, i, "port");
+				break;
+			}
+			case BIND: {
+				i++;
+				if (args.length <= i) {
+					System.out.println("No address to listen on specified.");
+					System.exit(1);
+				}
+				bindString = args[i];
+				break;
+			}
+			case SECRET_FILE: {
+				i++;
+				if (args.length <= i) {
+					System.out.println("No secret file specified.");
+					System.exit(1);
+				}
+				try {
+					session.setAgentSecret(TargetAgent.readSecret(new File(args[i])));
+				} catch (IOException e) {
+					System.out.println("Error reading secret file " + args[i] + ": " + e);
+					System.exit(1);
+				}
+				break;
+			}
+			case RECONCILE: {
+				i++;
+				reconcileInterval = parseCount(args, i, "seconds");
+				break;
+			}
 			case SOURCE: {
 				i++;
 				if (args.length < i) {
@@ -89,7 +324,7 @@ public class Copier {
 					System.out.println("No target folder specified.");
 					System.exit(1);
 				}
-				targetFolderString = args[i];
+				targetFolderStrings.add(args[i]);
 				break;
 			}
 			case METHOD: {
@@ -100,344 +335,278 @@ public class Copier {
 				}
 				String methodInArgs = args[i];
 				if (DATE_AND_SIZE.equals(methodInArgs)) {
-					method = DATE_AND_SIZE;
+					session.setMethod(DATE_AND_SIZE);
 					break;
 				}
 				if (CHECKSUMS_AND_DATE_AND_SIZE.equals(methodInArgs)) {
-					method = CHECKSUMS_AND_DATE_AND_SIZE;
+					session.setMethod(CHECKSUMS_AND_DATE_AND_SIZE);
 					break;
 				}
 				if (CHECKSUMS.equals(methodInArgs)) {
-					method = CHECKSUMS;
+					session.setMethod(CHECKSUMS);
+					break;
+				}
+				if (FINGERPRINTS.equals(methodInArgs)) {
+					session.setMethod(FINGERPRINTS);
+					break;
+				}
+				if (INODES.equals(methodInArgs)) {
+					session.setMethod(INODES);
 					break;
 				}
 				System.out.println("Incorrect method specified: " + methodInArgs);
 				System.exit(1);
 			}
+			case HASH: {
+				i++;
+				if (args.length <= i) {
+					System.out.println("No checksum algorithm specified.");
+					System.exit(1);
+				}
+				if (!FileHasher.isSupported(args[i])) {
+					System.out.println("Incorrect checksum algorithm specified: " + args[i]);
+					System.exit(1);
+				}
+				session.setHash(args[i]);
+				break;
+			}
+			case THREADS: {
+				i++;
+				session.setThreads(parseCount(args, i, "threads"));
+				break;
+			}
+			case IO_THREADS: {
+				i++;
+				session.setIoThreads(parseCount(args, i, "I/O threads"));
+				break;
+			}
+			case COPY_THREADS: {
+				i++;
+				session.setCopyThreads(parseCount(args, i, "copy threads"));
+				break;
+			}
+			case COPIES_PER_STORE: {
+				i++;
+				session.setCopiesPerStore(parseCount(args, i, "copies per file store"));
+				break;
+			}
 			default: {
 				System.out.println("Incorrect argument " + param);
 				System.exit(1);
 			}
 			}
 		}
+		try {
+			session.setFilterRules(filterRules);
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			System.exit(1);
+		}
+		try {
+			run(session, reconcileInterval, port, bindString, divergencesFileString);
+		} catch (SyncException e) {
+			System.out.println("ERROR: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	private static void run(SyncSession session, int reconcileInterval, int port, String bindString, String divergencesFileString) throws Exception {
 		if (mode == STEP1) {
 			if (sourceFolderString == null) {
 				System.out.println("No source folder specified for step 1");
 				System.exit(1);
 			}
-			File source = new File(sourceFolderString);
-			if (!source.isDirectory()) {
-				System.out.println("Source folder is not a directory or does not exist.");
-				System.exit(1);
-			}
-			results1 = new FolderInfo(source, method);
-
-			long timeStart = System.currentTimeMillis();
-
-			doStep1(source, results1, true);
-			if (debugOn) {
-				System.out.println("[debug output1:]");
-				printmap(results1.getIds());
-			}
-			File savedChecksum = new File("./saved.checksum");
-			if (savedChecksum.exists()) {
-				savedChecksum.delete();
-			}
-			savedChecksum.createNewFile();
-
-			ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(savedChecksum));
-			oos.writeObject(results1);
-			oos.close();
-
-			long timeEnd = System.currentTimeMillis();
-			System.out.println("Time spent for Step 1: " + (timeEnd - timeStart) + " ms");
+			SyncSession.Result result = session.step1(new File(sourceFolderString));
+			System.out.println("Time spent for Step 1: " + result.getMillis() + " ms");
+			report(session, result);
 			System.out.println("Step 1 is completed. You can now modify this folder and replay your changes running Step 2 afterwards.");
 		}
 
 		if (mode == STEP2) {
-			if (targetFolderString == null) {
-				System.out.println("No target folder specified for step 2");
+			SyncSession.Result result = session.step2(targetFolders());
+			System.out.println("Time spent for Step 2: " + result.getMillis() + " ms");
+			report(session, result);
+			System.out.println("Step 2 completed.");
+			System.exit(result.getReturnCode());
+		}
+
+		if (mode == WATCH) {
+			session.watch(targetFolders(), reconcileInterval * 1000L);
+		}
+
+		if (mode == AGENT) {
+			if (targetFolderStrings.size() != 1 || RemoteTarget.isRemote(new File(targetFolderStrings.get(0)))) {
+				System.out.println("Specify one target folder of this host for the agent");
 				System.exit(1);
 			}
-			File target = new File(targetFolderString);
+			File target = new File(targetFolderStrings.get(0)).getAbsoluteFile();
 			if (!target.isDirectory()) {
-				System.out.println("Target folder is not a directory or does not exist.");
+				System.out.println("Target folder " + target + " is not a directory or does not exist.");
 				System.exit(1);
 			}
+			session.createAgent(target).run(InetAddress.getByName(bindString), port);
+		}
 
-			File savedChecksum = new File("./saved.checksum");
-			if (!savedChecksum.exists()) {
-				System.out.println("ERROR: Results of Step 1 do not exist.");
-				System.exit(-1);
-			}
-			// Reading the state of the first folder as it was, from saved file into results1
-			ObjectInputStream in = new ObjectInputStream(new FileInputStream(savedChecksum));
-			results1 = (FolderInfo) in.readObject();
-			in.close();
-			if (debugOn) {
-				System.out.println("[debug output results1:]");
-				printmap(results1.getIds());
+		if (mode == VERIFY) {
+			SyncSession.Result result = session.verify(targetFolders());
+			if (divergencesFileString != null) {
+				List<String> lines = new ArrayList<>(result.getDivergences().size());
+				for (Divergence divergence : result.getDivergences()) {
+					lines.add(divergence.toJson());
+				}
+				Files.write(new File(divergencesFileString).toPath(), lines, StandardCharsets.UTF_8);
 			}
+			System.out.println("Time spent for verify: " + result.getMillis() + " ms");
+			report(session, result);
+			System.out.println(result.getReturnCode() == 0 ? "Target folders match the results of the last step." : "Target folders differ from the results of the last step.");
+			System.exit(result.getReturnCode());
+		}
+	}
 
-			long timeStart = System.currentTimeMillis();
-			int returnCode = doStep2(target, debugOn);
-
-			// Saving results2 into a file for further use as results1
-			savedChecksum.delete();
-			savedChecksum.createNewFile();
-
-			ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(savedChecksum));
-			oos.writeObject(results2);
-			oos.close();
-
-			long timeEnd = System.currentTimeMillis();
-			System.out.println("Time spent for Step 2: " + (timeEnd - timeStart) + " ms");
-			System.out.println("Step 2 completed.");
-			System.exit(returnCode);
+	private static void report(SyncSession session, SyncSession.Result result) throws IOException {
+		result.getMetrics().print();
+		if (reportFileString == null) {
+			return;
 		}
+		Map<String, Object> run = new LinkedHashMap<>();
+		run.put("mode", mode);
+		run.put("source", result.getSource() == null ? sourceFolderString : result.getSource().getAbsolutePath());
+		run.put("targets", targetFolderStrings);
+		run.put("method", result.getMethod());
+		run.put("hash", result.getHash());
+		run.putAll(session.getSettings());
+		run.put("returnCode", result.getReturnCode());
+		File reportFile = new File(reportFileString);
+		result.getMetrics().writeReport(reportFile, run);
+		System.out.println("Report saved to " + reportFile.getAbsolutePath());
+	}
 
+	private static List<File> targetFolders() {
+		if (targetFolderStrings.isEmpty()) {
+			System.out.println("No target folder specified for " + mode);
+			System.exit(1);
+		}
+		List<File> targets = new ArrayList<>();
+		for (String targetFolderString : targetFolderStrings) {
+			targets.add(new File(targetFolderString));
+		}
+		return targets;
 	}
 
 	public static byte[] createChecksum(File file) throws Exception {
-		InputStream fis = new FileInputStream(file);
-
-		byte[] buffer = new byte[1024];
-		MessageDigest complete = MessageDigest.getInstance("MD5");
-		int numRead;
-
-		do {
-			numRead = fis.read(buffer);
-			if (numRead > 0) {
-				complete.update(buffer, 0, numRead);
-			}
-		} while (numRead != -1);
-
-		fis.close();
-		return complete.digest();
+		return FileHasher.checksum(file, FileHasher.MD5);
 	}
 
 	public static String getMD5Checksum(File file) throws Exception {
-		byte[] b = createChecksum(file);
-		String result = "";
-
-		for (int i = 0; i < b.length; i++) {
-			result += Integer.toString((b[i] & 0xff) + 0x100, 16).substring(1);
-		}
-		return result;
+		return getChecksum(file, FileHasher.MD5);
 	}
 
-	private static int doStep1(File sourceFolderFile, FolderInfo results, boolean folderWillBeModified) throws Exception {
-		for (File nextChild : sourceFolderFile.listFiles()) {
-			if (nextChild.isDirectory()) {
-				doStep1(nextChild, results, folderWillBeModified);
-			} else {
-				Path topLevelFolderPath = results.getFolder().toPath();
-				Path childFilePath = nextChild.toPath();
-				String relativePath = topLevelFolderPath.relativize(childFilePath).toString();
-				Identifier id = null;
-				switch (results.getMethod()) {
-				case CHECKSUMS: {
-					String md5 = getMD5Checksum(nextChild);
-					id = new ChecksumIdentifier(md5);
-					break;
-				}
-				case DATE_AND_SIZE: {
-					BasicFileAttributes attr = Files.readAttributes(childFilePath, BasicFileAttributes.class);
-					id = new DateAndSizeIdentifier(attr.size(), attr.creationTime().toMillis(), attr.lastModifiedTime().toMillis(), attr.lastAccessTime().toMillis());
-					break;
-				}
-				case CHECKSUMS_AND_DATE_AND_SIZE: {
-					BasicFileAttributes attr = Files.readAttributes(childFilePath, BasicFileAttributes.class);
-					id = new ChecksumAndDateAndSizeIdengifier(nextChild.getAbsolutePath(), attr.size(), attr.creationTime().toMillis(), attr.lastModifiedTime().toMillis(),
-							attr.lastAccessTime().toMillis(), folderWillBeModified);
-					break;
-				}
+	public static String getChecksum(File file, String algorithm) throws Exception {
+		return Snapshot.toHex(FileHasher.checksum(file, algorithm));
+	}
 
-				}
-				results.addId(id, relativePath);
+	private static int parseCount(String[] args, int i, String what) {
+		if (args.length <= i) {
+			System.out.println("No number of " + what + " specified.");
+			System.exit(1);
+		}
+		try {
+			int count = Integer.parseInt(args[i]);
+			if (count > 0) {
+				return count;
 			}
+		} catch (NumberFormatException e) {
+			// reported below
 		}
+		System.out.println("Incorrect number of " + what + " specified: " + args[i]);
+		System.exit(1);
 		return 0;
 	}
 
-	private static int doStep2(File target, boolean debugOn) throws Exception {
-		String method = results1.getMethod();
-		System.out.println("Method used in Step 1: " + method);
-		results2 = new FolderInfo(results1.getFolder(), method);
-
-		doStep1(results1.getFolder(), results2, false);
-
-		if (debugOn) {
-			System.out.println("[debug output results2:]");
-			printmap(results2.getIds());
+	// One stat per entry, for both the type and the identifier; null if the rules exclude the entry, which is not
+	// stat'ed then unless only its type tells
+	static BasicFileAttributes readIncluded(Path child, FolderInfo results, PathFilter filter) throws IOException {
+		if (filter.isEmpty()) {
+			return Files.readAttributes(child, BasicFileAttributes.class);
+		}
+		String relativePath = relativePath(results, child.toFile());
+		int included = filter.check(relativePath);
+		if (included == PathFilter.EXCLUDED) {
+			return null;
 		}
-		if (results2.equals(results1)) {
-			System.out.println("Nothing changed in source folder " + results1.getFolder().getAbsolutePath());
-			return 0;
+		BasicFileAttributes attr = Files.readAttributes(child, BasicFileAttributes.class);
+		if (included == PathFilter.DEPENDS_ON_TYPE && !filter.accepts(relativePath, attr.isDirectory())) {
+			return null;
 		}
+		return attr;
+	}
 
-		if (debugOn) {
-			FolderInfo targetState = new FolderInfo(target, method); // The state of the first folder after some changes
-			try {
-				doStep1(targetState.getFolder(), targetState, false);
-			} catch (Exception e) {
-				e.printStackTrace();
+	static List<Path> list(File folder) throws IOException {
+		List<Path> children = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder.toPath())) {
+			for (Path child : stream) {
+				children.add(child);
 			}
+		}
+		return children;
+	}
 
-			if (results2.equals(targetState)) {
-				System.out.println("Source and Target folders are equal.");
-				return 0;
-			}
+	// Returns the subfolders to scan if the folder did not change since the previous scan, see FolderInfo.addFolder
+	static List<String> addFolder(File folder, int entryCount, FolderInfo results) throws IOException {
+		long modificationTime = Files.getLastModifiedTime(folder.toPath()).toMillis();
+		return results.addFolder(relativePath(results, folder), modificationTime, entryCount);
+	}
 
-			if (!results1.equals(targetState)) {
-				System.out.println("Please first synchronize Target folder with Source folder, run Step 1,");
-				System.out.println("then make changes in source folder, then run Step 2");
-				return 1;
-			}
-		}
+	static String relativePath(FolderInfo results, File file) {
+		return results.getFolder().toPath().relativize(file.toPath()).toString();
+	}
 
-		Map<Identifier, List<String>> tableR = new HashMap<>();
-		Map<Identifier, List<String>> tableI = new HashMap<>();
+	static void addFile(File file, FolderInfo results, boolean folderWillBeModified, Metrics metrics) throws Exception {
+		addFile(file, Files.readAttributes(file.toPath(), BasicFileAttributes.class), results, folderWillBeModified, metrics);
+	}
 
-		for (Map.Entry<Identifier, List<String>> entry : results1.getIds().entrySet()) {
-			Identifier key = entry.getKey();
-			List<String> values1 = entry.getValue();
-			if (results2.getIds().containsKey(key)) {
-				List<String> values2 = results2.getIds().get(key);
-				List<String> copy = new ArrayList<>();
-				copy.addAll(values1);
-				copy.removeAll(values2);
-				if (!copy.isEmpty()) {
-					tableR.put(key, copy);
-				}
-			} else {
-				tableR.put(key, values1);
-			}
+	// Files read for checksums are recorded in metrics, unless it is null
+	static void addFile(File file, BasicFileAttributes attr, FolderInfo results, boolean folderWillBeModified, Metrics metrics) throws Exception {
+		String relativePath = relativePath(results, file);
+		FileStamp stamp = new FileStamp(attr);
+		Identifier id = results.getReusableId(relativePath, stamp);
+		if (id == null) {
+			id = identify(file, attr, results, folderWillBeModified, metrics);
 		}
+		results.addId(id, relativePath, stamp);
+	}
 
-		for (Map.Entry<Identifier, List<String>> entry : results2.getIds().entrySet()) {
-			Identifier key = entry.getKey();
-			List<String> values2 = entry.getValue();
-			if (results1.getIds().containsKey(key)) {
-				List<String> values1 = results1.getIds().get(key);
-				List<String> copy = new ArrayList<>();
-				copy.addAll(values2);
-				copy.removeAll(values1);
-				if (!copy.isEmpty()) {
-					tableI.put(key, copy);
-				}
-			} else {
-				tableI.put(key, values2);
-			}
+	static Identifier identify(File file, BasicFileAttributes attr, FolderInfo results, boolean folderWillBeModified, Metrics metrics) throws Exception {
+		Identifier id = null;
+		switch (results.getMethod()) {
+		case CHECKSUMS: {
+			id = new ChecksumIdentifier(FileHasher.checksum(file, results.getHash(), metrics));
+			break;
 		}
-		if (debugOn) {
-			System.out.println("\n[debug output tableR:]");
-			printmap(tableR);
-			System.out.println("[debug output tableI:]");
-			printmap(tableI);
+		case DATE_AND_SIZE: {
+			id = new DateAndSizeIdentifier(attr.size(), attr.creationTime().toMillis(), attr.lastModifiedTime().toMillis(), attr.lastAccessTime().toMillis());
+			break;
 		}
-		Iterator<Identifier> it1 = tableR.keySet().iterator();
-
-		while (it1.hasNext()) {
-			Identifier s = it1.next();
-
-			if (tableI.keySet().contains(s)) {
-
-				int minNlocs = (tableR.get(s).size() < tableI.get(s).size() ? tableR.get(s).size() : tableI.get(s).size());
-
-				if (tableR.get(s).size() > tableI.get(s).size()) {
-					for (int i = minNlocs; i < tableR.get(s).size(); i++) {
-						File fold = (new File(target.getAbsolutePath(), tableR.get(s).get(i))).getParentFile();
-						deleteFileFrom(target.getAbsolutePath(), tableR.get(s).get(i));
-						if (fold.isDirectory()) {
-							if (!fold.getAbsolutePath().equals(target.getAbsolutePath())) {
-								if (fold.delete()) {
-									System.out.println("Folder deleted");
-								}
-							}
-						}
-					}
-				} else if (tableR.get(s).size() < tableI.get(s).size()) {
-					for (int i = minNlocs; i < tableI.get(s).size(); i++) {
-
-						copyFileFromTo(target.getAbsolutePath(), tableR.get(s).get(0), target.getAbsolutePath(), tableI.get(s).get(i));
-					}
-				}
-
-				for (int i = 0; i < minNlocs; i++) {
-					File fold = (new File(target.getAbsolutePath(), tableR.get(s).get(i))).getParentFile();
-					moveFileFromTo(target.getAbsolutePath(), tableR.get(s).get(i), target.getAbsolutePath(), tableI.get(s).get(i));
-					if (fold.isDirectory()) {
-						if (!fold.getAbsolutePath().equals(target.getAbsolutePath())) {
-							if (fold.delete()) {
-								System.out.println("Folder deleted");
-							}
-						}
-					}
-				}
-				it1.remove();
-				tableI.remove(s);
-			} else {
-				// {remove file s from Target folder from locations tableR.get(s);
-				// remove this s record from tableR: it1.remove();}
-				for (int i = 0; i < tableR.get(s).size(); i++) {
-					File fold = (new File(target.getAbsolutePath(), tableR.get(s).get(i))).getParentFile();
-					deleteFileFrom(target.getAbsolutePath(), tableR.get(s).get(i));
-					if (fold.isDirectory()) {
-						if (!fold.getAbsolutePath().equals(target.getAbsolutePath())) {
-							if (fold.delete()) {
-								System.out.println("Folder deleted");
-							}
-						}
-					}
-				}
-				it1.remove();
-			}
-
+		case CHECKSUMS_AND_DATE_AND_SIZE: {
+			id = new ChecksumAndDateAndSizeIdengifier(file.getAbsolutePath(), attr.size(), attr.creationTime().toMillis(), attr.lastModifiedTime().toMillis(),
+					attr.lastAccessTime().toMillis(), results.getHash(), folderWillBeModified);
+			break;
 		}
-
-		Iterator<Identifier> it2 = tableI.keySet().iterator();
-
-		while (it2.hasNext()) {
-			Identifier s = it2.next();
-			for (int i = 0; i < tableI.get(s).size(); i++) {
-				copyFileFromTo(results1.getFolder().getAbsolutePath(), tableI.get(s).get(i), target.getAbsolutePath(), tableI.get(s).get(i));
-			}
+		case FINGERPRINTS: {
+			// Files are read later by FingerprintResolver, and only if their size is not unique
+			id = new FingerprintIdentifier(attr.size(), attr.lastModifiedTime().toMillis(), null, null);
+			break;
 		}
-		return 0;
-	}
-
-	private static void moveFileFromTo(String fromFolder, String loc1, String toFolder, String loc2) {
-		File moveWhat = new File(fromFolder, loc1);
-		File moveWhere = new File(toFolder, loc2);
-		System.out.println("Move " + moveWhat.getAbsolutePath() + " to " + moveWhere.getAbsolutePath());
-		moveWhere.getParentFile().mkdirs();
-		moveWhat.renameTo(moveWhere);
-	}
-
-	private static void deleteFileFrom(String fromFolder, String location) {
-		File file = new File(fromFolder, location);
-		System.out.println("Delete " + file.getAbsolutePath());
-		if (file.exists()) {
-			file.delete();
-		} else {
-			System.out.println("Error deleting " + file.getAbsolutePath());
+		case INODES: {
+			id = new InodeIdentifier(attr.fileKey() == null ? null : attr.fileKey().toString(), attr.size(), attr.lastModifiedTime().toMillis());
+			break;
 		}
-	}
 
-	private static void copyFileFromTo(String fromFolder, String loc1, String toFolder, String loc2) {
-		File copyFrom = new File(fromFolder, loc1);
-		File copyTo = new File(toFolder, loc2);
-		System.out.println("Copy " + copyFrom.getAbsolutePath() + " to " + copyTo.getAbsolutePath());
-		try {
-			copyTo.getParentFile().mkdirs();
-			Files.copy(copyFrom.toPath(), copyTo.toPath());
-		} catch (IOException e) {
-			e.printStackTrace();
 		}
+		return id;
 	}
 
-	private static void printmap(Map<Identifier, List<String>> map) {
+	static void printmap(Map<Identifier, List<String>> map) {
 		for (Entry<Identifier, List<String>> q : map.entrySet()) {
 			System.out.println(q.getKey() + " " + q.getValue());
 		}
@@ -447,52 +616,101 @@ public class Copier {
 		if (pathsForFileStep1.size() != pathsForFileStep2.size()) {
 			return false;
 		}
-		List<String> work = new ArrayList<String>(pathsForFileStep2);
-		for (String element : pathsForFileStep1) {
-			if (!work.remove(element)) {
-				return false;
-			}
-		}
-		return work.isEmpty();
+		List<String> sorted1 = new ArrayList<String>(pathsForFileStep1);
+		List<String> sorted2 = new ArrayList<String>(pathsForFileStep2);
+		Collections.sort(sorted1);
+		Collections.sort(sorted2);
+		return sorted1.equals(sorted2);
 	}
 
-	private static interface Identifier {
+	static interface Identifier {
 		boolean equals(Object obj);
 	}
 
-	private static class ChecksumIdentifier implements Identifier, Serializable {
+	// An identifier that fits in 128 bits. FolderInfo keeps such identifiers as two longs, not as objects.
+	static interface CompactIdentifier extends Identifier {
+		long getHigh();
+
+		long getLow();
+	}
+
+	static class ChecksumIdentifier implements CompactIdentifier, Serializable {
 		private static final long serialVersionUID = 4096973732600424847L;
-		private String checksum;
+		static final int MAX_LENGTH = 16; // longer checksums are truncated to 128 bits
+		private String checksum; // only set in snapshots written with Java serialization
+		private transient long high;
+		private transient long low;
+		private transient int length;
+
+		public ChecksumIdentifier(byte[] checksum) {
+			this.length = Math.min(checksum.length, MAX_LENGTH);
+			for (int i = 0; i < length; i++) {
+				if (i < 8) {
+					high |= (checksum[i] & 0xFFL) << (56 - 8 * i);
+				} else {
+					low |= (checksum[i] & 0xFFL) << (56 - 8 * (i - 8));
+				}
+			}
+		}
 
-		public ChecksumIdentifier(String checksum) {
-			this.checksum = checksum;
+		public ChecksumIdentifier(long high, long low, int length) {
+			this.high = high;
+			this.low = low;
+			this.length = length;
+		}
+
+		private Object readResolve() {
+			return new ChecksumIdentifier(Snapshot.fromHex(checksum));
+		}
+
+		@Override
+		public long getHigh() {
+			return high;
+		}
+
+		@Override
+		public long getLow() {
+			return low;
+		}
+
+		public int getLength() {
+			return length;
+		}
+
+		public byte[] getBytes() {
+			byte[] bytes = new byte[length];
+			for (int i = 0; i < length; i++) {
+				bytes[i] = (byte) (i < 8 ? high >>> (56 - 8 * i) : low >>> (56 - 8 * (i - 8)));
+			}
+			return bytes;
 		}
 
 		public String getChecksum() {
-			return checksum;
+			return Snapshot.toHex(getBytes());
 		}
 
 		@Override
 		public String toString() {
-			return checksum;
+			return getChecksum();
 		}
 
 		@Override
 		public boolean equals(Object obj) {
 			if (obj instanceof ChecksumIdentifier) {
 				ChecksumIdentifier other = (ChecksumIdentifier) obj;
-				return this.getChecksum().equals(other.getChecksum());
+				return high == other.high && low == other.low && length == other.length;
 			}
 			return super.equals(obj);
 		}
 
 		@Override
 		public int hashCode() {
-			return checksum.hashCode();
+			return (int) (high ^ (high >>> 32) ^ low ^ (low >>> 32));
 		}
 	}
 
-	private static class DateAndSizeIdentifier implements Identifier, Serializable {
+	// FolderInfo only keeps the size and the modification time, which are all that equals() compares
+	static class DateAndSizeIdentifier implements CompactIdentifier, Serializable {
 		private static final long serialVersionUID = 1556713477972745796L;
 		private long size = 0;
 		private long creationTime = 0;
@@ -506,6 +724,32 @@ public class Copier {
 			this.accessTime = accessTime;
 		}
 
+		public long getSize() {
+			return size;
+		}
+
+		public long getCreationTime() {
+			return creationTime;
+		}
+
+		public long getModificationTime() {
+			return modificationTime;
+		}
+
+		public long getAccessTime() {
+			return accessTime;
+		}
+
+		@Override
+		public long getHigh() {
+			return size;
+		}
+
+		@Override
+		public long getLow() {
+			return modificationTime;
+		}
+
 		public String toString() {
 			return size + "|" + creationTime + "|" + modificationTime + "|" + accessTime;
 		}
@@ -530,7 +774,74 @@ public class Copier {
 		}
 	}
 
-	private static class ChecksumAndDateAndSizeIdengifier implements Identifier, Serializable {
+	// The file key (device and inode on Unix), size and modification time of a file, which a move or a rename within
+	// a file system keep. A file without file key is only identified by its size and modification time.
+	static class InodeIdentifier implements CompactIdentifier, Serializable {
+		private static final long serialVersionUID = 3215734860562014213L;
+		private final long high;
+		private final long low;
+
+		public InodeIdentifier(String fileKey, long size, long modificationTime) {
+			this(fileKey == null ? 0 : mix(hash(fileKey)), mix(size) ^ modificationTime);
+		}
+
+		public InodeIdentifier(long high, long low) {
+			this.high = high;
+			this.low = low;
+		}
+
+		@Override
+		public long getHigh() {
+			return high;
+		}
+
+		@Override
+		public long getLow() {
+			return low;
+		}
+
+		public String toString() {
+			return Long.toHexString(high) + "|" + Long.toHexString(low);
+		}
+
+		public boolean equals(Object obj) {
+			if (obj instanceof InodeIdentifier) {
+				InodeIdentifier other = (InodeIdentifier) obj;
+				return high == other.high && low == other.low;
+			}
+			return false;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (high ^ (high >>> 32) ^ low ^ (low >>> 32));
+		}
+	}
+
+	private static final long FNV_OFFSET = 0xCBF29CE484222325L;
+	private static final long FNV_PRIME = 0x100000001B3L;
+
+	// 64-bit FNV-1a hash of a string
+	static long hash(String value) {
+		return hash(FNV_OFFSET, value);
+	}
+
+	// Continues the hash of a string with more characters
+	static long hash(long hash, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+		}
+		return hash;
+	}
+
+	static long mix(long value) {
+		// Finalizer of SplitMix64
+		value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+		value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+		return value ^ (value >>> 31);
+	}
+
+	static class ChecksumAndDateAndSizeIdengifier implements Identifier, Serializable {
 		private static final long serialVersionUID = -6847482771117005550L;
 		private String absolutePath;
 		private long size = 0;
@@ -538,13 +849,14 @@ public class Copier {
 		private long modificationTime = 0;
 		private long accessTime = 0;
 		private boolean forceChecksumCalculation = false;
-		private String md5 = null;
+		private String md5 = null; // calculated with the algorithm below, despite the name
+		private String algorithm = null; // null in snapshots written before checksum algorithms were selectable
 
 		public String calculateChecksum() {
 			if (md5 == null) {
 				File file = new File(absolutePath);
 				try {
-					md5 = Copier.getMD5Checksum(file);
+					md5 = Copier.getChecksum(file, getAlgorithm());
 				} catch (Exception e) {
 					System.out.println("Error during checksum calculation for " + absolutePath);
 				}
@@ -552,22 +864,59 @@ public class Copier {
 			return md5;
 		}
 
-		public ChecksumAndDateAndSizeIdengifier(String absolutePath, long size, long creationTime, long modifiedTime, long accessTime, boolean forceChecksumCalculation) {
+		public ChecksumAndDateAndSizeIdengifier(String absolutePath, long size, long creationTime, long modifiedTime, long accessTime, String algorithm,
+				boolean forceChecksumCalculation) {
 			this.absolutePath = absolutePath;
 			this.size = size;
 			this.creationTime = creationTime;
 			this.modificationTime = modifiedTime;
 			this.accessTime = accessTime;
+			this.algorithm = algorithm;
 			if (forceChecksumCalculation) {
 				try {
 					File file = new File(absolutePath);
-					this.md5 = Copier.getMD5Checksum(file);
+					this.md5 = Copier.getChecksum(file, algorithm);
 				} catch (Exception e) {
 					System.out.println("Error during checksum calculation for " + absolutePath);
 				}
 			}
 		}
 
+		// Restores an identifier whose checksum, if any, is already known
+		public ChecksumAndDateAndSizeIdengifier(String absolutePath, long size, long creationTime, long modifiedTime, long accessTime, String algorithm, String md5) {
+			this.absolutePath = absolutePath;
+			this.size = size;
+			this.creationTime = creationTime;
+			this.modificationTime = modifiedTime;
+			this.accessTime = accessTime;
+			this.algorithm = algorithm;
+			this.md5 = md5;
+		}
+
+		public String getAlgorithm() {
+			return algorithm == null ? FileHasher.MD5 : algorithm;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public long getCreationTime() {
+			return creationTime;
+		}
+
+		public long getModificationTime() {
+			return modificationTime;
+		}
+
+		public long getAccessTime() {
+			return accessTime;
+		}
+
+		public String getChecksum() {
+			return md5;
+		}
+
 		public String toString() {
 			return absolutePath + "|" + size + "|" + modificationTime + (md5 == null ? "" : "|" + md5);
 		}
@@ -595,60 +944,606 @@ public class Copier {
 		}
 	}
 
-	private static class FolderInfo implements Serializable {
+	// Identifies a file by its size and modification time if no other file has the same size; by its size,
+	// modification time and sample if the sample tells it apart from other files of the same size; and by
+	// its size and checksum otherwise. See FingerprintResolver.
+	static class FingerprintIdentifier implements Identifier, Serializable {
+		private static final long serialVersionUID = -2329126542404876123L;
+		private long size = 0;
+		private long modificationTime = 0;
+		private String sample = null;
+		private String checksum = null;
+
+		public FingerprintIdentifier(long size, long modificationTime, String sample, String checksum) {
+			this.size = size;
+			this.modificationTime = modificationTime;
+			this.sample = sample;
+			this.checksum = checksum;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public long getModificationTime() {
+			return modificationTime;
+		}
+
+		public String getSample() {
+			return sample;
+		}
+
+		public String getChecksum() {
+			return checksum;
+		}
+
+		public String toString() {
+			return size + "|" + modificationTime + (sample == null ? "" : "|" + sample) + (checksum == null ? "" : "|" + checksum);
+		}
+
+		public boolean equals(Object obj) {
+			if (obj instanceof FingerprintIdentifier) {
+				FingerprintIdentifier other = (FingerprintIdentifier) obj;
+				if (size != other.size) {
+					return false;
+				}
+				if (checksum != null || other.checksum != null) {
+					return checksum != null && checksum.equals(other.checksum);
+				}
+				if (modificationTime != other.modificationTime) {
+					return false;
+				}
+				return sample == null ? other.sample == null : sample.equals(other.sample);
+			}
+			return false;
+		}
+
+		@Override
+		public int hashCode() {
+			if (checksum != null) {
+				return checksum.hashCode() + (int) size;
+			}
+			return (int) (size + modificationTime);
+		}
+	}
+
+	static class FileStamp implements Serializable {
+		private static final long serialVersionUID = 2883187271915632745L;
+		private long size = 0;
+		private long modificationTime = 0;
+		private String fileKey = null;
+
+		public FileStamp(BasicFileAttributes attr) {
+			this(attr.size(), attr.lastModifiedTime().toMillis(), attr.fileKey() == null ? null : attr.fileKey().toString());
+		}
+
+		public FileStamp(long size, long modificationTime, String fileKey) {
+			this.size = size;
+			this.modificationTime = modificationTime;
+			this.fileKey = fileKey;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public long getModificationTime() {
+			return modificationTime;
+		}
+
+		public String getFileKey() {
+			return fileKey;
+		}
+
+		public String toString() {
+			return size + "|" + modificationTime + (fileKey == null ? "" : "|" + fileKey);
+		}
+
+		public boolean equals(Object obj) {
+			if (obj instanceof FileStamp) {
+				FileStamp other = (FileStamp) obj;
+				if (size != other.size) {
+					return false;
+				}
+				if (modificationTime != other.modificationTime) {
+					return false;
+				}
+				return fileKey == null ? other.fileKey == null : fileKey.equals(other.fileKey);
+			}
+			return false;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (size + modificationTime);
+		}
+	}
+
+	// Files of a folder, grouped by identifier. Identifiers are numbered keys: compact identifiers are kept as two
+	// longs and found through an IdentifierIndex, other identifiers are kept as objects. Each file is an entry
+	// numbered in the order it was added; entries of the same key are chained in that order.
+	static class FolderInfo implements Serializable {
 		private static final long serialVersionUID = -4900864651526989655L;
+		private static final int NONE = -1;
+		// Folders modified this shortly before they are scanned may change again within the same modification time
+		private static final long RECENT_MILLIS = 2000;
 		private String method = null;
+		private String hash = null; // null in snapshots written before checksum algorithms were selectable
 		private File folder = null;
-		private Map<Identifier, List<String>> idsToLocs = new HashMap<>();
-
-		public FolderInfo(File folder, String method) {
+		// Only set in snapshots written with Java serialization, see readResolve()
+		private Map<Identifier, List<String>> idsToLocs = null;
+		private Map<String, FileStamp> stamps = null;
+
+		private transient int keyCount = 0;
+		private transient long[] keyHighs = new long[16];
+		private transient long[] keyLows = new long[16];
+		private transient int[] firstEntries = new int[16];
+		private transient int[] lastEntries = new int[16];
+		private transient IdentifierIndex compactKeys = new IdentifierIndex();
+		private transient Map<Identifier, Integer> objectKeys = new HashMap<>();
+		private transient Identifier[] keyObjects = new Identifier[16]; // only for identifiers that are not compact
+
+		private transient int entryCount = 0;
+		private transient PathDictionary pathDictionary = new PathDictionary(); // folders of the entries
+		private transient int[] entryFolders = new int[16];
+		private transient String[] names = new String[16];
+		private transient int lastFolder = PathDictionary.ROOT; // of the last entry, which the next entry often shares
+		private transient int[] entryKeys = new int[16];
+		private transient int[] nextEntries = new int[16];
+		private transient long[] sizes = new long[16]; // file stamps; a negative size means no stamp
+		private transient long[] modificationTimes = new long[16];
+		private transient String[] fileKeys = new String[16];
+
+		private transient Map<String, Integer> reusableEntries = null; // Step 1 entries by location, for incremental scans
+		private transient Map<String, Integer> reusableFileKeys = null; // Step 1 entries by file key
+		private transient FolderInfo reusedFrom = null;
+		private transient int reusedCount = 0;
+		private transient boolean skipUnchangedFolders = false;
+		private transient int unchangedFolderCount = 0;
+		private transient Snapshot.Writer snapshotWriter = null;
+
+		private transient Map<String, FolderIndex.Summary> folderSummaries = new HashMap<>(); // by relative path, "" is the folder itself
+		private transient FolderIndex folderIndex = null; // built when needed, see getFolderIndex()
+		private transient boolean summaryHashesValid = false; // read from a snapshot and no entry added since
+
+		public FolderInfo(File folder, String method, String hash) {
 			this.method = method;
+			this.hash = hash;
 			if (!folder.isDirectory()) {
 				throw new IllegalArgumentException("Folder " + folder.getAbsolutePath() + " is not a directory.");
 			}
 			this.folder = folder;
 		}
 
+		private Object readResolve() throws IOException {
+			FolderInfo results = new FolderInfo(folder, method, hash);
+			for (Map.Entry<Identifier, List<String>> entry : idsToLocs.entrySet()) {
+				for (String location : entry.getValue()) {
+					results.addId(entry.getKey(), location, stamps == null ? null : stamps.get(location));
+				}
+			}
+			return results;
+		}
+
 		public File getFolder() {
 			return folder;
 		}
 
+		// Builds a map of all identifiers and their locations; callers that go through many files should use entries
 		public Map<Identifier, List<String>> getIds() {
-			return idsToLocs;
+			Map<Identifier, List<String>> ids = new LinkedHashMap<>();
+			for (int key = 0; key < keyCount; key++) {
+				ids.put(getKeyIdentifier(key), getKeyLocations(key));
+			}
+			return ids;
+		}
+
+		public synchronized void addId(Identifier id, String relativePath) {
+			addEntry(id, relativePath, null);
+		}
+
+		public synchronized void addId(Identifier id, String relativePath, FileStamp stamp) throws IOException {
+			addEntry(id, relativePath, stamp);
+			if (snapshotWriter != null) {
+				snapshotWriter.write(relativePath, id, stamp);
+			}
+		}
+
+		private void addEntry(Identifier id, String relativePath, FileStamp stamp) {
+			folderIndex = null;
+			summaryHashesValid = false;
+			int key = findKey(id);
+			if (key == NONE) {
+				key = addKey(id);
+			}
+			if (entryCount == names.length) {
+				int capacity = entryCount * 2;
+				entryFolders = Arrays.copyOf(entryFolders, capacity);
+				names = Arrays.copyOf(names, capacity);
+				entryKeys = Arrays.copyOf(entryKeys, capacity);
+				nextEntries = Arrays.copyOf(nextEntries, capacity);
+				sizes = Arrays.copyOf(sizes, capacity);
+				modificationTimes = Arrays.copyOf(modificationTimes, capacity);
+				fileKeys = Arrays.copyOf(fileKeys, capacity);
+			}
+			int entry = entryCount++;
+			int separator = relativePath.lastIndexOf(File.separatorChar);
+			if (separator < 0) {
+				lastFolder = PathDictionary.ROOT;
+			} else {
+				String lastPath = pathDictionary.getPath(lastFolder);
+				if (lastPath.length() != separator || !relativePath.startsWith(lastPath)) {
+					lastFolder = pathDictionary.folder(relativePath.substring(0, separator));
+				}
+			}
+			entryFolders[entry] = lastFolder;
+			names[entry] = relativePath.substring(separator + 1);
+			entryKeys[entry] = key;
+			nextEntries[entry] = NONE;
+			sizes[entry] = stamp == null ? -1 : stamp.getSize();
+			modificationTimes[entry] = stamp == null ? 0 : stamp.getModificationTime();
+			fileKeys[entry] = stamp == null ? null : stamp.getFileKey();
+			if (firstEntries[key] == NONE) {
+				firstEntries[key] = entry;
+			} else {
+				nextEntries[lastEntries[key]] = entry;
+			}
+			lastEntries[key] = entry;
 		}
 
-		public void addId(Identifier id, String relativePath) {
-			idsToLocs.putIfAbsent(id, new ArrayList<String>());
-			idsToLocs.get(id).add(relativePath);
+		private int addKey(Identifier id) {
+			if (keyCount == firstEntries.length) {
+				int capacity = keyCount * 2;
+				keyHighs = Arrays.copyOf(keyHighs, capacity);
+				keyLows = Arrays.copyOf(keyLows, capacity);
+				firstEntries = Arrays.copyOf(firstEntries, capacity);
+				lastEntries = Arrays.copyOf(lastEntries, capacity);
+				keyObjects = Arrays.copyOf(keyObjects, capacity);
+			}
+			int key = keyCount++;
+			if (id instanceof CompactIdentifier) {
+				CompactIdentifier compact = (CompactIdentifier) id;
+				keyHighs[key] = compact.getHigh();
+				keyLows[key] = compact.getLow();
+				compactKeys.put(compact.getHigh(), compact.getLow(), key);
+			} else {
+				keyObjects[key] = id;
+				objectKeys.put(id, key);
+			}
+			firstEntries[key] = NONE;
+			return key;
+		}
+
+		// Returns the key of this identifier, or -1 if no file has it
+		public int findKey(Identifier id) {
+			if (id instanceof CompactIdentifier) {
+				CompactIdentifier compact = (CompactIdentifier) id;
+				return compactKeys.get(compact.getHigh(), compact.getLow());
+			}
+			Integer key = objectKeys.get(id);
+			return key == null ? NONE : key;
+		}
+
+		// Returns the key in this FolderInfo of the identifier that has the given key in other, or -1
+		public int findKey(FolderInfo other, int otherKey) {
+			if (other.keyObjects[otherKey] == null) {
+				return compactKeys.get(other.keyHighs[otherKey], other.keyLows[otherKey]);
+			}
+			Integer key = objectKeys.get(other.keyObjects[otherKey]);
+			return key == null ? NONE : key;
+		}
+
+		public int getKeyCount() {
+			return keyCount;
+		}
+
+		public Identifier getKeyIdentifier(int key) {
+			if (keyObjects[key] != null) {
+				return keyObjects[key];
+			}
+			switch (method) {
+			case CHECKSUMS:
+				return new ChecksumIdentifier(keyHighs[key], keyLows[key], Math.min(FileHasher.checksumLength(getHash()), ChecksumIdentifier.MAX_LENGTH));
+			case DATE_AND_SIZE:
+				return new DateAndSizeIdentifier(keyHighs[key], 0, keyLows[key], 0);
+			case INODES:
+				return new InodeIdentifier(keyHighs[key], keyLows[key]);
+			default:
+				throw new IllegalStateException("Method " + method + " has no compact identifiers");
+			}
+		}
+
+		public int getFirstEntry(int key) {
+			return firstEntries[key];
+		}
+
+		// Returns the next entry with the same key, or -1
+		public int getNextEntry(int entry) {
+			return nextEntries[entry];
+		}
+
+		public List<String> getKeyLocations(int key) {
+			List<String> locations = new ArrayList<>();
+			for (int entry = firstEntries[key]; entry != NONE; entry = nextEntries[entry]) {
+				locations.add(getRelativePath(entry));
+			}
+			return locations;
+		}
+
+		public int getEntryCount() {
+			return entryCount;
+		}
+
+		public int getEntryKey(int entry) {
+			return entryKeys[entry];
+		}
+
+		public String getRelativePath(int entry) {
+			return pathDictionary.path(entryFolders[entry], names[entry]);
+		}
+
+		// The path of the folder of the entry, "" for the folder itself
+		public String getEntryFolder(int entry) {
+			return pathDictionary.getPath(entryFolders[entry]);
+		}
+
+		// The folders that have files, and the folders above them, except the folder itself
+		public List<String> getFolderPaths() {
+			List<String> folders = new ArrayList<>(pathDictionary.getCount() - 1);
+			for (int folder = PathDictionary.ROOT + 1; folder < pathDictionary.getCount(); folder++) {
+				folders.add(pathDictionary.getPath(folder));
+			}
+			return folders;
+		}
+
+		public Identifier getIdentifier(int entry) {
+			return getKeyIdentifier(entryKeys[entry]);
+		}
+
+		public FileStamp getStamp(int entry) {
+			return sizes[entry] < 0 ? null : new FileStamp(sizes[entry], modificationTimes[entry], fileKeys[entry]);
+		}
+
+		public void writeTo(Snapshot.Writer writer) throws IOException {
+			for (int entry = 0; entry < entryCount; entry++) {
+				writer.write(getRelativePath(entry), getIdentifier(entry), getStamp(entry));
+			}
+		}
+
+		// Every location added from now on is also written to the snapshot
+		public void setSnapshotWriter(Snapshot.Writer snapshotWriter) {
+			this.snapshotWriter = snapshotWriter;
+		}
+
+		public void reuseIdentifiersFrom(FolderInfo previous) {
+			reusedFrom = previous;
+			reusableEntries = new HashMap<>();
+			reusableFileKeys = new HashMap<>();
+			if (!previous.getMethod().equals(method) || !previous.getHash().equals(getHash())) {
+				return;
+			}
+			// These identifiers refer to the location of the file
+			boolean byFileKey = !CHECKSUMS_AND_DATE_AND_SIZE.equals(method);
+			for (int entry = 0; entry < previous.entryCount; entry++) {
+				if (previous.sizes[entry] >= 0) {
+					reusableEntries.put(previous.getRelativePath(entry), entry);
+					if (byFileKey && previous.fileKeys[entry] != null) {
+						reusableFileKeys.put(previous.fileKeys[entry], entry);
+					}
+				}
+			}
+		}
+
+		// Returns the identifier recorded for this location by the previous scan if the file looks untouched since then,
+		// or the identifier of the same file at another location if it was moved or renamed
+		public Identifier getReusableId(String relativePath, FileStamp stamp) {
+			if (reusableEntries == null) {
+				return null;
+			}
+			Integer entry = reusableEntries.get(relativePath);
+			if ((entry == null || !stamp.equals(reusedFrom.getStamp(entry))) && stamp.getFileKey() != null) {
+				entry = reusableFileKeys.get(stamp.getFileKey());
+			}
+			if (entry == null || !stamp.equals(reusedFrom.getStamp(entry))) {
+				return null;
+			}
+			synchronized (this) {
+				reusedCount++;
+			}
+			return reusedFrom.getIdentifier(entry);
+		}
+
+		public synchronized int getReusedCount() {
+			return reusedCount;
+		}
+
+		// Files of folders with the same modification time and number of entries as in the previous scan are not
+		// looked at again. A folder's modification time changes when files are added, removed or renamed in it,
+		// but not when a file is modified in place, so such changes are only found by a scan without this option.
+		public void setSkipUnchangedFolders(boolean skipUnchangedFolders) {
+			this.skipUnchangedFolders = skipUnchangedFolders;
+		}
+
+		public synchronized int getUnchangedFolderCount() {
+			return unchangedFolderCount;
+		}
+
+		// Records a folder that a scan listed. If it is unchanged since the previous scan, its files are added as
+		// that scan found them, and its subfolders then are returned, to be scanned in turn, since the modification
+		// time of a folder does not tell about folders under it. Returns null if the files have to be scanned.
+		public List<String> addFolder(String relativePath, long modificationTime, int entryCount) throws IOException {
+			long recorded = modificationTime > System.currentTimeMillis() - RECENT_MILLIS ? FolderIndex.UNKNOWN : modificationTime;
+			synchronized (this) {
+				folderSummaries.put(relativePath, new FolderIndex.Summary(recorded, entryCount, null));
+			}
+			if (!skipUnchangedFolders || reusedFrom == null || !reusedFrom.getMethod().equals(method) || !reusedFrom.getHash().equals(getHash())) {
+				return null;
+			}
+			FolderIndex.Summary previous = reusedFrom.folderSummaries.get(relativePath);
+			if (previous == null || previous.getModificationTime() == FolderIndex.UNKNOWN || previous.getModificationTime() != modificationTime
+					|| previous.getEntryCount() != entryCount) {
+				return null;
+			}
+			FolderIndex previousIndex = reusedFrom.getFolderIndex();
+			int[] entries = previousIndex.getEntries(relativePath);
+			for (int entry : entries) {
+				addId(reusedFrom.getIdentifier(entry), reusedFrom.getRelativePath(entry), reusedFrom.getStamp(entry));
+			}
+			synchronized (this) {
+				reusedCount += entries.length;
+				unchangedFolderCount++;
+			}
+			return previousIndex.getSubfolders(relativePath);
+		}
+
+		// For folders read from a snapshot, with the hash that was saved with them
+		public synchronized void addFolder(String relativePath, long modificationTime, int entryCount, Long hash) {
+			folderSummaries.put(relativePath, new FolderIndex.Summary(modificationTime, entryCount, hash));
+			summaryHashesValid = hash != null;
+		}
+
+		// The files and folders that the filter includes, for a comparison with a scan that used it
+		public FolderInfo filter(PathFilter filter) throws IOException {
+			FolderInfo filtered = new FolderInfo(folder, method, hash);
+			for (int entry = 0; entry < entryCount; entry++) {
+				String relativePath = getRelativePath(entry);
+				if (filter.acceptsPath(relativePath, false)) {
+					filtered.addId(getIdentifier(entry), relativePath, getStamp(entry));
+				}
+			}
+			for (Map.Entry<String, FolderIndex.Summary> entry : getFolderSummaries().entrySet()) {
+				if (entry.getKey().isEmpty() || filter.acceptsPath(entry.getKey(), true)) {
+					// The hashes are those of the files included
+					filtered.addFolder(entry.getKey(), entry.getValue().getModificationTime(), entry.getValue().getEntryCount(), null);
+				}
+			}
+			return filtered;
+		}
+
+		public synchronized Map<String, FolderIndex.Summary> getFolderSummaries() {
+			return folderSummaries;
+		}
+
+		// Whether folders have hashes, which needs identifiers that are fixed once a file is scanned
+		public boolean hasFolderHashes() {
+			return CHECKSUMS.equals(method) || DATE_AND_SIZE.equals(method) || INODES.equals(method);
+		}
+
+		// Whether a file or a folder of this state has the path, looked up in the folder of the path
+		public boolean hasPath(String relativePath) {
+			FolderIndex index = getFolderIndex();
+			if (index.hasFolder(relativePath)) {
+				return true;
+			}
+			for (int entry : index.getEntries(FolderIndex.parent(relativePath))) {
+				if (getRelativePath(entry).equals(relativePath)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		public synchronized FolderIndex getFolderIndex() {
+			if (folderIndex == null) {
+				folderIndex = new FolderIndex(this);
+			}
+			return folderIndex;
+		}
+
+		// The hash of the folder read from a snapshot, or of the current entries
+		public long getFolderHash(String relativePath) {
+			synchronized (this) {
+				FolderIndex.Summary summary = folderSummaries.get(relativePath);
+				if (summaryHashesValid && summary != null && summary.getHash() != null) {
+					return summary.getHash();
+				}
+			}
+			return getFolderIndex().getHash(relativePath);
+		}
+
+		// Hash of the location and identifier of an entry, only for compact identifiers
+		long getEntryHash(int entry) {
+			int key = entryKeys[entry];
+			// The hash of the path, without building it
+			long hash = hash(FNV_OFFSET, pathDictionary.getPath(entryFolders[entry]));
+			if (entryFolders[entry] != PathDictionary.ROOT) {
+				hash = (hash ^ File.separatorChar) * FNV_PRIME;
+			}
+			hash = hash(hash, names[entry]);
+			return mix(mix(hash ^ keyHighs[key]) ^ keyLows[key]);
+		}
+
+		// Parallel scans add entries in no particular order, so entries are renumbered in the order of their locations
+		public void sortLocations() {
+			Integer[] order = new Integer[entryCount];
+			for (int i = 0; i < entryCount; i++) {
+				order[i] = i;
+			}
+			Arrays.sort(order, (a, b) -> pathDictionary.compare(entryFolders[a], names[a], entryFolders[b], names[b]));
+			int[] sortedFolders = new int[names.length];
+			String[] sortedNames = new String[names.length];
+			int[] sortedKeys = new int[names.length];
+			long[] sortedSizes = new long[names.length];
+			long[] sortedTimes = new long[names.length];
+			String[] sortedFileKeys = new String[names.length];
+			for (int i = 0; i < entryCount; i++) {
+				int entry = order[i];
+				sortedFolders[i] = entryFolders[entry];
+				sortedNames[i] = names[entry];
+				sortedKeys[i] = entryKeys[entry];
+				sortedSizes[i] = sizes[entry];
+				sortedTimes[i] = modificationTimes[entry];
+				sortedFileKeys[i] = fileKeys[entry];
+			}
+			folderIndex = null;
+			entryFolders = sortedFolders;
+			names = sortedNames;
+			entryKeys = sortedKeys;
+			sizes = sortedSizes;
+			modificationTimes = sortedTimes;
+			fileKeys = sortedFileKeys;
+			Arrays.fill(firstEntries, 0, keyCount, NONE);
+			for (int entry = 0; entry < entryCount; entry++) {
+				int key = entryKeys[entry];
+				nextEntries[entry] = NONE;
+				if (firstEntries[key] == NONE) {
+					firstEntries[key] = entry;
+				} else {
+					nextEntries[lastEntries[key]] = entry;
+				}
+				lastEntries[key] = entry;
+			}
 		}
 
 		public List<String> getRelativePaths(Identifier id) {
-			return idsToLocs.get(id);
+			int key = findKey(id);
+			return key == NONE ? null : getKeyLocations(key);
 		}
 
 		public String getMethod() {
 			return this.method;
 		}
 
+		public String getHash() {
+			return hash == null ? FileHasher.MD5 : hash;
+		}
+
 		@Override
 		public boolean equals(Object obj) {
 			if (obj instanceof FolderInfo) {
 				FolderInfo other = (FolderInfo) obj;
 
-				if (getIds().size() != other.getIds().size()) {
+				if (keyCount != other.keyCount || entryCount != other.entryCount) {
 					return false;
 				}
-				for (Map.Entry<Identifier, List<String>> entry : idsToLocs.entrySet()) {
-
-					Identifier ident = entry.getKey();
-					List<String> pathsForIdent = entry.getValue();
-
-					List<String> pathsForIdentInOther = other.getRelativePaths(ident);
-
-					if (pathsForIdentInOther == null || !arraysMatch(pathsForIdent, pathsForIdentInOther)) {
+				if (hasFolderHashes() && method.equals(other.method) && getHash().equals(other.getHash())) {
+					return getFolderHash("") == other.getFolderHash("");
+				}
+				for (int key = 0; key < keyCount; key++) {
+					int otherKey = other.findKey(this, key);
+					if (otherKey == NONE || !DiffEngine.sortedLocations(this, key).equals(DiffEngine.sortedLocations(other, otherKey))) {
 						return false;
 					}
-
 				}
 				return true;
 			}
@@ -657,7 +1552,7 @@ public class Copier {
 
 		@Override
 		public int hashCode() {
-			return getIds().hashCode();
+			return keyCount * 31 + entryCount;
 		}
 
 	}
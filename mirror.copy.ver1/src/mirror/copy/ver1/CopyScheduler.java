@@ -0,0 +1,384 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Copies files on a pool of workers. Large files are transferred by the file system with FileChannel.transferTo,
+// small files are copied in batches through a buffer reused by each worker. The number of copies that read or
+// write one file store at the same time is limited. A failed copy is retried, and the result of every copy is
+// reported through its future.
+// Copies of one file that wait at the same time, e.g. to several target folders, are joined: the file is read once
+// and written to every destination, and a destination that fails does not fail the others.
+class CopyScheduler implements AutoCloseable {
+
+	static final long LARGE_FILE_SIZE = 1 << 20;
+	private static final int BATCH_FILES = 64;
+	private static final long BATCH_BYTES = 8 << 20;
+	private static final int MAX_ATTEMPTS = 3;
+	private static final int BUFFER_SIZE = 256 << 10;
+	private static final long THROTTLED_PART = 1 << 20;
+
+	private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+	};
+
+	private final ExecutorService workers;
+	private final int copiesPerStore;
+	private final ConcurrentLinkedQueue<Request> smallFiles = new ConcurrentLinkedQueue<>();
+	private final Map<File, Request> waiting = new ConcurrentHashMap<>();
+	private final Map<File, Limit> readLimits = new ConcurrentHashMap<>();
+	private final Map<File, Limit> writeLimits = new ConcurrentHashMap<>();
+	private final Map<FileStore, Limit> readLimitsByStore = new ConcurrentHashMap<>();
+	private final Map<FileStore, Limit> writeLimitsByStore = new ConcurrentHashMap<>();
+	private final AtomicInteger limitCount = new AtomicInteger();
+	private final AtomicLong copiedBytes = new AtomicLong();
+	private boolean quiet = false;
+	private Throttle throttle = null;
+
+	public CopyScheduler(int threads, int copiesPerStore) {
+		this.workers = Executors.newFixedThreadPool(threads);
+		this.copiesPerStore = copiesPerStore;
+	}
+
+	// Copies are not printed, only their errors
+	public void setQuiet(boolean quiet) {
+		this.quiet = quiet;
+	}
+
+	// Copied bytes are counted against the limits, large files are transferred in parts then
+	public void setThrottle(Throttle throttle) {
+		this.throttle = throttle;
+	}
+
+	public long getCopiedBytes() {
+		return copiedBytes.get();
+	}
+
+	// Copies fromFolder/from to toFolder/to, which must not exist yet, and keeps its modification time
+	public CompletableFuture<Void> copy(File fromFolder, String from, File toFolder, String to) {
+		Destination destination = new Destination(toFolder, to);
+		try {
+			destination.copyTo.toPath();
+		} catch (InvalidPathException e) {
+			// Joined with other copies of the file, it would fail them too
+			destination.result.completeExceptionally(e);
+			return destination.result;
+		}
+		schedule(new File(fromFolder, from), destination);
+		return destination.result;
+	}
+
+	@Override
+	public void close() {
+		workers.shutdown();
+		try {
+			workers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void schedule(File copyFrom, Destination destination) {
+		Request request = waiting.get(copyFrom);
+		if (request != null && request.join(destination)) {
+			return;
+		}
+		request = new Request(copyFrom);
+		request.join(destination);
+		waiting.put(copyFrom, request);
+		if (request.size >= LARGE_FILE_SIZE) {
+			Request large = request;
+			workers.execute(() -> run(large));
+		} else {
+			smallFiles.add(request);
+			workers.execute(this::runSmallFiles);
+		}
+	}
+
+	private void run(Request request) {
+		List<Request> batch = new ArrayList<>(1);
+		batch.add(request);
+		run(batch);
+	}
+
+	// Takes whatever small files are waiting, so most of these tasks find nothing left to do
+	private void runSmallFiles() {
+		List<Request> batch = new ArrayList<>();
+		long bytes = 0;
+		Request next;
+		while (batch.size() < BATCH_FILES && bytes < BATCH_BYTES && (next = smallFiles.poll()) != null) {
+			batch.add(next);
+			bytes += next.size;
+		}
+		if (!batch.isEmpty()) {
+			run(batch);
+		}
+	}
+
+	// Permits are kept for consecutive copies between the same folders. They are always acquired in the order of
+	// the limits, so workers that copy to several file stores do not wait for each other forever.
+	private void run(List<Request> batch) {
+		List<Limit> held = Collections.emptyList();
+		try {
+			for (Request request : batch) {
+				List<Destination> destinations = request.start();
+				waiting.remove(request.copyFrom, request);
+				try {
+					Set<Limit> limits = new TreeSet<>();
+					limits.add(limit(readLimits, readLimitsByStore, request.copyFrom.getParentFile()));
+					for (Destination destination : destinations) {
+						limits.add(limit(writeLimits, writeLimitsByStore, destination.copyTo.getParentFile()));
+					}
+					if (!held.equals(new ArrayList<>(limits))) {
+						release(held);
+						held = Collections.emptyList();
+						for (Limit limit : limits) {
+							limit.acquireUninterruptibly();
+						}
+						held = new ArrayList<>(limits);
+					}
+					attempt(request.copyFrom, destinations);
+				} catch (RuntimeException e) {
+					// e.g. a path that the file system does not accept; the copies fail instead of never completing
+					for (Destination destination : destinations) {
+						destination.result.completeExceptionally(e);
+					}
+				}
+			}
+		} finally {
+			release(held);
+		}
+	}
+
+	private static void release(List<Limit> limits) {
+		for (Limit limit : limits) {
+			limit.release();
+		}
+	}
+
+	private Limit limit(Map<File, Limit> byFolder, Map<FileStore, Limit> byStore, File folder) {
+		return byFolder.computeIfAbsent(folder, f -> {
+			try {
+				return byStore.computeIfAbsent(Files.getFileStore(f.toPath()), s -> new Limit(copiesPerStore, limitCount.incrementAndGet()));
+			} catch (IOException e) {
+				// Copies of this folder fail anyway, and are reported then
+				return new Limit(copiesPerStore, limitCount.incrementAndGet());
+			}
+		});
+	}
+
+	private void attempt(File copyFrom, List<Destination> destinations) {
+		for (Destination destination : destinations) {
+			if (!quiet) {
+				System.out.println("Copy " + copyFrom.getAbsolutePath() + " to " + destination.copyTo.getAbsolutePath());
+			}
+			destination.attempts++;
+		}
+		long size = transfer(copyFrom, destinations);
+		for (Destination destination : destinations) {
+			IOException e = destination.error;
+			if (e == null) {
+				copiedBytes.addAndGet(size);
+				destination.result.complete(null);
+			} else if (e instanceof FileAlreadyExistsException || e instanceof NoSuchFileException) {
+				// Another try would find the same files
+				destination.result.completeExceptionally(e);
+			} else {
+				try {
+					Files.deleteIfExists(destination.copyTo.toPath());
+				} catch (IOException e1) {
+					// the retry reports it
+				}
+				if (destination.attempts < MAX_ATTEMPTS) {
+					System.out.println("Error copying " + copyFrom.getAbsolutePath() + ", retrying: " + e);
+					destination.error = null;
+					schedule(copyFrom, destination);
+				} else {
+					destination.result.completeExceptionally(e);
+				}
+			}
+		}
+	}
+
+	// Sets the error of every destination that could not be written; returns the size of the file
+	private long transfer(File copyFrom, List<Destination> destinations) {
+		long size = 0;
+		List<Destination> open = new ArrayList<>(destinations.size());
+		try (FileChannel in = FileChannel.open(copyFrom.toPath(), StandardOpenOption.READ)) {
+			for (Destination destination : destinations) {
+				try {
+					destination.out = FileChannel.open(destination.copyTo.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+					open.add(destination);
+				} catch (IOException e) {
+					destination.error = e;
+				}
+			}
+			size = in.size();
+			if (open.size() == 1 && size >= LARGE_FILE_SIZE) {
+				Destination destination = open.get(0);
+				try {
+					boolean inParts = throttle != null && throttle.limitsBytes();
+					for (long position = 0; position < size;) {
+						long part = inParts ? Math.min(size - position, THROTTLED_PART) : size - position;
+						if (throttle != null) {
+							throttle.read(part);
+							throttle.write(part);
+						}
+						long transferred = in.transferTo(position, part, destination.out);
+						if (transferred <= 0) {
+							throw new IOException("File " + copyFrom.getAbsolutePath() + " was truncated while it was copied");
+						}
+						position += transferred;
+					}
+				} catch (IOException e) {
+					destination.error = e;
+				}
+			} else if (!open.isEmpty()) {
+				ByteBuffer buffer = buffers.get();
+				buffer.clear();
+				int read;
+				while ((read = in.read(buffer)) >= 0) {
+					if (throttle != null) {
+						throttle.read(read);
+						throttle.write((long) read * open.size());
+					}
+					buffer.flip();
+					write(buffer, open);
+					buffer.clear();
+				}
+			}
+		} catch (IOException e) {
+			// The file could not be read, so no destination is complete
+			for (Destination destination : destinations) {
+				if (destination.error == null) {
+					destination.error = e;
+				}
+			}
+		} finally {
+			for (Destination destination : open) {
+				try {
+					destination.out.close();
+				} catch (IOException e) {
+					if (destination.error == null) {
+						destination.error = e;
+					}
+				}
+				destination.out = null;
+			}
+		}
+		for (Destination destination : open) {
+			if (destination.error == null) {
+				try {
+					Files.setLastModifiedTime(destination.copyTo.toPath(), Files.getLastModifiedTime(copyFrom.toPath()));
+				} catch (IOException e) {
+					destination.error = e;
+				}
+			}
+		}
+		return size;
+	}
+
+	private static void write(ByteBuffer buffer, List<Destination> destinations) {
+		for (Destination destination : destinations) {
+			if (destination.error != null) {
+				continue;
+			}
+			ByteBuffer data = buffer.duplicate();
+			try {
+				while (data.hasRemaining()) {
+					destination.out.write(data);
+				}
+			} catch (IOException e) {
+				destination.error = e;
+			}
+		}
+	}
+
+	// Copies of one file that are waiting for a worker
+	private static class Request {
+		final File copyFrom;
+		final long size;
+		private final List<Destination> destinations = new ArrayList<>(1);
+		private boolean started = false;
+
+		Request(File copyFrom) {
+			this.copyFrom = copyFrom;
+			this.size = copyFrom.length();
+		}
+
+		// Returns false if the file is already being copied
+		synchronized boolean join(Destination destination) {
+			if (started) {
+				return false;
+			}
+			destinations.add(destination);
+			return true;
+		}
+
+		synchronized List<Destination> start() {
+			started = true;
+			return destinations;
+		}
+	}
+
+	private static class Destination {
+		final File copyTo;
+		final CompletableFuture<Void> result = new CompletableFuture<>();
+		int attempts = 0;
+		FileChannel out = null;
+		IOException error = null;
+
+		Destination(File toFolder, String to) {
+			this.copyTo = new File(toFolder, to);
+		}
+	}
+
+	// The copies that may read or write a file store at the same time, ordered by creation
+	@SuppressWarnings("serial")
+	private static class Limit extends Semaphore implements Comparable<Limit> {
+		private final int order;
+
+		Limit(int permits, int order) {
+			super(permits);
+			this.order = order;
+		}
+
+		@Override
+		public int compareTo(Limit other) {
+			return Integer.compare(order, other.order);
+		}
+	}
+}
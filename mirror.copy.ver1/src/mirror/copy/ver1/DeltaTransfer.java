@@ -0,0 +1,288 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// Updates a file in place from a new version of it, rsync-style. The old file is split into blocks, each with a weak
+// rolling checksum and a strong checksum. The new file is scanned with a window that rolls one byte at a time, and
+// every window that matches a block becomes a reference to that block; everything else is literal data. Only blocks
+// that moved and literal data are written, so a large file that changed in a few places is not rewritten.
+// A block is only referenced at or after the position where it is written, since everything before that position
+// may already be overwritten. A file with other hard links must not be updated in place, as they would change too.
+final class DeltaTransfer {
+
+	private static final int MIN_BLOCK_SIZE = 4096;
+	private static final int MAX_BLOCK_SIZE = 1 << 20;
+	private static final int READ_SIZE = 1 << 20;
+
+	private DeltaTransfer() {
+	}
+
+	// Receives the delta of the new file in the order of positions in the new file
+	static interface Sink {
+		void match(long blockOffset, long position, int length) throws IOException;
+
+		void literal(long position, byte[] data, int offset, int length) throws IOException;
+	}
+
+	// Rewrites target so that it has the content and the modification time of source; returns the number of bytes written.
+	// Callers check hasOtherLinks first.
+	static long update(File source, File target) throws IOException {
+		long written;
+		try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			Signature signature = Signature.of(out, blockSize(out.size()));
+			InPlaceSink sink = new InPlaceSink(out, signature.blockSize);
+			long size = delta(in, signature, sink);
+			out.truncate(size);
+			written = sink.written;
+		}
+		Files.setLastModifiedTime(target.toPath(), Files.getLastModifiedTime(source.toPath()));
+		return written;
+	}
+
+	// Whether other names share the file, or the file system cannot tell
+	static boolean hasOtherLinks(File file) throws IOException {
+		try {
+			return ((Number) Files.getAttribute(file.toPath(), "unix:nlink")).intValue() > 1;
+		} catch (UnsupportedOperationException | IllegalArgumentException e) {
+			return true;
+		}
+	}
+
+	// About the square root of the size, as rsync does, so that the number of blocks and their size grow alike
+	static int blockSize(long size) {
+		int blockSize = MIN_BLOCK_SIZE;
+		while (blockSize < MAX_BLOCK_SIZE && (long) blockSize * blockSize < size) {
+			blockSize <<= 1;
+		}
+		return blockSize;
+	}
+
+	// Returns the size of the new file
+	static long delta(FileChannel in, Signature signature, Sink sink) throws IOException {
+		int blockSize = signature.blockSize;
+		byte[] buffer = new byte[Math.max(4 * blockSize, READ_SIZE)];
+		long bufferOffset = 0; // position of buffer[0] in the new file
+		int filled = 0;
+		int window = 0;
+		int literal = 0; // start of literal data not given to the sink yet
+		boolean eof = false;
+		boolean rolling = false;
+		int a = 0;
+		int b = 0;
+		while (true) {
+			if (window + blockSize > filled && !eof) {
+				if (literal < window) {
+					sink.literal(bufferOffset + literal, buffer, literal, window - literal);
+				}
+				System.arraycopy(buffer, window, buffer, 0, filled - window);
+				bufferOffset += window;
+				filled -= window;
+				literal = window = 0;
+				while (filled < buffer.length) {
+					int read = in.read(ByteBuffer.wrap(buffer, filled, buffer.length - filled));
+					if (read < 0) {
+						eof = true;
+						break;
+					}
+					filled += read;
+				}
+				continue;
+			}
+			if (window + blockSize > filled) {
+				break;
+			}
+			if (!rolling) {
+				a = 0;
+				b = 0;
+				for (int i = 0; i < blockSize; i++) {
+					int x = buffer[window + i] & 0xFF;
+					a = (a + x) & 0xFFFF;
+					b = (b + (blockSize - i) * x) & 0xFFFF;
+				}
+				rolling = true;
+			}
+			long block = signature.find(a | (b << 16), buffer, window, bufferOffset + window);
+			if (block >= 0) {
+				if (literal < window) {
+					sink.literal(bufferOffset + literal, buffer, literal, window - literal);
+				}
+				sink.match(block, bufferOffset + window, blockSize);
+				window += blockSize;
+				literal = window;
+				rolling = false;
+				continue;
+			}
+			if (window + blockSize < filled) {
+				int removed = buffer[window] & 0xFF;
+				int added = buffer[window + blockSize] & 0xFF;
+				a = (a - removed + added) & 0xFFFF;
+				b = (b - blockSize * removed + a) & 0xFFFF;
+			} else {
+				rolling = false;
+			}
+			window++;
+		}
+		if (literal < filled) {
+			sink.literal(bufferOffset + literal, buffer, literal, filled - literal);
+		}
+		return bufferOffset + filled;
+	}
+
+	// Checksums of the full blocks of the old file. Blocks with the same content are kept once, with the largest
+	// offset, which is the one that stays usable the longest.
+	static class Signature {
+		private final int blockSize;
+		private final int[] weaks;
+		private final long[] strongs;
+		private final IdentifierIndex firstNodes;
+		private int[] nodeBlocks;
+		private int[] nextNodes;
+		private int nodes = 0;
+
+		private Signature(int blockSize, int blocks) {
+			this.blockSize = blockSize;
+			this.weaks = new int[blocks];
+			this.strongs = new long[blocks];
+			this.firstNodes = new IdentifierIndex(blocks);
+			this.nodeBlocks = new int[Math.max(16, blocks)];
+			this.nextNodes = new int[nodeBlocks.length];
+		}
+
+		static Signature of(FileChannel channel, int blockSize) throws IOException {
+			int blocks = (int) (channel.size() / blockSize);
+			Signature signature = new Signature(blockSize, blocks);
+			ByteBuffer buffer = ByteBuffer.allocate(Math.max(blockSize, READ_SIZE / blockSize * blockSize));
+			long position = 0;
+			for (int block = 0; block < blocks;) {
+				buffer.clear();
+				while (buffer.hasRemaining()) {
+					int read = channel.read(buffer, position + buffer.position());
+					if (read < 0) {
+						break;
+					}
+				}
+				position += buffer.position();
+				buffer.flip();
+				for (; block < blocks && buffer.remaining() >= blockSize; block++) {
+					signature.add(block, buffer);
+				}
+				if (buffer.hasRemaining() || buffer.limit() == 0) {
+					// The file was truncated, the missing blocks just do not match
+					break;
+				}
+			}
+			return signature;
+		}
+
+		private void add(int block, ByteBuffer buffer) {
+			byte[] data = buffer.array();
+			int start = buffer.arrayOffset() + buffer.position();
+			int a = 0;
+			int b = 0;
+			for (int i = 0; i < blockSize; i++) {
+				int x = data[start + i] & 0xFF;
+				a = (a + x) & 0xFFFF;
+				b = (b + (blockSize - i) * x) & 0xFFFF;
+			}
+			int weak = a | (b << 16);
+			ByteBuffer slice = buffer.slice();
+			slice.limit(blockSize);
+			long strong = FileHasher.xxHash64(slice);
+			buffer.position(buffer.position() + blockSize);
+			weaks[block] = weak;
+			strongs[block] = strong;
+			int first = firstNodes.get(weak, 0);
+			for (int node = first; node != IdentifierIndex.ABSENT; node = nextNodes[node]) {
+				if (strongs[nodeBlocks[node]] == strong) {
+					nodeBlocks[node] = block;
+					return;
+				}
+			}
+			if (nodes == nodeBlocks.length) {
+				nodeBlocks = Arrays.copyOf(nodeBlocks, nodes * 2);
+				nextNodes = Arrays.copyOf(nextNodes, nodes * 2);
+			}
+			nodeBlocks[nodes] = block;
+			nextNodes[nodes] = first;
+			firstNodes.put(weak, 0, nodes++);
+		}
+
+		// Offset of a block with the content of data[offset, offset + blockSize) that starts at or after position,
+		// preferably at position itself, or -1
+		long find(int weak, byte[] data, int offset, long position) {
+			int first = firstNodes.get(weak, 0);
+			if (first == IdentifierIndex.ABSENT) {
+				return -1;
+			}
+			long strong = FileHasher.xxHash64(ByteBuffer.wrap(data, offset, blockSize));
+			if (position % blockSize == 0 && position / blockSize < weaks.length) {
+				int block = (int) (position / blockSize);
+				if (weaks[block] == weak && strongs[block] == strong) {
+					return position;
+				}
+			}
+			for (int node = first; node != IdentifierIndex.ABSENT; node = nextNodes[node]) {
+				int block = nodeBlocks[node];
+				if (strongs[block] == strong && (long) block * blockSize >= position) {
+					return (long) block * blockSize;
+				}
+			}
+			return -1;
+		}
+	}
+
+	// Applies the delta to the old file itself. Blocks that are matched where they already are, are not written.
+	private static class InPlaceSink implements Sink {
+		private final FileChannel file;
+		private final ByteBuffer block;
+		long written = 0;
+
+		InPlaceSink(FileChannel file, int blockSize) {
+			this.file = file;
+			this.block = ByteBuffer.allocate(blockSize);
+		}
+
+		@Override
+		public void match(long blockOffset, long position, int length) throws IOException {
+			if (blockOffset == position) {
+				return;
+			}
+			block.clear();
+			block.limit(length);
+			while (block.hasRemaining()) {
+				if (file.read(block, blockOffset + block.position()) < 0) {
+					throw new IOException("Block at " + blockOffset + " is missing");
+				}
+			}
+			block.flip();
+			write(block, position);
+		}
+
+		@Override
+		public void literal(long position, byte[] data, int offset, int length) throws IOException {
+			write(ByteBuffer.wrap(data, offset, length), position);
+		}
+
+		private void write(ByteBuffer data, long position) throws IOException {
+			int start = data.position();
+			written += data.remaining();
+			while (data.hasRemaining()) {
+				file.write(data, position + data.position() - start);
+			}
+		}
+	}
+}
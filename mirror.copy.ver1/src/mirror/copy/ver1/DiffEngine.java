@@ -0,0 +1,152 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import mirror.copy.ver1.Copier.FolderInfo;
+import mirror.copy.ver1.Copier.Identifier;
+
+// Compares two states of a folder. Identifiers of one state are found in the other through its key index, and
+// the locations of an identifier are compared by merging both location lists in path order, so the whole
+// comparison takes O(n log n) regardless of how many files share an identifier. When both states have folder
+// hashes, only identifiers of files in folders whose hash differs are compared.
+final class DiffEngine {
+
+	private DiffEngine() {
+	}
+
+	// Locations of one identifier that were removed, inserted and kept between two states
+	static class Change {
+		private final Identifier id;
+		private final List<String> removed;
+		private final List<String> inserted;
+		private final List<String> kept;
+
+		Change(Identifier id, List<String> removed, List<String> inserted, List<String> kept) {
+			this.id = id;
+			this.removed = removed;
+			this.inserted = inserted;
+			this.kept = kept;
+		}
+
+		public Identifier getId() {
+			return id;
+		}
+
+		public List<String> getRemoved() {
+			return removed;
+		}
+
+		public List<String> getInserted() {
+			return inserted;
+		}
+
+		public List<String> getKept() {
+			return kept;
+		}
+
+		@Override
+		public String toString() {
+			return id + " -" + removed + " +" + inserted;
+		}
+	}
+
+	// Returns the changes of all identifiers whose locations differ: first identifiers of before in key order,
+	// then identifiers that only exist in after
+	static List<Change> compare(FolderInfo before, FolderInfo after) {
+		BitSet keys1 = new BitSet(before.getKeyCount());
+		BitSet keys2 = new BitSet(after.getKeyCount());
+		if (before.hasFolderHashes() && before.getMethod().equals(after.getMethod()) && before.getHash().equals(after.getHash())) {
+			if (before.getFolderHash("") != after.getFolderHash("")) {
+				changedKeys(before, before.getFolderIndex(), after, after.getFolderIndex(), "", keys1, keys2);
+			}
+			// Identifiers that are in both states are compared from before
+			for (int key2 = keys2.nextSetBit(0); key2 >= 0; key2 = keys2.nextSetBit(key2 + 1)) {
+				int key1 = before.findKey(after, key2);
+				if (key1 != -1) {
+					keys1.set(key1);
+				}
+			}
+		} else {
+			keys1.set(0, before.getKeyCount());
+			keys2.set(0, after.getKeyCount());
+		}
+		List<Change> changes = new ArrayList<>();
+		boolean[] matched = new boolean[after.getKeyCount()];
+		for (int key1 = keys1.nextSetBit(0); key1 >= 0; key1 = keys1.nextSetBit(key1 + 1)) {
+			List<String> locations1 = sortedLocations(before, key1);
+			int key2 = after.findKey(before, key1);
+			if (key2 == -1) {
+				changes.add(new Change(before.getKeyIdentifier(key1), locations1, Collections.<String> emptyList(), Collections.<String> emptyList()));
+				continue;
+			}
+			matched[key2] = true;
+			List<String> locations2 = sortedLocations(after, key2);
+			List<String> removed = new ArrayList<>();
+			List<String> inserted = new ArrayList<>();
+			List<String> kept = new ArrayList<>();
+			int i = 0;
+			int j = 0;
+			while (i < locations1.size() || j < locations2.size()) {
+				int order = i == locations1.size() ? 1 : j == locations2.size() ? -1 : locations1.get(i).compareTo(locations2.get(j));
+				if (order < 0) {
+					removed.add(locations1.get(i++));
+				} else if (order > 0) {
+					inserted.add(locations2.get(j++));
+				} else {
+					kept.add(locations1.get(i++));
+					j++;
+				}
+			}
+			if (!removed.isEmpty() || !inserted.isEmpty()) {
+				changes.add(new Change(before.getKeyIdentifier(key1), removed, inserted, kept));
+			}
+		}
+		for (int key2 = keys2.nextSetBit(0); key2 >= 0; key2 = keys2.nextSetBit(key2 + 1)) {
+			if (!matched[key2]) {
+				changes.add(new Change(after.getKeyIdentifier(key2), Collections.<String> emptyList(), sortedLocations(after, key2), Collections.<String> emptyList()));
+			}
+		}
+		return changes;
+	}
+
+	// Collects the keys of files directly in folders under this folder whose hash differs between both states
+	private static void changedKeys(FolderInfo before, FolderIndex index1, FolderInfo after, FolderIndex index2, String folder, BitSet keys1, BitSet keys2) {
+		if (index1.getHash(folder) == index2.getHash(folder)) {
+			return;
+		}
+		for (int entry : index1.getEntries(folder)) {
+			keys1.set(before.getEntryKey(entry));
+		}
+		for (int entry : index2.getEntries(folder)) {
+			keys2.set(after.getEntryKey(entry));
+		}
+		Set<String> subfolders = new TreeSet<>(index1.getSubfolders(folder));
+		subfolders.addAll(index2.getSubfolders(folder));
+		for (String subfolder : subfolders) {
+			changedKeys(before, index1, after, index2, subfolder, keys1, keys2);
+		}
+	}
+
+	static List<String> sortedLocations(FolderInfo results, int key) {
+		List<String> locations = results.getKeyLocations(key);
+		for (int i = 1; i < locations.size(); i++) {
+			if (locations.get(i - 1).compareTo(locations.get(i)) > 0) {
+				Collections.sort(locations);
+				break;
+			}
+		}
+		return locations;
+	}
+}
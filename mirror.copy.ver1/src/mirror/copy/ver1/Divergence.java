@@ -0,0 +1,64 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import mirror.copy.ver1.Copier.FileStamp;
+
+// A file of a target folder that differs from the snapshot, found by verify
+public final class Divergence {
+
+	public static final String MISSING = "missing";
+	public static final String EXTRA = "extra";
+	public static final String SIZE = "size";
+	public static final String MODIFIED = "modified";
+	public static final String CONTENT = "content";
+
+	private final String kind;
+	private final String path;
+	private final FileStamp expected;
+	private final FileStamp found;
+
+	Divergence(String kind, String path, FileStamp expected, FileStamp found) {
+		this.kind = kind;
+		this.path = path;
+		this.expected = expected;
+		this.found = found;
+	}
+
+	public String getKind() {
+		return kind;
+	}
+
+	// Relative to the target folder
+	public String getPath() {
+		return path;
+	}
+
+	// A line of JSON
+	public String toJson() {
+		StringBuilder json = new StringBuilder("{\"kind\": ");
+		Metrics.string(json, kind).append(", \"path\": ");
+		Metrics.string(json, path);
+		stamp(json, "expected", expected);
+		stamp(json, "found", found);
+		return json.append('}').toString();
+	}
+
+	private static void stamp(StringBuilder json, String name, FileStamp stamp) {
+		if (stamp != null) {
+			json.append(", \"").append(name).append("\": {\"size\": ").append(stamp.getSize()).append(", \"modificationTime\": ")
+					.append(stamp.getModificationTime()).append('}');
+		}
+	}
+
+	@Override
+	public String toString() {
+		return kind + " " + path + (expected == null ? "" : ", expected " + expected.getSize() + " bytes modified at " + expected.getModificationTime())
+				+ (found == null ? "" : ", found " + found.getSize() + " bytes modified at " + found.getModificationTime());
+	}
+}
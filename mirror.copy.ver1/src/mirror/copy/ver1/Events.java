@@ -0,0 +1,82 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+// JFR events of Metrics. Only Metrics refers to this class, and only when the JVM has JFR, so the program still runs
+// on JVMs without it. Record them with e.g. java -XX:StartFlightRecording=filename=run.jfr -jar mirror.copy.ver1.jar
+final class Events {
+
+	private Events() {
+	}
+
+	static void phase(String phase, long items, long bytes, long nanos) {
+		PhaseEvent event = new PhaseEvent();
+		if (event.shouldCommit()) {
+			event.phase = phase;
+			event.items = items;
+			event.bytes = bytes;
+			event.time = nanos;
+			event.commit();
+		}
+	}
+
+	static void operation(String type, String path, boolean succeeded, long nanos) {
+		OperationEvent event = new OperationEvent();
+		if (event.shouldCommit()) {
+			event.type = type;
+			event.path = path;
+			event.succeeded = succeeded;
+			event.latency = nanos;
+			event.commit();
+		}
+	}
+
+	@Name("mirror.copy.Phase")
+	@Label("Phase")
+	@Category("mirror.copy")
+	static class PhaseEvent extends Event {
+		@Label("Phase")
+		String phase;
+
+		@Label("Items")
+		long items;
+
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+
+		@Label("Time")
+		@Timespan
+		long time;
+	}
+
+	@Name("mirror.copy.Operation")
+	@Label("Operation")
+	@Category("mirror.copy")
+	static class OperationEvent extends Event {
+		@Label("Type")
+		String type;
+
+		@Label("Path")
+		String path;
+
+		@Label("Succeeded")
+		boolean succeeded;
+
+		@Label("Latency")
+		@Timespan
+		long latency;
+	}
+}
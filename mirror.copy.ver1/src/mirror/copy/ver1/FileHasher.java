@@ -0,0 +1,252 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// Checksums files through a FileChannel and a large direct buffer reused by each thread
+final class FileHasher {
+
+	static final String MD5 = "md5";
+	static final String SHA256 = "sha256";
+	static final String XXHASH64 = "xxhash64";
+
+	static final int SAMPLE_BLOCK_SIZE = 4096;
+
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		}
+	};
+
+	private FileHasher() {
+	}
+
+	static boolean isSupported(String algorithm) {
+		return MD5.equals(algorithm) || SHA256.equals(algorithm) || XXHASH64.equals(algorithm);
+	}
+
+	static int checksumLength(String algorithm) {
+		switch (algorithm) {
+		case MD5:
+			return 16;
+		case SHA256:
+			return 32;
+		case XXHASH64:
+			return 8;
+		default:
+			throw new IllegalArgumentException("Unknown checksum algorithm " + algorithm);
+		}
+	}
+
+	static byte[] checksum(File file, String algorithm) throws IOException {
+		return checksum(file, algorithm, null);
+	}
+
+	// The time and the bytes read are recorded in metrics, unless it is null
+	static byte[] checksum(File file, String algorithm, Metrics metrics) throws IOException {
+		long start = System.nanoTime();
+		long bytes = 0;
+		Hash hash = newHash(algorithm);
+		ByteBuffer buffer = buffers.get();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			boolean eof = false;
+			while (!eof) {
+				buffer.clear();
+				// Fill the whole buffer so that only the last block of the file is partial
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer) < 0) {
+						eof = true;
+						break;
+					}
+				}
+				buffer.flip();
+				bytes += buffer.remaining();
+				hash.update(buffer);
+			}
+		}
+		byte[] digest = hash.digest();
+		if (metrics != null) {
+			metrics.record(Metrics.HASH, start, 1, bytes);
+		}
+		return digest;
+	}
+
+	// Checksum of the first, the middle and the last blocks of the file. Files that are not larger than
+	// the three blocks are read completely, so their sample is the same as their checksum.
+	static byte[] sample(File file, long size, String algorithm, Metrics metrics) throws IOException {
+		if (isSampleComplete(size)) {
+			return checksum(file, algorithm, metrics);
+		}
+		long start = System.nanoTime();
+		Hash hash = newHash(algorithm);
+		ByteBuffer buffer = buffers.get();
+		buffer.clear();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long[] offsets = { 0, size / 2 - SAMPLE_BLOCK_SIZE / 2, size - SAMPLE_BLOCK_SIZE };
+			for (long offset : offsets) {
+				buffer.limit(buffer.position() + SAMPLE_BLOCK_SIZE);
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer, offset + buffer.position() % SAMPLE_BLOCK_SIZE) < 0) {
+						throw new IOException("File " + file.getAbsolutePath() + " was truncated while it was read");
+					}
+				}
+			}
+		}
+		buffer.flip();
+		long bytes = buffer.remaining();
+		hash.update(buffer);
+		byte[] digest = hash.digest();
+		if (metrics != null) {
+			metrics.record(Metrics.HASH, start, 1, bytes);
+		}
+		return digest;
+	}
+
+	// XXH64 of the remaining bytes of data
+	static long xxHash64(ByteBuffer data) {
+		XxHash64 hash = new XxHash64();
+		hash.update(data);
+		return ByteBuffer.wrap(hash.digest()).getLong();
+	}
+
+	static boolean isSampleComplete(long size) {
+		return size <= 3L * SAMPLE_BLOCK_SIZE;
+	}
+
+	private static Hash newHash(String algorithm) {
+		switch (algorithm) {
+		case MD5:
+			return new DigestHash("MD5");
+		case SHA256:
+			return new DigestHash("SHA-256");
+		case XXHASH64:
+			return new XxHash64();
+		default:
+			throw new IllegalArgumentException("Unknown checksum algorithm " + algorithm);
+		}
+	}
+
+	private static interface Hash {
+		void update(ByteBuffer data);
+
+		byte[] digest();
+	}
+
+	private static class DigestHash implements Hash {
+		private final MessageDigest digest;
+
+		DigestHash(String name) {
+			try {
+				digest = MessageDigest.getInstance(name);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		@Override
+		public void update(ByteBuffer data) {
+			digest.update(data);
+		}
+
+		@Override
+		public byte[] digest() {
+			return digest.digest();
+		}
+	}
+
+	// XXH64 with seed 0. Every update except the last one must be a multiple of 32 bytes long.
+	static class XxHash64 implements Hash {
+		private static final long PRIME1 = 0x9E3779B185EBCA87L;
+		private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+		private static final long PRIME3 = 0x165667B19E3779F9L;
+		private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+		private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+		private long v1 = PRIME1 + PRIME2;
+		private long v2 = PRIME2;
+		private long v3 = 0;
+		private long v4 = -PRIME1;
+		private long length = 0;
+		private ByteBuffer tail = null;
+
+		@Override
+		public void update(ByteBuffer data) {
+			if (tail != null) {
+				throw new IllegalStateException("Only the last update may be unaligned");
+			}
+			ByteBuffer in = data.order(ByteOrder.LITTLE_ENDIAN);
+			length += in.remaining();
+			while (in.remaining() >= 32) {
+				v1 = round(v1, in.getLong());
+				v2 = round(v2, in.getLong());
+				v3 = round(v3, in.getLong());
+				v4 = round(v4, in.getLong());
+			}
+			if (in.hasRemaining()) {
+				tail = in;
+			}
+		}
+
+		@Override
+		public byte[] digest() {
+			long h;
+			if (length >= 32) {
+				h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+				h = merge(h, v1);
+				h = merge(h, v2);
+				h = merge(h, v3);
+				h = merge(h, v4);
+			} else {
+				h = PRIME5;
+			}
+			h += length;
+			if (tail != null) {
+				while (tail.remaining() >= 8) {
+					h ^= round(0, tail.getLong());
+					h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+				}
+				if (tail.remaining() >= 4) {
+					h ^= (tail.getInt() & 0xFFFFFFFFL) * PRIME1;
+					h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+				}
+				while (tail.hasRemaining()) {
+					h ^= (tail.get() & 0xFF) * PRIME5;
+					h = Long.rotateLeft(h, 11) * PRIME1;
+				}
+			}
+			h ^= h >>> 33;
+			h *= PRIME2;
+			h ^= h >>> 29;
+			h *= PRIME3;
+			h ^= h >>> 32;
+			return ByteBuffer.allocate(8).putLong(h).array();
+		}
+
+		private static long round(long acc, long input) {
+			acc += input * PRIME2;
+			acc = Long.rotateLeft(acc, 31);
+			return acc * PRIME1;
+		}
+
+		private static long merge(long acc, long value) {
+			acc ^= round(0, value);
+			return acc * PRIME1 + PRIME4;
+		}
+	}
+}
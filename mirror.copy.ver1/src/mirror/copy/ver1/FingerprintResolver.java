@@ -0,0 +1,172 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import mirror.copy.ver1.Copier.FileStamp;
+import mirror.copy.ver1.Copier.FingerprintIdentifier;
+import mirror.copy.ver1.Copier.FolderInfo;
+
+// Turns the size-only identifiers of a fingerprints scan into identifiers that read as little of the files as possible:
+// - a file whose size is unique is identified by its size and modification time, without being read;
+// - files of the same size are told apart by a sample of their first, middle and last blocks;
+// - files whose samples are still the same, and small files that are read completely anyway, are checksummed.
+// Samples and checksums already known from an incremental scan are not calculated again.
+class FingerprintResolver {
+
+	private final FolderInfo scanned;
+	private final Map<String, FingerprintIdentifier> scannedIds = new HashMap<>();
+	private final Map<String, FileStamp> stamps = new HashMap<>();
+	private final Map<String, String> samples = new HashMap<>();
+	private final Map<String, String> checksums = new HashMap<>();
+	private Map<String, FingerprintIdentifier> resolvedIds = null;
+	private Metrics metrics = null;
+
+	public FingerprintResolver(FolderInfo scanned) {
+		this.scanned = scanned;
+		for (int entry = 0; entry < scanned.getEntryCount(); entry++) {
+			FingerprintIdentifier id = (FingerprintIdentifier) scanned.getIdentifier(entry);
+			String location = scanned.getRelativePath(entry);
+			scannedIds.put(location, id);
+			stamps.put(location, scanned.getStamp(entry));
+			if (id.getSample() != null) {
+				samples.put(location, id.getSample());
+			}
+			if (id.getChecksum() != null) {
+				checksums.put(location, id.getChecksum());
+			}
+		}
+	}
+
+	// Files read for samples and checksums are recorded there
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	// Identifiers that tell apart all files of the scanned folder; this is what the snapshot keeps
+	public FolderInfo resolve() throws Exception {
+		resolvedIds = new HashMap<>();
+		for (List<String> sameSize : groupBySize().values()) {
+			if (sameSize.size() == 1) {
+				String location = sameSize.get(0);
+				FingerprintIdentifier id = scannedIds.get(location);
+				resolvedIds.put(location, new FingerprintIdentifier(id.getSize(), id.getModificationTime(), null, null));
+				continue;
+			}
+			Map<String, List<String>> bySample = new HashMap<>();
+			for (String location : sameSize) {
+				bySample.computeIfAbsent(sample(location), k -> new ArrayList<String>()).add(location);
+			}
+			for (List<String> sameSample : bySample.values()) {
+				for (String location : sameSample) {
+					resolvedIds.put(location, sameSample.size() == 1 ? sampled(location) : checksummed(location));
+				}
+			}
+		}
+		return toFolderInfo(resolvedIds);
+	}
+
+	// Identifiers of the scanned files that are comparable with the identifiers in previous, i.e. read at least
+	// as much of a file as was read of the previous files of the same size
+	public FolderInfo alignWith(FolderInfo previous) throws Exception {
+		if (resolvedIds == null) {
+			resolve();
+		}
+		Map<Long, List<FingerprintIdentifier>> previousBySize = new HashMap<>();
+		for (int key = 0; key < previous.getKeyCount(); key++) {
+			FingerprintIdentifier fingerprint = (FingerprintIdentifier) previous.getKeyIdentifier(key);
+			previousBySize.computeIfAbsent(fingerprint.getSize(), k -> new ArrayList<FingerprintIdentifier>()).add(fingerprint);
+		}
+		Map<String, FingerprintIdentifier> alignedIds = new HashMap<>();
+		for (Map.Entry<String, FingerprintIdentifier> entry : scannedIds.entrySet()) {
+			String location = entry.getKey();
+			FingerprintIdentifier id = entry.getValue();
+			List<FingerprintIdentifier> sameSize = previousBySize.get(id.getSize());
+			if (sameSize == null) {
+				// No previous file can have the same content
+				alignedIds.put(location, resolvedIds.get(location));
+			} else if (sameSize.size() == 1 && sameSize.get(0).getSample() == null && sameSize.get(0).getChecksum() == null) {
+				alignedIds.put(location, new FingerprintIdentifier(id.getSize(), id.getModificationTime(), null, null));
+			} else {
+				String sample = sample(location);
+				Set<String> checksummedSamples = new HashSet<>();
+				for (FingerprintIdentifier other : sameSize) {
+					if (other.getChecksum() != null) {
+						checksummedSamples.add(other.getSample());
+					}
+				}
+				boolean checksummed = checksummedSamples.contains(sample) || FileHasher.isSampleComplete(id.getSize());
+				alignedIds.put(location, checksummed ? checksummed(location) : sampled(location));
+			}
+		}
+		return toFolderInfo(alignedIds);
+	}
+
+	private Map<Long, List<String>> groupBySize() {
+		Map<Long, List<String>> bySize = new HashMap<>();
+		for (Map.Entry<String, FingerprintIdentifier> entry : scannedIds.entrySet()) {
+			bySize.computeIfAbsent(entry.getValue().getSize(), k -> new ArrayList<String>()).add(entry.getKey());
+		}
+		return bySize;
+	}
+
+	private FingerprintIdentifier sampled(String location) throws Exception {
+		FingerprintIdentifier id = scannedIds.get(location);
+		if (FileHasher.isSampleComplete(id.getSize())) {
+			return checksummed(location);
+		}
+		return new FingerprintIdentifier(id.getSize(), id.getModificationTime(), sample(location), null);
+	}
+
+	private FingerprintIdentifier checksummed(String location) throws Exception {
+		FingerprintIdentifier id = scannedIds.get(location);
+		return new FingerprintIdentifier(id.getSize(), id.getModificationTime(), sample(location), checksum(location));
+	}
+
+	private String sample(String location) throws Exception {
+		String sample = samples.get(location);
+		if (sample == null) {
+			sample = Snapshot.toHex(FileHasher.sample(file(location), scannedIds.get(location).getSize(), scanned.getHash(), metrics));
+			samples.put(location, sample);
+		}
+		return sample;
+	}
+
+	private String checksum(String location) throws Exception {
+		String checksum = checksums.get(location);
+		if (checksum == null) {
+			if (FileHasher.isSampleComplete(scannedIds.get(location).getSize())) {
+				checksum = sample(location);
+			} else {
+				checksum = Snapshot.toHex(FileHasher.checksum(file(location), scanned.getHash(), metrics));
+			}
+			checksums.put(location, checksum);
+		}
+		return checksum;
+	}
+
+	private File file(String location) {
+		return new File(scanned.getFolder(), location);
+	}
+
+	private FolderInfo toFolderInfo(Map<String, FingerprintIdentifier> ids) throws Exception {
+		FolderInfo results = new FolderInfo(scanned.getFolder(), scanned.getMethod(), scanned.getHash());
+		for (Map.Entry<String, FingerprintIdentifier> entry : ids.entrySet()) {
+			results.addId(entry.getValue(), entry.getKey(), stamps.get(entry.getKey()));
+		}
+		results.sortLocations();
+		return results;
+	}
+}
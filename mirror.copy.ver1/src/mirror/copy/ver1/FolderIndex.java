@@ -0,0 +1,146 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import mirror.copy.ver1.Copier.FolderInfo;
+
+// The files and subfolders of every folder of a FolderInfo, and a hash of every folder in the manner of a Merkle
+// tree: the sum of the hashes of the location and identifier of every file under the folder. Two states whose
+// folder has the same hash have the same files under it, so a comparison only descends into folders whose hash
+// differs. Hashes are only known for methods with compact identifiers, the identifiers of the other methods are
+// not fixed when the folder is scanned. The index is built when first needed, after all files are added.
+final class FolderIndex {
+
+	static final long UNKNOWN = -1;
+
+	private static final int[] NO_ENTRIES = new int[0];
+
+	private final Map<String, Folder> folders = new HashMap<>();
+	private final boolean hashed;
+
+	FolderIndex(FolderInfo results) {
+		this.hashed = results.hasFolderHashes();
+		folder("");
+		for (String path : results.getFolderSummaries().keySet()) {
+			folder(path);
+		}
+		String lastParent = null;
+		Folder lastFolder = null;
+		for (int entry = 0; entry < results.getEntryCount(); entry++) {
+			String parent = results.getEntryFolder(entry);
+			// The same string for all entries of a folder
+			if (parent != lastParent) {
+				lastParent = parent;
+				lastFolder = folder(parent);
+			}
+			lastFolder.add(entry);
+			if (hashed) {
+				long hash = results.getEntryHash(entry);
+				for (Folder folder = lastFolder; folder != null; folder = folder.parent) {
+					folder.hash += hash;
+				}
+			}
+		}
+	}
+
+	boolean isHashed() {
+		return hashed;
+	}
+
+	// 0 for a folder without files under it
+	long getHash(String path) {
+		Folder folder = folders.get(path);
+		return folder == null ? 0 : folder.hash;
+	}
+
+	boolean hasFolder(String path) {
+		return folders.containsKey(path);
+	}
+
+	// The entries of the files directly in the folder
+	int[] getEntries(String path) {
+		Folder folder = folders.get(path);
+		return folder == null ? NO_ENTRIES : Arrays.copyOf(folder.entries, folder.entryCount);
+	}
+
+	List<String> getSubfolders(String path) {
+		Folder folder = folders.get(path);
+		return folder == null ? Collections.<String> emptyList() : Collections.unmodifiableList(folder.subfolders);
+	}
+
+	static String parent(String path) {
+		int separator = path.lastIndexOf(File.separatorChar);
+		return separator < 0 ? "" : path.substring(0, separator);
+	}
+
+	private Folder folder(String path) {
+		Folder folder = folders.get(path);
+		if (folder == null) {
+			folder = new Folder(path.isEmpty() ? null : folder(parent(path)));
+			if (folder.parent != null) {
+				folder.parent.subfolders.add(path);
+			}
+			folders.put(path, folder);
+		}
+		return folder;
+	}
+
+	// A folder as a scan found it; the hash is only known when the summary was read from a snapshot
+	static class Summary {
+		private final long modificationTime;
+		private final int entryCount;
+		private final Long hash;
+
+		Summary(long modificationTime, int entryCount, Long hash) {
+			this.modificationTime = modificationTime;
+			this.entryCount = entryCount;
+			this.hash = hash;
+		}
+
+		// UNKNOWN if the folder was modified too shortly before the scan to tell later changes from it
+		long getModificationTime() {
+			return modificationTime;
+		}
+
+		// Files, folders and other entries directly in the folder
+		int getEntryCount() {
+			return entryCount;
+		}
+
+		Long getHash() {
+			return hash;
+		}
+	}
+
+	private static class Folder {
+		final Folder parent;
+		final List<String> subfolders = new ArrayList<>();
+		int[] entries = NO_ENTRIES;
+		int entryCount = 0;
+		long hash = 0;
+
+		Folder(Folder parent) {
+			this.parent = parent;
+		}
+
+		void add(int entry) {
+			if (entryCount == entries.length) {
+				entries = Arrays.copyOf(entries, Math.max(4, entryCount * 2));
+			}
+			entries[entryCount++] = entry;
+		}
+	}
+}
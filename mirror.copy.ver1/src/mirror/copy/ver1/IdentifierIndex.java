@@ -0,0 +1,106 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import java.util.Arrays;
+
+// Open-addressing map from a 128-bit identifier, given as two longs, to a non-negative int
+class IdentifierIndex {
+
+	static final int ABSENT = -1;
+
+	private long[] highs;
+	private long[] lows;
+	private int[] values;
+	private int size = 0;
+
+	public IdentifierIndex() {
+		this(16);
+	}
+
+	public IdentifierIndex(int expectedSize) {
+		int capacity = 16;
+		while (capacity < expectedSize * 2) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int get(long high, long low) {
+		int mask = values.length - 1;
+		for (int slot = slot(high, low, mask);; slot = (slot + 1) & mask) {
+			int value = values[slot];
+			if (value == ABSENT || (highs[slot] == high && lows[slot] == low)) {
+				return value;
+			}
+		}
+	}
+
+	// Returns the previous value, or ABSENT
+	public int put(long high, long low, int value) {
+		if (value < 0) {
+			throw new IllegalArgumentException("Negative value " + value);
+		}
+		if ((size + 1) * 2 > values.length) {
+			grow();
+		}
+		int mask = values.length - 1;
+		for (int slot = slot(high, low, mask);; slot = (slot + 1) & mask) {
+			int previous = values[slot];
+			if (previous == ABSENT) {
+				highs[slot] = high;
+				lows[slot] = low;
+				values[slot] = value;
+				size++;
+				return ABSENT;
+			}
+			if (highs[slot] == high && lows[slot] == low) {
+				values[slot] = value;
+				return previous;
+			}
+		}
+	}
+
+	private void grow() {
+		long[] oldHighs = highs;
+		long[] oldLows = lows;
+		int[] oldValues = values;
+		allocate(oldValues.length * 2);
+		int mask = values.length - 1;
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] != ABSENT) {
+				int slot = slot(oldHighs[i], oldLows[i], mask);
+				while (values[slot] != ABSENT) {
+					slot = (slot + 1) & mask;
+				}
+				highs[slot] = oldHighs[i];
+				lows[slot] = oldLows[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	private void allocate(int capacity) {
+		highs = new long[capacity];
+		lows = new long[capacity];
+		values = new int[capacity];
+		Arrays.fill(values, ABSENT);
+	}
+
+	private static int slot(long high, long low, int mask) {
+		long h = high * 0x9E3779B97F4A7C15L + low;
+		h ^= h >>> 32;
+		h *= 0xC2B2AE3D27D4EB4FL;
+		h ^= h >>> 29;
+		return (int) h & mask;
+	}
+}
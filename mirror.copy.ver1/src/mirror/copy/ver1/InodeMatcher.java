@@ -0,0 +1,105 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import mirror.copy.ver1.Copier.FileStamp;
+import mirror.copy.ver1.Copier.FolderInfo;
+import mirror.copy.ver1.Copier.Identifier;
+
+// A file identified by the inodes method gets a new identifier when its file key changes, e.g. when it was copied
+// and the original deleted, or saved anew by an editor, although its content may be the same. Files with a new
+// identifier are compared by checksum with the files of the same size whose identifier is gone; those are read
+// from the target folder, which still has them. A file with the same content gets the identifier of the file that
+// is gone, so Step 2 moves it instead of copying it. Only files whose size matches are read.
+class InodeMatcher {
+
+	private final FolderInfo scanned;
+	private final FolderInfo previous;
+	private final File target;
+	private final Map<Integer, byte[]> goneChecksums = new HashMap<>(); // by entry of previous, read from the target
+	private int matchedCount = 0;
+	private Metrics metrics = null;
+
+	public InodeMatcher(FolderInfo scanned, FolderInfo previous, File target) {
+		this.scanned = scanned;
+		this.previous = previous;
+		this.target = target;
+	}
+
+	// Files read for checksums are recorded there
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	// The scanned state, with the identifiers of previous for files that were found by their checksum
+	public FolderInfo alignWith() throws IOException {
+		Map<Long, List<Integer>> goneBySize = new HashMap<>();
+		for (int key = 0; key < previous.getKeyCount(); key++) {
+			if (scanned.findKey(previous, key) != -1) {
+				continue;
+			}
+			for (int entry = previous.getFirstEntry(key); entry != -1; entry = previous.getNextEntry(entry)) {
+				FileStamp stamp = previous.getStamp(entry);
+				if (stamp != null) {
+					goneBySize.computeIfAbsent(stamp.getSize(), k -> new ArrayList<Integer>()).add(entry);
+				}
+			}
+		}
+		FolderInfo aligned = new FolderInfo(scanned.getFolder(), scanned.getMethod(), scanned.getHash());
+		for (int entry = 0; entry < scanned.getEntryCount(); entry++) {
+			Identifier id = scanned.getIdentifier(entry);
+			FileStamp stamp = scanned.getStamp(entry);
+			List<Integer> candidates = stamp == null ? null : goneBySize.get(stamp.getSize());
+			if (candidates != null && previous.findKey(scanned, scanned.getEntryKey(entry)) == -1) {
+				Identifier match = match(scanned.getRelativePath(entry), candidates);
+				if (match != null) {
+					id = match;
+					matchedCount++;
+				}
+			}
+			aligned.addId(id, scanned.getRelativePath(entry), stamp);
+		}
+		return aligned;
+	}
+
+	public int getMatchedCount() {
+		return matchedCount;
+	}
+
+	private Identifier match(String relativePath, List<Integer> candidates) {
+		byte[] checksum;
+		try {
+			checksum = FileHasher.checksum(new File(scanned.getFolder(), relativePath), scanned.getHash(), metrics);
+		} catch (IOException e) {
+			return null;
+		}
+		for (int entry : candidates) {
+			byte[] goneChecksum = goneChecksums.get(entry);
+			if (goneChecksum == null && !goneChecksums.containsKey(entry)) {
+				try {
+					goneChecksum = FileHasher.checksum(new File(target, previous.getRelativePath(entry)), scanned.getHash(), metrics);
+				} catch (IOException e) {
+					// not in the target folder, it is copied then
+				}
+				goneChecksums.put(entry, goneChecksum);
+			}
+			if (goneChecksum != null && Arrays.equals(checksum, goneChecksum)) {
+				return previous.getIdentifier(entry);
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,290 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Append-only write-ahead log of Step 2:
+//   header:  magic, version, source folder, target folder, number of operations
+//   plan:    per operation its type, origin, path, whether the origin is in the source folder, and the numbers
+//            of the operations it depends on
+//   records: 1, number of a completed operation
+// The plan is on disk before the first operation starts. Completions are synced in batches, but always before
+// an operation that depends on them can start, so an operation without a record never had its dependents run.
+// Operations are therefore repeated safely when Step 2 resumes after a crash.
+class Journal implements Closeable, PlanExecutor.Progress {
+
+	private static final int MAGIC = 0x4D434A4E; // "MCJN"
+	private static final int VERSION = 1;
+	private static final int COMPLETED = 1;
+	private static final int SYNC_RECORDS = 256;
+	private static final long SYNC_MILLIS = 1000;
+
+	private final FileOutputStream file;
+	private final DataOutputStream out;
+	private int unsynced = 0;
+	private long lastSync = System.currentTimeMillis();
+
+	private Journal(File journalFile, boolean append, long validLength) throws IOException {
+		this.file = new FileOutputStream(journalFile, append);
+		if (append) {
+			// Drop a record that was cut off by the crash
+			file.getChannel().truncate(validLength);
+		}
+		this.out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+	}
+
+	// The journal of the first target folder is saved.checksum.journal, the next ones saved.checksum.2.journal and so on
+	static File fileFor(File snapshot, int target) {
+		return new File(snapshot.getPath() + (target == 0 ? "" : "." + (target + 1)) + ".journal");
+	}
+
+	static List<File> filesFor(File snapshot, int targets) {
+		List<File> files = new ArrayList<>(targets);
+		for (int i = 0; i < targets; i++) {
+			files.add(fileFor(snapshot, i));
+		}
+		return files;
+	}
+
+	// The journals of a Step 2 that did not complete
+	static List<File> existing(File snapshot) {
+		List<File> files = new ArrayList<>();
+		for (File file = fileFor(snapshot, 0); file.exists(); file = fileFor(snapshot, files.size())) {
+			files.add(file);
+		}
+		return files;
+	}
+
+	static void deleteAll(File snapshot) throws IOException {
+		for (File file : existing(snapshot)) {
+			Files.delete(file.toPath());
+		}
+	}
+
+	// Writes the plan, and returns the journal to record completed operations in
+	static Journal create(File journalFile, File source, File target, List<Operation> plan) throws IOException {
+		Journal journal = new Journal(journalFile, false, 0);
+		DataOutputStream out = journal.out;
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeUTF(source.getAbsolutePath());
+		out.writeUTF(target.getPath());
+		writePlan(out, plan);
+		journal.sync();
+		return journal;
+	}
+
+	// Continues a journal read by load
+	static Journal append(File journalFile, Unfinished unfinished) throws IOException {
+		return new Journal(journalFile, true, unfinished.length);
+	}
+
+	static Unfinished load(File journalFile) throws IOException {
+		CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+		try (DataInputStream in = new DataInputStream(counter)) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException(journalFile + " is not a journal");
+			}
+			int version = in.readShort();
+			if (version != VERSION) {
+				throw new IOException("Unsupported journal version " + version);
+			}
+			File source = new File(in.readUTF());
+			File target = new File(in.readUTF());
+			List<Operation> plan = readPlan(in);
+			long length = counter.count;
+			Set<Integer> completed = new HashSet<>();
+			try {
+				while (in.readByte() == COMPLETED) {
+					completed.add(in.readInt());
+					length = counter.count;
+				}
+			} catch (EOFException e) {
+				// the last record may have been cut off
+			}
+			return new Unfinished(source, target, plan, completed, length);
+		}
+	}
+
+	// The plan part of a journal, also sent to a TargetAgent
+	static void writePlan(DataOutputStream out, List<Operation> plan) throws IOException {
+		out.writeInt(plan.size());
+		for (Operation operation : plan) {
+			out.writeByte(operation.getType().ordinal());
+			out.writeUTF(operation.getFrom() == null ? "" : operation.getFrom());
+			out.writeUTF(operation.getPath());
+			out.writeBoolean(operation.isFromSource());
+			out.writeInt(operation.getDependencies().size());
+			for (Operation dependency : operation.getDependencies()) {
+				out.writeInt(dependency.getNumber());
+			}
+		}
+	}
+
+	static List<Operation> readPlan(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		if (count < 0) {
+			throw new IOException("Incorrect number of operations " + count);
+		}
+		// The count is not trusted for the capacity, it may come from the network
+		List<Operation> plan = new ArrayList<>(Math.min(count, 1 << 16));
+		List<int[]> dependencies = new ArrayList<>(Math.min(count, 1 << 16));
+		Operation.Type[] types = Operation.Type.values();
+		for (int i = 0; i < count; i++) {
+			int typeNumber = in.readByte();
+			if (typeNumber < 0 || typeNumber >= types.length) {
+				throw new IOException("Incorrect type of operation " + typeNumber);
+			}
+			Operation.Type type = types[typeNumber];
+			String from = in.readUTF();
+			String path = in.readUTF();
+			Operation operation = new Operation(type, from.isEmpty() ? null : from, path, in.readBoolean());
+			operation.setNumber(i + 1);
+			plan.add(operation);
+			int dependencyCount = in.readInt();
+			if (dependencyCount < 0 || dependencyCount > count) {
+				throw new IOException("Incorrect number of dependencies " + dependencyCount);
+			}
+			// Grown as the numbers are read, like the plan
+			int[] numbers = new int[Math.min(dependencyCount, 1 << 16)];
+			for (int j = 0; j < dependencyCount; j++) {
+				if (j == numbers.length) {
+					numbers = Arrays.copyOf(numbers, (int) Math.min(dependencyCount, 2L * j));
+				}
+				numbers[j] = in.readInt();
+				if (numbers[j] < 1 || numbers[j] > count) {
+					throw new IOException("Incorrect dependency " + numbers[j]);
+				}
+			}
+			dependencies.add(numbers);
+		}
+		for (int i = 0; i < count; i++) {
+			for (int number : dependencies.get(i)) {
+				plan.get(i).addDependency(plan.get(number - 1));
+			}
+		}
+		return plan;
+	}
+
+	// Records that an operation is completed. The record is synced at once if other operations wait for it.
+	@Override
+	public synchronized void completed(Operation operation, boolean awaited) throws IOException {
+		out.writeByte(COMPLETED);
+		out.writeInt(operation.getNumber());
+		unsynced++;
+		if (awaited || unsynced >= SYNC_RECORDS || System.currentTimeMillis() - lastSync >= SYNC_MILLIS) {
+			sync();
+		}
+	}
+
+	private void sync() throws IOException {
+		out.flush();
+		file.getChannel().force(false);
+		unsynced = 0;
+		lastSync = System.currentTimeMillis();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			sync();
+		} finally {
+			out.close();
+		}
+	}
+
+	// Counts the bytes read, so that load knows where the last whole record ends
+	private static class CountingInputStream extends FilterInputStream {
+		private long count = 0;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) {
+				count++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				count += n;
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+
+	// A plan read from a journal, with the operations that were completed
+	static class Unfinished {
+		private final File source;
+		private final File target;
+		private final List<Operation> plan;
+		private final Set<Integer> completed;
+		private final long length;
+
+		Unfinished(File source, File target, List<Operation> plan, Set<Integer> completed, long length) {
+			this.source = source;
+			this.target = target;
+			this.plan = plan;
+			this.completed = completed;
+			this.length = length;
+		}
+
+		public File getSource() {
+			return source;
+		}
+
+		public File getTarget() {
+			return target;
+		}
+
+		public List<Operation> getPlan() {
+			return plan;
+		}
+
+		public Set<Integer> getCompleted() {
+			return completed;
+		}
+	}
+}
@@ -0,0 +1,322 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Counters and timings of the phases of a step, and latencies of the operations of Step 2. Every step of a SyncSession
+// has its own, which its result returns; they are printed when a step completes, saved as a JSON report with -report,
+// and sent as JFR events when the JVM records them.
+// The busy time of a phase is summed over all threads working in it, its wall time is from the first start to the
+// last end; so hashing that takes much longer busy than wall time ran on several threads, and a scan whose hashing
+// is as long as the scan itself is bound by hashing, not by listing folders. Time spent in GC during the step is reported too.
+public final class Metrics {
+
+	public static final String SCAN = "scan";
+	public static final String HASH = "hash";
+	public static final String SNAPSHOT_LOAD = "snapshotLoad";
+	public static final String SNAPSHOT_SAVE = "snapshotSave";
+	public static final String DIFF = "diff";
+	public static final String PLAN = "plan";
+	public static final String EXECUTE = "execute";
+	public static final String THROTTLE = "throttle"; // waits for the rate limits of Step 2
+
+	private static final boolean JFR = isJfrAvailable();
+	private final long start = System.nanoTime();
+	private final long startGcCount = gcCount();
+	private final long startGcMillis = gcMillis();
+	private final Map<String, Phase> phases = new LinkedHashMap<>();
+	private final Map<Operation.Type, Latencies> operations = new EnumMap<>(Operation.Type.class);
+
+	Metrics() {
+		for (String phase : new String[] { SCAN, HASH, SNAPSHOT_LOAD, SNAPSHOT_SAVE, DIFF, PLAN, EXECUTE, THROTTLE }) {
+			phases.put(phase, new Phase());
+		}
+		for (Operation.Type type : Operation.Type.values()) {
+			operations.put(type, new Latencies());
+		}
+	}
+
+	// Records work of a phase that began at start, a System.nanoTime()
+	void record(String phase, long start, long items, long bytes) {
+		long end = System.nanoTime();
+		phases.get(phase).add(start, end, items, bytes);
+		if (JFR) {
+			Events.phase(phase, items, bytes, end - start);
+		}
+	}
+
+	// Records an operation of Step 2 that was started at start, or was skipped if start is 0
+	void operation(Operation operation, long start, boolean succeeded) {
+		long nanos = start == 0 ? 0 : System.nanoTime() - start;
+		operations.get(operation.getType()).add(start != 0, succeeded, nanos);
+		if (JFR && start != 0) {
+			Events.operation(operation.getType().name(), operation.getPath(), succeeded, nanos);
+		}
+	}
+
+	// Items of a phase, e.g. files scanned or operations run
+	public long getItems(String phase) {
+		Phase recorded = phases.get(phase);
+		synchronized (recorded) {
+			return recorded.items;
+		}
+	}
+
+	public long getBytes(String phase) {
+		Phase recorded = phases.get(phase);
+		synchronized (recorded) {
+			return recorded.bytes;
+		}
+	}
+
+	// From the first start to the last end of the phase
+	public long getWallMillis(String phase) {
+		Phase recorded = phases.get(phase);
+		synchronized (recorded) {
+			return millis(recorded.wallNanos());
+		}
+	}
+
+	// Summed over all threads working in the phase
+	public long getBusyMillis(String phase) {
+		Phase recorded = phases.get(phase);
+		synchronized (recorded) {
+			return millis(recorded.busyNanos);
+		}
+	}
+
+	public void print() {
+		for (Map.Entry<String, Phase> entry : phases.entrySet()) {
+			Phase phase = entry.getValue();
+			synchronized (phase) {
+				if (phase.records == 0) {
+					continue;
+				}
+				String bytes = phase.bytes == 0 ? "" : ", " + megabytes(phase.bytes) + " MB";
+				String bytesPerSecond = phase.bytes == 0 ? "" : ", " + megabytes(perSecond(phase.bytes, phase.wallNanos())) + " MB/s";
+				System.out.println(entry.getKey() + ": " + phase.items + " items" + bytes + " in " + millis(phase.wallNanos()) + " ms ("
+						+ perSecond(phase.items, phase.wallNanos()) + " items/s" + bytesPerSecond + ", busy " + millis(phase.busyNanos) + " ms)");
+			}
+		}
+		for (Map.Entry<Operation.Type, Latencies> entry : operations.entrySet()) {
+			Latencies latencies = entry.getValue();
+			synchronized (latencies) {
+				if (latencies.count + latencies.skipped == 0) {
+					continue;
+				}
+				System.out.println(entry.getKey() + ": " + latencies.count + " operations, " + latencies.failed + " failed, " + latencies.skipped
+						+ " skipped, p50 " + latencies.percentile(0.5) + " us, p99 " + latencies.percentile(0.99) + " us, max " + latencies.max / 1000 + " us");
+			}
+		}
+		System.out.println("GC: " + (gcCount() - startGcCount) + " collections, " + (gcMillis() - startGcMillis) + " ms");
+	}
+
+	public void writeReport(File file, Map<String, Object> run) throws IOException {
+		StringBuilder json = new StringBuilder();
+		json.append("{\n  \"run\": {");
+		String separator = "";
+		for (Map.Entry<String, Object> entry : run.entrySet()) {
+			json.append(separator).append("\n    ");
+			string(json, entry.getKey()).append(": ");
+			value(json, entry.getValue());
+			separator = ",";
+		}
+		json.append("\n  },\n  \"phases\": {");
+		separator = "";
+		for (Map.Entry<String, Phase> entry : phases.entrySet()) {
+			Phase phase = entry.getValue();
+			synchronized (phase) {
+				json.append(separator).append("\n    ");
+				string(json, entry.getKey()).append(": {\"items\": ").append(phase.items).append(", \"bytes\": ").append(phase.bytes);
+				json.append(", \"wallMillis\": ").append(millis(phase.wallNanos())).append(", \"busyMillis\": ").append(millis(phase.busyNanos));
+				json.append(", \"itemsPerSecond\": ").append(perSecond(phase.items, phase.wallNanos()));
+				json.append(", \"bytesPerSecond\": ").append(perSecond(phase.bytes, phase.wallNanos())).append("}");
+			}
+			separator = ",";
+		}
+		json.append("\n  },\n  \"operations\": {");
+		separator = "";
+		for (Map.Entry<Operation.Type, Latencies> entry : operations.entrySet()) {
+			Latencies latencies = entry.getValue();
+			synchronized (latencies) {
+				json.append(separator).append("\n    ");
+				string(json, entry.getKey().name()).append(": {\"count\": ").append(latencies.count).append(", \"failed\": ").append(latencies.failed);
+				json.append(", \"skipped\": ").append(latencies.skipped).append(", \"totalMillis\": ").append(millis(latencies.total));
+				json.append(", \"p50Micros\": ").append(latencies.percentile(0.5)).append(", \"p90Micros\": ").append(latencies.percentile(0.9));
+				json.append(", \"p99Micros\": ").append(latencies.percentile(0.99)).append(", \"maxMicros\": ").append(latencies.max / 1000);
+				json.append(", \"histogram\": [");
+				String bucketSeparator = "";
+				for (int bucket = 0; bucket < latencies.buckets.length; bucket++) {
+					if (latencies.buckets[bucket] > 0) {
+						json.append(bucketSeparator).append("{\"upToMicros\": ").append(Latencies.upTo(bucket)).append(", \"count\": ")
+								.append(latencies.buckets[bucket]).append("}");
+						bucketSeparator = ", ";
+					}
+				}
+				json.append("]}");
+			}
+			separator = ",";
+		}
+		MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+		json.append("\n  },\n  \"jvm\": {\"runMillis\": ").append(millis(System.nanoTime() - start));
+		json.append(", \"gcCount\": ").append(gcCount() - startGcCount).append(", \"gcMillis\": ").append(gcMillis() - startGcMillis);
+		json.append(", \"heapUsedBytes\": ").append(heap.getUsed()).append(", \"heapMaxBytes\": ").append(heap.getMax());
+		json.append(", \"processors\": ").append(Runtime.getRuntime().availableProcessors()).append("}\n}\n");
+		Files.write(file.toPath(), json.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void value(StringBuilder json, Object value) {
+		if (value == null) {
+			json.append("null");
+		} else if (value instanceof Number || value instanceof Boolean) {
+			json.append(value);
+		} else if (value instanceof List) {
+			json.append("[");
+			String separator = "";
+			for (Object element : (List<?>) value) {
+				json.append(separator);
+				value(json, element);
+				separator = ", ";
+			}
+			json.append("]");
+		} else {
+			string(json, value.toString());
+		}
+	}
+
+	static StringBuilder string(StringBuilder json, String value) {
+		json.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				json.append('\\').append(c);
+			} else if (c < 0x20) {
+				json.append(String.format("\\u%04x", (int) c));
+			} else {
+				json.append(c);
+			}
+		}
+		return json.append('"');
+	}
+
+	private static long millis(long nanos) {
+		return nanos / 1000000;
+	}
+
+	private static long megabytes(long bytes) {
+		return bytes >> 20;
+	}
+
+	private static long perSecond(long amount, long nanos) {
+		return nanos == 0 ? 0 : (long) (amount * 1e9 / nanos);
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(gc.getCollectionCount(), 0);
+		}
+		return count;
+	}
+
+	private static long gcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			millis += Math.max(gc.getCollectionTime(), 0);
+		}
+		return millis;
+	}
+
+	private static boolean isJfrAvailable() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return true;
+		} catch (ClassNotFoundException | LinkageError e) {
+			// Java 8 before update 262
+			return false;
+		}
+	}
+
+	private static class Phase {
+		long records = 0;
+		long items = 0;
+		long bytes = 0;
+		long busyNanos = 0;
+		long firstStart = 0;
+		long lastEnd = 0;
+
+		synchronized void add(long start, long end, long items, long bytes) {
+			if (records == 0 || start - firstStart < 0) {
+				firstStart = start;
+			}
+			if (records == 0 || end - lastEnd > 0) {
+				lastEnd = end;
+			}
+			records++;
+			this.items += items;
+			this.bytes += bytes;
+			busyNanos += end - start;
+		}
+
+		long wallNanos() {
+			return lastEnd - firstStart;
+		}
+	}
+
+	// Bucket b counts latencies below 2^b microseconds that are not in a lower bucket
+	private static class Latencies {
+		final long[] buckets = new long[40];
+		long count = 0;
+		long failed = 0;
+		long skipped = 0;
+		long total = 0;
+		long max = 0;
+
+		synchronized void add(boolean started, boolean succeeded, long nanos) {
+			if (!started) {
+				skipped++;
+				return;
+			}
+			count++;
+			if (!succeeded) {
+				failed++;
+			}
+			total += nanos;
+			max = Math.max(max, nanos);
+			buckets[Math.min(64 - Long.numberOfLeadingZeros(nanos / 1000), buckets.length - 1)]++;
+		}
+
+		static long upTo(int bucket) {
+			return 1L << bucket;
+		}
+
+		// The upper bound of the bucket of the percentile, so at most twice the latency
+		long percentile(double percentile) {
+			long rank = (long) Math.ceil(count * percentile);
+			long seen = 0;
+			for (int bucket = 0; bucket < buckets.length; bucket++) {
+				seen += buckets[bucket];
+				if (seen >= rank && seen > 0) {
+					return upTo(bucket);
+				}
+			}
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// One step of a Plan. Paths are relative to the target folder, except the origin of a copy from the source folder.
+class Operation {
+
+	static enum Type {
+		MKDIR, MOVE, COPY, LINK, DELTA, DELETE, RMDIR, MVDIR
+	}
+
+	private final Type type;
+	private final String from;
+	private final String path;
+	private final boolean fromSource;
+	private final List<Operation> dependencies = new ArrayList<>();
+	private int number = 0;
+
+	Operation(Type type, String from, String path, boolean fromSource) {
+		this.type = type;
+		this.from = from;
+		this.path = path;
+		this.fromSource = fromSource;
+	}
+
+	static Operation mkdir(String path) {
+		return new Operation(Type.MKDIR, null, path, false);
+	}
+
+	static Operation move(String from, String path) {
+		return new Operation(Type.MOVE, from, path, false);
+	}
+
+	static Operation copy(String from, String path, boolean fromSource) {
+		return new Operation(Type.COPY, from, path, fromSource);
+	}
+
+	// A hard link to a file of the target folder, copied where links are not supported
+	static Operation link(String from, String path) {
+		return new Operation(Type.LINK, from, path, false);
+	}
+
+	// An update in place of a file of the target folder from the file of the source folder at the same path
+	static Operation delta(String path) {
+		return new Operation(Type.DELTA, path, path, true);
+	}
+
+	static Operation delete(String path) {
+		return new Operation(Type.DELETE, null, path, false);
+	}
+
+	static Operation rmdir(String path) {
+		return new Operation(Type.RMDIR, null, path, false);
+	}
+
+	// A folder moved with everything in it
+	static Operation mvdir(String from, String path) {
+		return new Operation(Type.MVDIR, from, path, false);
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	// The moved, copied, linked or updated path, null for other operations
+	public String getFrom() {
+		return from;
+	}
+
+	// The created, deleted or written path
+	public String getPath() {
+		return path;
+	}
+
+	public boolean isFromSource() {
+		return fromSource;
+	}
+
+	// Operations that have to complete before this one starts
+	public List<Operation> getDependencies() {
+		return dependencies;
+	}
+
+	void addDependency(Operation operation) {
+		if (operation != null && operation != this && !dependencies.contains(operation)) {
+			dependencies.add(operation);
+		}
+	}
+
+	// Position in the plan, starting from 1
+	public int getNumber() {
+		return number;
+	}
+
+	void setNumber(int number) {
+		this.number = number;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder result = new StringBuilder();
+		result.append(number).append(' ').append(type).append(' ');
+		if (from != null) {
+			result.append(fromSource ? "source:" : "").append(from).append(" -> ");
+		}
+		result.append(path);
+		if (!dependencies.isEmpty()) {
+			result.append(" after");
+			for (int i = 0; i < dependencies.size(); i++) {
+				result.append(i == 0 ? " " : ",").append(dependencies.get(i).getNumber());
+			}
+		}
+		return result.toString();
+	}
+}
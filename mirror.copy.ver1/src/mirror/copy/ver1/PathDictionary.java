@@ -0,0 +1,103 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Relative paths of folders, each kept once and numbered, so a file is kept as the number of its folder and its
+// name instead of its full path. Folders are numbered in the order they are added, a folder after its parent;
+// the folder itself is ROOT. The path of a file is only built when it is asked for.
+final class PathDictionary {
+
+	static final int ROOT = 0;
+
+	private int count = 1;
+	private int[] parents = new int[16];
+	private String[] paths = new String[16];
+	private final Map<String, Integer> ids = new HashMap<>(); // by path, the keys are the strings of paths
+
+	PathDictionary() {
+		parents[ROOT] = -1;
+		paths[ROOT] = "";
+		ids.put(paths[ROOT], ROOT);
+	}
+
+	// The number of the folder, which is added with its parents if it is new
+	int folder(String path) {
+		Integer id = ids.get(path);
+		if (id != null) {
+			return id;
+		}
+		int separator = path.lastIndexOf(File.separatorChar);
+		int parent = folder(separator < 0 ? "" : path.substring(0, separator));
+		if (count == parents.length) {
+			parents = Arrays.copyOf(parents, count * 2);
+			paths = Arrays.copyOf(paths, count * 2);
+		}
+		int folder = count++;
+		parents[folder] = parent;
+		paths[folder] = path;
+		ids.put(path, folder);
+		return folder;
+	}
+
+	int getCount() {
+		return count;
+	}
+
+	// -1 for the root
+	int getParent(int folder) {
+		return parents[folder];
+	}
+
+	// "" for the root
+	String getPath(int folder) {
+		return paths[folder];
+	}
+
+	String path(int folder, String name) {
+		if (folder == ROOT) {
+			return name;
+		}
+		String path = paths[folder];
+		return new StringBuilder(path.length() + 1 + name.length()).append(path).append(File.separatorChar).append(name).toString();
+	}
+
+	// Orders paths given as folder and name like the full paths
+	int compare(int folder1, String name1, int folder2, String name2) {
+		if (folder1 == folder2) {
+			return name1.compareTo(name2);
+		}
+		String path1 = paths[folder1];
+		String path2 = paths[folder2];
+		int length1 = length(path1, name1);
+		int length2 = length(path2, name2);
+		for (int i = 0; i < Math.min(length1, length2); i++) {
+			char c1 = charAt(path1, name1, i);
+			char c2 = charAt(path2, name2, i);
+			if (c1 != c2) {
+				return c1 - c2;
+			}
+		}
+		return length1 - length2;
+	}
+
+	private static int length(String folder, String name) {
+		return folder.isEmpty() ? name.length() : folder.length() + 1 + name.length();
+	}
+
+	private static char charAt(String folder, String name, int i) {
+		if (folder.isEmpty()) {
+			return name.charAt(i);
+		}
+		return i < folder.length() ? folder.charAt(i) : i == folder.length() ? File.separatorChar : name.charAt(i - folder.length() - 1);
+	}
+}
@@ -0,0 +1,192 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+// Include and exclude rules for the files and folders of the source folder, in the manner of rsync: the first rule
+// that matches a path decides, and a path that no rule matches is included. A rule is "+ pattern" or "- pattern";
+// a glob pattern without "/" matches the name of a file or folder at any depth, one with "/" matches its whole
+// path under the source folder, and a pattern that ends with "/" only matches folders. "regex:" patterns match
+// the whole path, with "/" between folders. Files and folders under an excluded folder are excluded with it, and
+// the folder is not scanned at all.
+final class PathFilter {
+
+	static final PathFilter ALL = new PathFilter(Collections.<Rule> emptyList());
+
+	// check results
+	static final int EXCLUDED = 0;
+	static final int INCLUDED = 1;
+	static final int DEPENDS_ON_TYPE = 2;
+
+	private static final String INCLUDE = "+ ";
+	private static final String EXCLUDE = "- ";
+	private static final String REGEX = "regex:";
+
+	private final List<Rule> rules;
+
+	private PathFilter(List<Rule> rules) {
+		this.rules = rules;
+	}
+
+	// Rules as in a rules file; throws IllegalArgumentException for a rule that is not valid
+	static PathFilter of(List<String> rules) {
+		List<Rule> compiled = new ArrayList<>(rules.size());
+		for (String rule : rules) {
+			compiled.add(Rule.of(rule));
+		}
+		return compiled.isEmpty() ? ALL : new PathFilter(compiled);
+	}
+
+	// Rules file: a rule per line, lines that are empty or start with # are skipped
+	static List<String> read(File file) throws IOException {
+		List<String> rules = new ArrayList<>();
+		for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+			if (!line.trim().isEmpty() && !line.startsWith("#")) {
+				rules.add(line);
+			}
+		}
+		return rules;
+	}
+
+	static String include(String pattern) {
+		return INCLUDE + pattern;
+	}
+
+	static String exclude(String pattern) {
+		return EXCLUDE + pattern;
+	}
+
+	boolean isEmpty() {
+		return rules.isEmpty();
+	}
+
+	List<String> getRules() {
+		List<String> texts = new ArrayList<>(rules.size());
+		for (Rule rule : rules) {
+			texts.add(rule.text);
+		}
+		return texts;
+	}
+
+	// Whether the path is included, or DEPENDS_ON_TYPE if that is only known when it is known to be a folder
+	int check(String relativePath) {
+		String path = slashes(relativePath);
+		String name = path.substring(path.lastIndexOf('/') + 1);
+		for (Rule rule : rules) {
+			if (rule.matches(path, name)) {
+				return rule.foldersOnly ? DEPENDS_ON_TYPE : rule.include ? INCLUDED : EXCLUDED;
+			}
+		}
+		return INCLUDED;
+	}
+
+	boolean accepts(String relativePath, boolean folder) {
+		String path = slashes(relativePath);
+		String name = path.substring(path.lastIndexOf('/') + 1);
+		for (Rule rule : rules) {
+			if ((folder || !rule.foldersOnly) && rule.matches(path, name)) {
+				return rule.include;
+			}
+		}
+		return true;
+	}
+
+	// Whether the path and all folders above it are included
+	boolean acceptsPath(String relativePath, boolean folder) {
+		if (rules.isEmpty()) {
+			return true;
+		}
+		if (!accepts(relativePath, folder)) {
+			return false;
+		}
+		for (String parent = FolderIndex.parent(relativePath); !parent.isEmpty(); parent = FolderIndex.parent(parent)) {
+			if (!accepts(parent, true)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return obj instanceof PathFilter && getRules().equals(((PathFilter) obj).getRules());
+	}
+
+	@Override
+	public int hashCode() {
+		return getRules().hashCode();
+	}
+
+	private static String slashes(String relativePath) {
+		return File.separatorChar == '/' ? relativePath : relativePath.replace(File.separatorChar, '/');
+	}
+
+	private static final class Rule {
+		final String text;
+		final boolean include;
+		final boolean foldersOnly;
+		final boolean wholePath;
+		final PathMatcher glob;
+		final Pattern regex;
+
+		private Rule(String text, boolean include, boolean foldersOnly, boolean wholePath, PathMatcher glob, Pattern regex) {
+			this.text = text;
+			this.include = include;
+			this.foldersOnly = foldersOnly;
+			this.wholePath = wholePath;
+			this.glob = glob;
+			this.regex = regex;
+		}
+
+		static Rule of(String text) {
+			boolean include = text.startsWith(INCLUDE);
+			if (!include && !text.startsWith(EXCLUDE)) {
+				throw new IllegalArgumentException("A rule starts with \"" + INCLUDE + "\" or \"" + EXCLUDE + "\": " + text);
+			}
+			String pattern = text.substring(2).trim();
+			boolean foldersOnly = pattern.endsWith("/");
+			if (foldersOnly) {
+				pattern = pattern.substring(0, pattern.length() - 1);
+			}
+			if (pattern.isEmpty()) {
+				throw new IllegalArgumentException("Empty pattern: " + text);
+			}
+			try {
+				if (pattern.startsWith(REGEX)) {
+					return new Rule(text, include, foldersOnly, true, null, Pattern.compile(pattern.substring(REGEX.length())));
+				}
+				boolean wholePath = pattern.contains("/");
+				if (pattern.startsWith("/")) {
+					pattern = pattern.substring(1);
+				}
+				return new Rule(text, include, foldersOnly, wholePath, FileSystems.getDefault().getPathMatcher("glob:" + pattern), null);
+			} catch (PatternSyntaxException e) {
+				throw new IllegalArgumentException("Incorrect pattern " + text + ": " + e.getDescription());
+			}
+		}
+
+		boolean matches(String path, String name) {
+			if (regex != null) {
+				return regex.matcher(path).matches();
+			}
+			return glob.matches(Paths.get(wholePath ? path : name));
+		}
+	}
+}
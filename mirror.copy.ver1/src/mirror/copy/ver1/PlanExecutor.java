@@ -0,0 +1,499 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Runs a plan against the target folder. Operations start as soon as the operations they depend on are completed,
+// so independent operations run in parallel; copies are handed to a CopyScheduler. An operation whose dependency
+// failed is skipped. Operations that are ready at the same time run moves, deletes and folders first, so the
+// folders of the target folder take their new shape early and bulk copies follow.
+// An operation that throws an unexpected exception fails like one that throws an IOException, so that every
+// operation is completed and execute returns.
+class PlanExecutor {
+
+	private final File source;
+	private final File target;
+	private final int threads;
+	private final CopyScheduler copies;
+	private Progress progress = null;
+	private Map<String, CompletableFuture<Void>> arrivals = null;
+	private Set<String> staged = null;
+	private Throttle throttle = null;
+	private Metrics metrics = null;
+	private boolean resuming = false;
+	private boolean quiet = false;
+
+	public PlanExecutor(File source, File target, int threads, CopyScheduler copies) {
+		this.source = source;
+		this.target = target;
+		this.threads = threads;
+		this.copies = copies;
+	}
+
+	// Completed operations are recorded, e.g. in the journal
+	public void setProgress(Progress progress) {
+		this.progress = progress;
+	}
+
+	// Files of the source folder that are still being received, by relative path; operations that read one of
+	// them start when it has arrived, and fail if it does not
+	public void setArrivals(Map<String, CompletableFuture<Void>> arrivals) {
+		this.arrivals = arrivals;
+	}
+
+	// Files of the source folder, by relative path, that are on the file system of the target folder and that only
+	// one copy reads; they are moved into place instead of copied
+	public void setStaged(Set<String> staged) {
+		this.staged = staged;
+	}
+
+	// Every operation, and the bytes of updates in place, are counted against the limits
+	public void setThrottle(Throttle throttle) {
+		this.throttle = throttle;
+	}
+
+	// Latencies of the operations are recorded there
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	// Operations may have been done before a crash without being recorded, so they tolerate finding their result
+	public void setResuming(boolean resuming) {
+		this.resuming = resuming;
+	}
+
+	// Operations are not printed, only their errors
+	public void setQuiet(boolean quiet) {
+		this.quiet = quiet;
+	}
+
+	// Returns the number of operations that failed or were skipped
+	public int execute(List<Operation> plan) throws InterruptedException {
+		return execute(plan, Collections.<Integer> emptySet());
+	}
+
+	// Runs the operations of the plan whose numbers are not in completed
+	public int execute(List<Operation> plan, Set<Integer> completed) throws InterruptedException {
+		int count = plan.size();
+		List<List<Operation>> dependents = new ArrayList<>(count);
+		AtomicIntegerArray waiting = new AtomicIntegerArray(count);
+		AtomicIntegerArray blocked = new AtomicIntegerArray(count);
+		AtomicLongArray started = new AtomicLongArray(count);
+		AtomicIntegerArray finished = new AtomicIntegerArray(count);
+		for (int i = 0; i < count; i++) {
+			dependents.add(new ArrayList<Operation>());
+		}
+		for (Operation operation : plan) {
+			if (completed.contains(operation.getNumber())) {
+				continue;
+			}
+			for (Operation dependency : operation.getDependencies()) {
+				if (!completed.contains(dependency.getNumber())) {
+					dependents.get(dependency.getNumber() - 1).add(operation);
+					waiting.incrementAndGet(operation.getNumber() - 1);
+				}
+			}
+		}
+		AtomicInteger failures = new AtomicInteger();
+		CountDownLatch done = new CountDownLatch(count - completed.size());
+		AtomicLong submitted = new AtomicLong();
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>());
+		try {
+			Runner runner = new Runner(pool, submitted, dependents, waiting, blocked, started, finished, failures, done);
+			List<Operation> ready = new ArrayList<>();
+			for (Operation operation : plan) {
+				if (!completed.contains(operation.getNumber()) && waiting.get(operation.getNumber() - 1) == 0) {
+					ready.add(operation);
+				}
+			}
+			ready.sort(Comparator.comparingInt(operation -> priority(operation.getType())));
+			for (Operation operation : ready) {
+				runner.submit(operation);
+			}
+			done.await();
+		} finally {
+			pool.shutdown();
+		}
+		return failures.get();
+	}
+
+	// Lower first
+	private static int priority(Operation.Type type) {
+		switch (type) {
+		case COPY:
+		case DELTA:
+			return 2;
+		case LINK:
+			return 1;
+		default:
+			return 0;
+		}
+	}
+
+	private class Runner {
+		private final ExecutorService pool;
+		private final AtomicLong submitted;
+		private final List<List<Operation>> dependents;
+		private final AtomicIntegerArray waiting;
+		private final AtomicIntegerArray blocked;
+		private final AtomicLongArray started;
+		private final AtomicIntegerArray finished;
+		private final AtomicInteger failures;
+		private final CountDownLatch done;
+
+		Runner(ExecutorService pool, AtomicLong submitted, List<List<Operation>> dependents, AtomicIntegerArray waiting, AtomicIntegerArray blocked, AtomicLongArray started,
+				AtomicIntegerArray finished, AtomicInteger failures, CountDownLatch done) {
+			this.pool = pool;
+			this.submitted = submitted;
+			this.dependents = dependents;
+			this.waiting = waiting;
+			this.blocked = blocked;
+			this.started = started;
+			this.finished = finished;
+			this.failures = failures;
+			this.done = done;
+		}
+
+		// Copies go to the copy scheduler, which completes them on its own workers
+		void submit(Operation operation) {
+			try {
+				start(operation);
+			} catch (RuntimeException e) {
+				fail(operation, e);
+			}
+		}
+
+		private void fail(Operation operation, RuntimeException e) {
+			System.out.println("Error in operation " + operation + ": " + e);
+			complete(operation, false);
+		}
+
+		private void start(Operation operation) {
+			started.set(operation.getNumber() - 1, System.nanoTime());
+			CompletableFuture<Void> arrival = operation.isFromSource() && arrivals != null ? arrivals.get(operation.getFrom()) : null;
+			if (arrival != null && !arrival.isDone()) {
+				arrival.whenComplete((result, e) -> submit(operation));
+				return;
+			}
+			if (arrival != null && arrival.isCompletedExceptionally()) {
+				System.out.println("Error in operation " + operation + ": the file was not received from the source folder");
+				complete(operation, false);
+				return;
+			}
+			if (throttle != null) {
+				// Waits for the limit on a worker, in the order of priority
+				execute(operation, () -> {
+					throttle.operation();
+					run(operation);
+				});
+			} else {
+				run(operation);
+			}
+		}
+
+		private void run(Operation operation) {
+			switch (operation.getType()) {
+			case COPY:
+				copy(operation);
+				break;
+			case LINK:
+				execute(operation, () -> {
+					if (link(operation)) {
+						complete(operation, true);
+					} else {
+						copy(operation);
+					}
+				});
+				break;
+			case DELTA:
+				execute(operation, () -> {
+					if (update(operation)) {
+						complete(operation, true);
+					} else {
+						copy(operation);
+					}
+				});
+				break;
+			default:
+				execute(operation, () -> complete(operation, apply(operation)));
+				break;
+			}
+		}
+
+		private void execute(Operation operation, Runnable task) {
+			pool.execute(new Task(priority(operation.getType()), submitted.incrementAndGet(), () -> {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					fail(operation, e);
+				}
+			}));
+		}
+
+		private void copy(Operation operation) {
+			if (staged != null && operation.isFromSource() && staged.contains(operation.getFrom())) {
+				execute(operation, () -> complete(operation, moveStaged(operation)));
+				return;
+			}
+			if (resuming && !removeUnfinished(operation)) {
+				complete(operation, false);
+				return;
+			}
+			copies.copy(operation.isFromSource() ? source : target, operation.getFrom(), target, operation.getPath()).whenComplete((result, e) -> {
+				if (e != null) {
+					System.out.println("Error in operation " + operation + ": " + e);
+				}
+				complete(operation, e == null);
+			});
+		}
+
+		// Operations whose dependency failed are skipped here too, in a loop, however long their chain is
+		private void complete(Operation operation, boolean succeeded) {
+			Deque<Operation> skipped = new ArrayDeque<>();
+			finish(operation, succeeded, skipped);
+			while (!skipped.isEmpty()) {
+				Operation next = skipped.poll();
+				System.out.println("Skipped " + next);
+				finish(next, false, skipped);
+			}
+		}
+
+		// An operation that failed with an exception after it was completed is not completed again
+		private void finish(Operation operation, boolean succeeded, Deque<Operation> skipped) {
+			if (finished.getAndSet(operation.getNumber() - 1, 1) != 0) {
+				return;
+			}
+			try {
+				List<Operation> waitingForIt = dependents.get(operation.getNumber() - 1);
+				if (succeeded && progress != null) {
+					try {
+						progress.completed(operation, !waitingForIt.isEmpty());
+					} catch (IOException | RuntimeException e) {
+						System.out.println("Error recording " + operation + ": " + e);
+						succeeded = false;
+					}
+				}
+				if (!succeeded) {
+					failures.incrementAndGet();
+				}
+				if (metrics != null) {
+					metrics.operation(operation, started.get(operation.getNumber() - 1), succeeded);
+				}
+				for (Operation dependent : waitingForIt) {
+					int i = dependent.getNumber() - 1;
+					if (!succeeded) {
+						blocked.set(i, 1);
+					}
+					if (waiting.decrementAndGet(i) == 0) {
+						if (blocked.get(i) == 0) {
+							submit(dependent);
+						} else {
+							skipped.add(dependent);
+						}
+					}
+				}
+			} finally {
+				done.countDown();
+			}
+		}
+	}
+
+	// A copy or a link that was interrupted by a crash is started again
+	private boolean removeUnfinished(Operation operation) {
+		try {
+			Files.deleteIfExists(new File(target, operation.getPath()).toPath());
+			return true;
+		} catch (IOException e) {
+			System.out.println("Error in operation " + operation + ": " + e);
+			return false;
+		}
+	}
+
+	// The staged file already has the modification time of the file in the source folder
+	private boolean moveStaged(Operation operation) {
+		File moveWhat = new File(source, operation.getFrom());
+		File file = new File(target, operation.getPath());
+		if (resuming && !removeUnfinished(operation)) {
+			return false;
+		}
+		try {
+			Files.move(moveWhat.toPath(), file.toPath());
+			if (!quiet) {
+				System.out.println("Move " + moveWhat.getAbsolutePath() + " to " + file.getAbsolutePath());
+			}
+			return true;
+		} catch (IOException e) {
+			System.out.println("Error in operation " + operation + ": " + e);
+			return false;
+		}
+	}
+
+	// Returns false if the file has to be copied instead, e.g. because the file system does not support hard links
+	private boolean link(Operation operation) {
+		File linkTo = new File(target, operation.getFrom());
+		File link = new File(target, operation.getPath());
+		if (resuming && !removeUnfinished(operation)) {
+			return false;
+		}
+		try {
+			Files.createLink(link.toPath(), linkTo.toPath());
+			if (!quiet) {
+				System.out.println("Link " + link.getAbsolutePath() + " to " + linkTo.getAbsolutePath());
+			}
+			return true;
+		} catch (IOException | UnsupportedOperationException e) {
+			// a copy that fails too reports the error
+			return false;
+		}
+	}
+
+	// Returns false if the file has to be copied instead; the partially updated file is removed then
+	private boolean update(Operation operation) {
+		File updateFrom = new File(source, operation.getFrom());
+		File file = new File(target, operation.getPath());
+		try {
+			if (DeltaTransfer.hasOtherLinks(file)) {
+				// The copy replaces this name only, the other names keep the old content
+				if (!quiet) {
+					System.out.println(file.getAbsolutePath() + " has other hard links, copying it");
+				}
+				Files.delete(file.toPath());
+				return false;
+			}
+			if (!quiet) {
+				System.out.println("Update " + file.getAbsolutePath() + " from " + updateFrom.getAbsolutePath());
+			}
+			long written = DeltaTransfer.update(updateFrom, file);
+			if (throttle != null) {
+				// Both files were read, after the fact
+				throttle.read(updateFrom.length() + file.length());
+				throttle.write(written);
+			}
+			if (!quiet) {
+				System.out.println(written + " of " + file.length() + " bytes of " + file.getAbsolutePath() + " written");
+			}
+			return true;
+		} catch (IOException e) {
+			System.out.println("Error updating " + file.getAbsolutePath() + ", copying it: " + e);
+			try {
+				Files.deleteIfExists(file.toPath());
+			} catch (IOException e1) {
+				// the copy reports it
+			}
+			return false;
+		}
+	}
+
+	private boolean apply(Operation operation) {
+		File file = new File(target, operation.getPath());
+		try {
+			switch (operation.getType()) {
+			case MKDIR: {
+				Files.createDirectories(file.toPath());
+				break;
+			}
+			case MOVE:
+			case MVDIR: {
+				File moveWhat = new File(target, operation.getFrom());
+				if (resuming && !moveWhat.exists() && file.exists()) {
+					// moved before the crash
+					break;
+				}
+				if (!quiet) {
+					System.out.println((operation.getType() == Operation.Type.MVDIR ? "Move folder " : "Move ") + moveWhat.getAbsolutePath() + " to "
+							+ file.getAbsolutePath());
+				}
+				Files.move(moveWhat.toPath(), file.toPath());
+				break;
+			}
+			case COPY:
+			case LINK:
+			case DELTA: {
+				throw new IllegalStateException("Copies are run by the copy scheduler");
+			}
+			case DELETE: {
+				if (!quiet) {
+					System.out.println("Delete " + file.getAbsolutePath());
+				}
+				if (!Files.deleteIfExists(file.toPath()) && !resuming) {
+					System.out.println("Error deleting " + file.getAbsolutePath());
+				}
+				break;
+			}
+			case RMDIR: {
+				// Files that are not known to the snapshot keep their folder
+				try {
+					Files.delete(file.toPath());
+					if (!quiet) {
+						System.out.println("Folder deleted");
+					}
+				} catch (DirectoryNotEmptyException | NoSuchFileException e) {
+					// nothing to remove
+				}
+				break;
+			}
+			}
+			return true;
+		} catch (IOException e) {
+			System.out.println("Error in operation " + operation + ": " + e);
+			return false;
+		}
+	}
+
+	// A task of the pool, which runs the tasks of higher priority first and otherwise in the order they were submitted
+	private static class Task implements Runnable, Comparable<Task> {
+		private final int priority;
+		private final long order;
+		private final Runnable task;
+
+		Task(int priority, long order, Runnable task) {
+			this.priority = priority;
+			this.order = order;
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			task.run();
+		}
+
+		@Override
+		public int compareTo(Task other) {
+			return priority != other.priority ? Integer.compare(priority, other.priority) : Long.compare(order, other.order);
+		}
+	}
+
+	// Records completed operations
+	interface Progress {
+		// Operations that depend on this one start only when it returns, if awaited is true
+		void completed(Operation operation, boolean awaited) throws IOException;
+	}
+}
@@ -0,0 +1,616 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import mirror.copy.ver1.Copier.FileStamp;
+import mirror.copy.ver1.Copier.FolderInfo;
+
+// Turns the changes between two states of a folder into operations on the target folder, ordered by their dependencies:
+// - a path is written only after the file that was there has been moved away or deleted;
+// - a file is moved away or deleted only after the copies that read it;
+// - a file is written only after its folder has been created, and a folder is removed only after its files are gone.
+// Moves that wait for each other in a cycle (a swap, or a->b, b->c, c->a) go through a temporary name.
+// With local copies, a new location of content that stays at another location of the target is copied or linked
+// from there, and only content that the target does not have is copied from the source folder.
+// A large file whose content changed at the same path is updated in place instead of being deleted and copied.
+// A folder whose files were moved to another folder under the same paths is moved as a whole.
+class Planner {
+
+	private static final String TEMPORARY_SUFFIX = ".mirror.tmp";
+
+	private boolean localCopies = false;
+	private boolean hardLinks = false;
+	private long deltaThreshold = 0; // 0 means that files are never updated in place
+	private List<File> targets = null; // null means that the target folders are as the state before the changes
+	private PathFilter filter = PathFilter.ALL;
+
+	public void setLocalCopies(boolean localCopies) {
+		this.localCopies = localCopies;
+	}
+
+	// Hard links are created instead of local copies
+	public void setHardLinks(boolean hardLinks) {
+		this.hardLinks = hardLinks;
+	}
+
+	// Files of at least this size are updated in place
+	public void setDeltaThreshold(long deltaThreshold) {
+		this.deltaThreshold = deltaThreshold;
+	}
+
+	// The target folders that the plan is for; folders are only moved as a whole when each of them allows it
+	public void setTargets(List<File> targets) {
+		this.targets = targets;
+	}
+
+	// The rules of the states, files of the target folders that they exclude are left where they are
+	public void setFilter(PathFilter filter) {
+		this.filter = filter;
+	}
+
+	// Returns the operations in an order that satisfies their dependencies, numbered from 1
+	public List<Operation> plan(List<DiffEngine.Change> changes, FolderInfo before, FolderInfo after) {
+		Set<String> oldFolders = folders(before);
+		Set<String> newFolders = folders(after);
+
+		List<Operation> operations = new ArrayList<>();
+		for (String folder : new TreeSet<>(newFolders)) {
+			if (!oldFolders.contains(folder)) {
+				operations.add(Operation.mkdir(folder));
+			}
+		}
+		for (DiffEngine.Change change : changes) {
+			List<String> removed = change.getRemoved();
+			List<String> inserted = change.getInserted();
+			// Kept files are not touched, so copies of them do not wait for anything
+			String local = localCopies && !change.getKept().isEmpty() ? change.getKept().get(0) : null;
+			if (removed.isEmpty()) {
+				for (String location : inserted) {
+					operations.add(local == null ? Operation.copy(location, location, true) : localCopy(local, location, hardLinks));
+				}
+				continue;
+			}
+			int moves = Math.min(removed.size(), inserted.size());
+			for (int i = moves; i < removed.size(); i++) {
+				operations.add(Operation.delete(removed.get(i)));
+			}
+			for (int i = moves; i < inserted.size(); i++) {
+				operations.add(localCopy(local == null ? removed.get(0) : local, inserted.get(i), hardLinks));
+			}
+			for (int i = 0; i < moves; i++) {
+				operations.add(Operation.move(removed.get(i), inserted.get(i)));
+			}
+		}
+		if (deltaThreshold > 0) {
+			operations = updatesInPlace(operations, after);
+		}
+		for (String folder : new TreeSet<>(oldFolders).descendingSet()) {
+			if (!newFolders.contains(folder)) {
+				operations.add(Operation.rmdir(folder));
+			}
+		}
+		operations = moveFolders(operations, before, oldFolders, newFolders);
+
+		Set<String> temporaryNames = new HashSet<>();
+		link(operations, temporaryNames);
+		List<List<Operation>> cycles = cycles(operations);
+		while (!cycles.isEmpty()) {
+			operations = breakCycles(operations, cycles, before, after, temporaryNames);
+			link(operations, temporaryNames);
+			cycles = cycles(operations);
+		}
+		return order(operations);
+	}
+
+	// Replaces the deletion and the copy from the source of the same path by an update in place
+	private List<Operation> updatesInPlace(List<Operation> operations, FolderInfo after) {
+		Set<String> deleted = new HashSet<>();
+		Set<String> copied = new HashSet<>();
+		for (Operation operation : operations) {
+			if (operation.getType() == Operation.Type.DELETE) {
+				deleted.add(operation.getPath());
+			} else if (operation.getType() == Operation.Type.COPY && operation.isFromSource()) {
+				copied.add(operation.getPath());
+			}
+		}
+		Set<String> updated = new HashSet<>();
+		for (int entry = 0; entry < after.getEntryCount(); entry++) {
+			String path = after.getRelativePath(entry);
+			FileStamp stamp = after.getStamp(entry);
+			if (stamp != null && stamp.getSize() >= deltaThreshold && deleted.contains(path) && copied.contains(path)) {
+				updated.add(path);
+			}
+		}
+		List<Operation> result = new ArrayList<>(operations.size());
+		for (Operation operation : operations) {
+			boolean replaced = updated.contains(operation.getPath())
+					&& (operation.getType() == Operation.Type.DELETE || (operation.getType() == Operation.Type.COPY && operation.isFromSource()));
+			if (!replaced) {
+				result.add(operation);
+			} else if (operation.getType() == Operation.Type.COPY) {
+				result.add(Operation.delta(operation.getPath()));
+			}
+		}
+		return result;
+	}
+
+	// Replaces the moves of the files of a folder that only exists before by one move of the folder, when every file
+	// of the folder that is not deleted is moved to the same new folder under the same path, and the new folder did not
+	// exist before. Every other operation on a file of the folder is then done in the moved folder: files that are
+	// deleted or copied from are taken from there, and other files are added to it. See also canMoveFolder.
+	private List<Operation> moveFolders(List<Operation> operations, FolderInfo before, Set<String> oldFolders, Set<String> newFolders) {
+		// The one destination of each old folder, or null if its files go to several
+		Map<String, String> candidates = new HashMap<>();
+		for (Operation operation : operations) {
+			if (operation.getType() != Operation.Type.MOVE) {
+				continue;
+			}
+			String from = operation.getFrom();
+			String to = operation.getPath();
+			for (String folder = parent(from); folder != null; folder = parent(folder)) {
+				if (newFolders.contains(folder)) {
+					// This folder and the folders above it stay
+					break;
+				}
+				String suffix = from.substring(folder.length());
+				String destination = to.endsWith(suffix) ? to.substring(0, to.length() - suffix.length()) : null;
+				if (destination != null && (destination.isEmpty() || oldFolders.contains(destination) || !newFolders.contains(destination))) {
+					destination = null;
+				}
+				if (candidates.containsKey(folder) && !Objects.equals(candidates.get(folder), destination)) {
+					destination = null;
+				}
+				candidates.put(folder, destination);
+			}
+		}
+		Map<String, String> moved = new HashMap<>();
+		Set<String> destinations = new HashSet<>();
+		for (String folder : new TreeSet<>(candidates.keySet())) {
+			if (!folder.equals(movedPath(folder, moved))) {
+				// moved with a folder above it
+				continue;
+			}
+			String destination = candidates.get(folder);
+			if (destination != null && !destinations.contains(destination) && canMoveFolder(folder, destination, before, oldFolders)) {
+				destinations.add(destination);
+				moved.put(folder, destination);
+			}
+		}
+		if (moved.isEmpty()) {
+			return operations;
+		}
+		// Folders that come with a moved folder are not created
+		Set<String> carried = new HashSet<>();
+		for (String folder : oldFolders) {
+			String path = movedPath(folder, moved);
+			if (!path.equals(folder)) {
+				carried.add(path);
+			}
+		}
+		List<Operation> result = new ArrayList<>(operations.size());
+		for (Map.Entry<String, String> folder : new TreeMap<>(moved).entrySet()) {
+			result.add(Operation.mvdir(folder.getKey(), folder.getValue()));
+		}
+		for (Operation operation : operations) {
+			String path = operation.getPath();
+			switch (operation.getType()) {
+			case MKDIR:
+				if (!carried.contains(path)) {
+					result.add(operation);
+				}
+				break;
+			case MOVE: {
+				String from = movedPath(operation.getFrom(), moved);
+				if (!from.equals(path)) {
+					result.add(from.equals(operation.getFrom()) ? operation : Operation.move(from, path));
+				}
+				break;
+			}
+			case COPY:
+			case LINK: {
+				String from = operation.isFromSource() ? operation.getFrom() : movedPath(operation.getFrom(), moved);
+				if (from.equals(operation.getFrom())) {
+					result.add(operation);
+				} else {
+					result.add(operation.getType() == Operation.Type.LINK ? Operation.link(from, path) : Operation.copy(from, path, false));
+				}
+				break;
+			}
+			case DELETE:
+				result.add(Operation.delete(movedPath(path, moved)));
+				break;
+			case RMDIR: {
+				String movedFolder = movedPath(path, moved);
+				if (movedFolder.equals(path)) {
+					result.add(operation);
+				} else if (!moved.containsKey(path) && !newFolders.contains(movedFolder)) {
+					result.add(Operation.rmdir(movedFolder));
+				}
+				break;
+			}
+			default:
+				result.add(operation);
+				break;
+			}
+		}
+		return result;
+	}
+
+	// Whether the folder can be moved in every target folder: the destination does not exist there, and everything
+	// in the folder is known to the state before the changes and included by the rules, so that excluded files and
+	// files that Step 1 does not know stay where they are. Remote target folders cannot be looked at, so their
+	// folders are not moved as a whole. Looking at the folder reads its entries, which is still much less than
+	// a move of each file.
+	private boolean canMoveFolder(String folder, String destination, FolderInfo before, Set<String> oldFolders) {
+		if (targets == null) {
+			return true;
+		}
+		for (File target : targets) {
+			if (RemoteTarget.isRemote(target) || new File(target, destination).exists() || !new File(target, folder).isDirectory()) {
+				return false;
+			}
+			Path root = target.toPath();
+			AtomicBoolean known = new AtomicBoolean(true);
+			try {
+				Files.walkFileTree(new File(target, folder).toPath(), new SimpleFileVisitor<Path>() {
+					@Override
+					public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+						String path = root.relativize(dir).toString();
+						return check(path.equals(folder) || oldFolders.contains(path) && filter.acceptsPath(path, true));
+					}
+
+					@Override
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+						String path = root.relativize(file).toString();
+						return check(before.hasPath(path) && filter.acceptsPath(path, false));
+					}
+
+					private FileVisitResult check(boolean ok) {
+						known.compareAndSet(true, ok);
+						return ok ? FileVisitResult.CONTINUE : FileVisitResult.TERMINATE;
+					}
+				});
+			} catch (IOException e) {
+				return false;
+			}
+			if (!known.get()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// The path after the folders were moved
+	private static String movedPath(String path, Map<String, String> moved) {
+		for (String folder = path; folder != null; folder = parent(folder)) {
+			String destination = moved.get(folder);
+			if (destination != null) {
+				return destination + path.substring(folder.length());
+			}
+		}
+		return path;
+	}
+
+	private static Operation localCopy(String from, String path, boolean hardLink) {
+		return hardLink ? Operation.link(from, path) : Operation.copy(from, path, false);
+	}
+
+	// All folders that contain files of the state, except the root folder
+	private static Set<String> folders(FolderInfo results) {
+		return new HashSet<>(results.getFolderPaths());
+	}
+
+	private static String parent(String path) {
+		return new File(path).getParent();
+	}
+
+	// The path whose previous content this operation moves away or deletes
+	private static String vacatedPath(Operation operation) {
+		switch (operation.getType()) {
+		case MOVE:
+		case MVDIR:
+			return operation.getFrom();
+		case DELETE:
+			return operation.getPath();
+		default:
+			return null;
+		}
+	}
+
+	// Temporary names did not exist before, so writing them does not wait for anything
+	private static void link(List<Operation> operations, Set<String> temporaryNames) {
+		Map<String, Operation> vacating = new HashMap<>();
+		Map<String, List<Operation>> reading = new HashMap<>();
+		Map<String, Operation> creatingFolder = new HashMap<>();
+		Map<String, Operation> removingFolder = new HashMap<>();
+		Map<String, Operation> movingFolder = new HashMap<>();
+		for (Operation operation : operations) {
+			operation.getDependencies().clear();
+			String vacated = vacatedPath(operation);
+			if (vacated != null && !temporaryNames.contains(vacated)) {
+				vacating.put(vacated, operation);
+			}
+			switch (operation.getType()) {
+			case COPY:
+			case LINK:
+				if (!operation.isFromSource()) {
+					reading.computeIfAbsent(operation.getFrom(), k -> new ArrayList<Operation>()).add(operation);
+				}
+				break;
+			case MKDIR:
+				creatingFolder.put(operation.getPath(), operation);
+				break;
+			case RMDIR:
+				removingFolder.put(operation.getPath(), operation);
+				break;
+			case MVDIR:
+				creatingFolder.put(operation.getPath(), operation);
+				movingFolder.put(operation.getPath(), operation);
+				break;
+			default:
+				break;
+			}
+		}
+		List<Operation> none = Collections.emptyList();
+		for (Operation operation : operations) {
+			String path = operation.getPath();
+			switch (operation.getType()) {
+			case MKDIR:
+				operation.addDependency(creatingFolder.get(parent(path)));
+				operation.addDependency(vacating.get(path));
+				break;
+			case MOVE:
+			case MVDIR:
+			case COPY:
+			case LINK:
+				operation.addDependency(creatingFolder.get(parent(path)));
+				operation.addDependency(vacating.get(path));
+				operation.addDependency(removingFolder.get(path));
+				break;
+			case DELTA:
+				// The previous content is overwritten
+				for (Operation reader : reading.getOrDefault(path, none)) {
+					operation.addDependency(reader);
+				}
+				break;
+			case RMDIR:
+				Operation parentRemoval = removingFolder.get(parent(path));
+				if (parentRemoval != null) {
+					parentRemoval.addDependency(operation);
+				}
+				break;
+			default:
+				break;
+			}
+			// Paths in a moved folder, including its subfolders that are not created
+			operation.addDependency(movingFolder(parent(path), movingFolder));
+			if (operation.getFrom() != null && !operation.isFromSource()) {
+				operation.addDependency(movingFolder(parent(operation.getFrom()), movingFolder));
+			}
+			String vacated = vacatedPath(operation);
+			if (vacated != null) {
+				for (Operation reader : reading.getOrDefault(vacated, none)) {
+					operation.addDependency(reader);
+				}
+				for (String folder = parent(vacated); folder != null; folder = parent(folder)) {
+					Operation folderRemoval = removingFolder.get(folder);
+					if (folderRemoval != null) {
+						folderRemoval.addDependency(operation);
+					}
+				}
+			}
+		}
+	}
+
+	private static Operation movingFolder(String folder, Map<String, Operation> movingFolder) {
+		for (; folder != null && !movingFolder.isEmpty(); folder = parent(folder)) {
+			Operation operation = movingFolder.get(folder);
+			if (operation != null) {
+				return operation;
+			}
+		}
+		return null;
+	}
+
+	// Strongly connected components of the dependency graph that have more than one operation, found with
+	// an iterative Tarjan's algorithm
+	private static List<List<Operation>> cycles(List<Operation> operations) {
+		int count = operations.size();
+		for (int i = 0; i < count; i++) {
+			operations.get(i).setNumber(i);
+		}
+		int[] index = new int[count];
+		int[] low = new int[count];
+		int[] nextDependency = new int[count];
+		boolean[] onStack = new boolean[count];
+		Arrays.fill(index, -1);
+		Deque<Integer> stack = new ArrayDeque<>();
+		Deque<Integer> calls = new ArrayDeque<>();
+		List<List<Operation>> cycles = new ArrayList<>();
+		int counter = 0;
+		for (int start = 0; start < count; start++) {
+			if (index[start] != -1) {
+				continue;
+			}
+			index[start] = low[start] = counter++;
+			stack.push(start);
+			onStack[start] = true;
+			calls.push(start);
+			while (!calls.isEmpty()) {
+				int v = calls.peek();
+				List<Operation> dependencies = operations.get(v).getDependencies();
+				if (nextDependency[v] < dependencies.size()) {
+					int w = dependencies.get(nextDependency[v]++).getNumber();
+					if (index[w] == -1) {
+						index[w] = low[w] = counter++;
+						stack.push(w);
+						onStack[w] = true;
+						calls.push(w);
+					} else if (onStack[w]) {
+						low[v] = Math.min(low[v], index[w]);
+					}
+					continue;
+				}
+				calls.pop();
+				if (!calls.isEmpty()) {
+					int caller = calls.peek();
+					low[caller] = Math.min(low[caller], low[v]);
+				}
+				if (low[v] == index[v]) {
+					List<Operation> component = new ArrayList<>();
+					int w;
+					do {
+						w = stack.pop();
+						onStack[w] = false;
+						component.add(operations.get(w));
+					} while (w != v);
+					if (component.size() > 1) {
+						cycles.add(component);
+					}
+				}
+			}
+		}
+		return cycles;
+	}
+
+	// Every cycle goes through a move, since deleted files are never read and copies only read files that are moved or kept.
+	// The move is split in two: away to a temporary name, which does not wait for anything to be vacated, and
+	// from the temporary name to the destination, which follows it in the returned list.
+	// cycles() numbered the operations by their position, and the second moves are spliced in with one pass.
+	// A move is split at most once, so every pass splits moves that were not split before, or fails.
+	private static List<Operation> breakCycles(List<Operation> operations, List<List<Operation>> cycles, FolderInfo before, FolderInfo after,
+			Set<String> temporaryNames) {
+		Set<String> removedFolders = new HashSet<>();
+		for (Operation operation : operations) {
+			if (operation.getType() == Operation.Type.RMDIR) {
+				removedFolders.add(operation.getPath());
+			} else if (operation.getType() == Operation.Type.MVDIR) {
+				removedFolders.add(operation.getFrom());
+			}
+		}
+		Map<Integer, Operation> inserted = new HashMap<>();
+		for (List<Operation> cycle : cycles) {
+			Operation move = null;
+			for (Operation operation : cycle) {
+				if (operation.getType() == Operation.Type.MOVE && !temporaryNames.contains(operation.getFrom())
+						&& !temporaryNames.contains(operation.getPath())) {
+					move = operation;
+					break;
+				}
+			}
+			if (move == null) {
+				throw new IllegalStateException("Operations depend on each other without a move to break the cycle: " + cycle);
+			}
+			String temporary = temporaryName(outsideRemovedFolders(move.getFrom(), removedFolders), before, after, temporaryNames);
+			operations.set(move.getNumber(), Operation.move(move.getFrom(), temporary));
+			inserted.put(move.getNumber(), Operation.move(temporary, move.getPath()));
+		}
+		List<Operation> result = new ArrayList<>(operations.size() + inserted.size());
+		for (int i = 0; i < operations.size(); i++) {
+			result.add(operations.get(i));
+			Operation second = inserted.get(i);
+			if (second != null) {
+				result.add(second);
+			}
+		}
+		return result;
+	}
+
+	// The path next to the highest folder above it that is removed or moved away, so that the temporary name does not
+	// keep the folder from being removed, e.g. c for a/b/c when a is removed
+	private static String outsideRemovedFolders(String path, Set<String> removedFolders) {
+		String highest = null;
+		for (String folder = parent(path); folder != null; folder = parent(folder)) {
+			if (removedFolders.contains(folder)) {
+				highest = folder;
+			}
+		}
+		if (highest == null) {
+			return path;
+		}
+		String name = new File(path).getName();
+		String parent = parent(highest);
+		return parent == null ? name : new File(parent, name).getPath();
+	}
+
+	// A name that no file or folder has before or after the changes, and that no other cycle uses. Most plans have no
+	// cycles, so the states are only looked up when one does.
+	private static String temporaryName(String path, FolderInfo before, FolderInfo after, Set<String> temporaryNames) {
+		String name = path + TEMPORARY_SUFFIX;
+		for (int i = 1; temporaryNames.contains(name) || before.hasPath(name) || after.hasPath(name); i++) {
+			name = path + "." + i + TEMPORARY_SUFFIX;
+		}
+		temporaryNames.add(name);
+		return name;
+	}
+
+	// Topological order that keeps independent operations in the order they were planned
+	private static List<Operation> order(List<Operation> operations) {
+		int count = operations.size();
+		for (int i = 0; i < count; i++) {
+			operations.get(i).setNumber(i);
+		}
+		int[] waiting = new int[count];
+		List<List<Integer>> dependents = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			dependents.add(new ArrayList<Integer>());
+		}
+		for (int i = 0; i < count; i++) {
+			for (Operation dependency : operations.get(i).getDependencies()) {
+				dependents.get(dependency.getNumber()).add(i);
+				waiting[i]++;
+			}
+		}
+		PriorityQueue<Integer> ready = new PriorityQueue<>();
+		for (int i = 0; i < count; i++) {
+			if (waiting[i] == 0) {
+				ready.add(i);
+			}
+		}
+		List<Operation> ordered = new ArrayList<>(count);
+		while (!ready.isEmpty()) {
+			int next = ready.poll();
+			ordered.add(operations.get(next));
+			for (int dependent : dependents.get(next)) {
+				if (--waiting[dependent] == 0) {
+					ready.add(dependent);
+				}
+			}
+		}
+		if (ordered.size() != count) {
+			throw new IllegalStateException((count - ordered.size()) + " of " + count + " operations wait for each other");
+		}
+		for (int i = 0; i < ordered.size(); i++) {
+			ordered.get(i).setNumber(i + 1);
+		}
+		return ordered;
+	}
+}
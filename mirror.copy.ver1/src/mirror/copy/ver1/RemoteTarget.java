@@ -0,0 +1,240 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+// A target folder on another host, where a TargetAgent runs the plan. The plan is sent first, so the agent starts
+// with the moves and deletes while the files to copy are still being sent; they are read from the source folder
+// once, in the order of the plan, and sent as deflated chunks. Completed operations are recorded in the journal
+// on this host. A target folder is given as agent:<host>[:<port>].
+class RemoteTarget {
+
+	static final String PREFIX = "agent:";
+
+	private final String host;
+	private final int port;
+	private final File source;
+	private Throttle throttle = null;
+	private byte[] secret = null;
+	private long sentBytes = 0;
+
+	public RemoteTarget(File target, File source) {
+		String address = target.getPath().substring(PREFIX.length());
+		int separator = address.lastIndexOf(':');
+		if (separator > 0 && address.indexOf(']', separator) < 0) {
+			this.host = address.substring(0, separator);
+			this.port = Integer.parseInt(address.substring(separator + 1));
+		} else {
+			this.host = address;
+			this.port = TargetAgent.DEFAULT_PORT;
+		}
+		this.source = source;
+	}
+
+	// Files read from the source folder are counted against the limits
+	public void setThrottle(Throttle throttle) {
+		this.throttle = throttle;
+	}
+
+	// Shared with the agent
+	public void setSecret(byte[] secret) {
+		this.secret = secret;
+	}
+
+	static boolean isRemote(File target) {
+		return target.getPath().startsWith(PREFIX);
+	}
+
+	// Bytes of the files sent, before compression
+	public long getSentBytes() {
+		return sentBytes;
+	}
+
+	// Returns the number of operations that failed or were skipped. Completed operations are recorded in progress,
+	// if there is one.
+	public int execute(List<Operation> plan, Set<Integer> completed, boolean resuming, PlanExecutor.Progress progress) throws IOException {
+		try (Socket socket = new Socket(host, port)) {
+			socket.setKeepAlive(true);
+			// Messages are flushed when complete, awaited completions should not wait for more
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+			if (in.readInt() != TargetAgent.MAGIC) {
+				throw new IOException(host + ":" + port + " is not a target agent");
+			}
+			int version = in.readShort();
+			if (version != TargetAgent.VERSION) {
+				throw new IOException("Unsupported protocol version " + version + " of the target agent");
+			}
+			byte[] challenge = new byte[TargetAgent.CHALLENGE_LENGTH];
+			in.readFully(challenge);
+			out.writeInt(TargetAgent.MAGIC);
+			out.writeShort(TargetAgent.VERSION);
+			out.write(TargetAgent.authenticate(secret, challenge));
+			out.writeBoolean(resuming);
+			Journal.writePlan(out, plan);
+			out.writeInt(completed.size());
+			for (int number : completed) {
+				out.writeInt(number);
+			}
+			out.flush();
+			ExecutorService sender = Executors.newSingleThreadExecutor();
+			try {
+				Future<Long> sent = sender.submit(() -> send(files(plan, completed), out));
+				int failures = receive(in, out, plan, progress);
+				synchronized (out) {
+					out.writeByte(TargetAgent.BYE);
+					out.flush();
+				}
+				try {
+					sentBytes += sent.get();
+				} catch (InterruptedException | ExecutionException e) {
+					throw new IOException("Error sending files", e);
+				}
+				return failures;
+			} finally {
+				sender.shutdownNow();
+			}
+		}
+	}
+
+	// The files of the source folder that the operations read, in the order they are needed
+	private static List<String> files(List<Operation> plan, Set<Integer> completed) {
+		Set<String> files = new LinkedHashSet<>();
+		for (Operation operation : plan) {
+			if (operation.isFromSource() && !completed.contains(operation.getNumber())) {
+				files.add(operation.getFrom());
+			}
+		}
+		return new ArrayList<>(files);
+	}
+
+	private long send(List<String> files, DataOutputStream out) throws IOException {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		byte[] buffer = new byte[TargetAgent.CHUNK_SIZE];
+		byte[] deflated = new byte[TargetAgent.CHUNK_SIZE];
+		long sent = 0;
+		try {
+			for (String path : files) {
+				File file = new File(source, path);
+				// Errors of the file fail the operations on it, errors of the connection stop Step 2
+				try (InputStream in = open(file)) {
+					synchronized (out) {
+						out.writeByte(TargetAgent.FILE);
+						out.writeUTF(path);
+						out.writeLong(file.lastModified());
+					}
+					// Content that does not compress, e.g. media or archives, is sent as it is after its first chunk
+					boolean compressible = true;
+					while (true) {
+						int length = readFully(in, buffer);
+						if (length == 0) {
+							break;
+						}
+						if (throttle != null) {
+							throttle.read(length);
+						}
+						synchronized (out) {
+							compressible = TargetAgent.writeChunk(out, buffer, length, compressible ? deflater : null, deflated);
+						}
+						sent += length;
+					}
+					synchronized (out) {
+						out.writeByte(TargetAgent.END);
+						out.flush();
+					}
+				} catch (FileError e) {
+					System.out.println("Error reading " + file.getAbsolutePath() + ": " + e.getCause());
+					synchronized (out) {
+						out.writeByte(TargetAgent.MISSING);
+						out.writeUTF(path);
+						out.flush();
+					}
+				}
+			}
+			return sent;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static InputStream open(File file) throws FileError {
+		try {
+			return new FileInputStream(file);
+		} catch (IOException e) {
+			throw new FileError(e);
+		}
+	}
+
+	private static int readFully(InputStream in, byte[] buffer) throws FileError {
+		int length = 0;
+		try {
+			while (length < buffer.length) {
+				int read = in.read(buffer, length, buffer.length - length);
+				if (read < 0) {
+					break;
+				}
+				length += read;
+			}
+		} catch (IOException e) {
+			throw new FileError(e);
+		}
+		return length;
+	}
+
+	private int receive(DataInputStream in, DataOutputStream out, List<Operation> plan, PlanExecutor.Progress progress) throws IOException {
+		while (true) {
+			int type = in.readByte();
+			if (type == TargetAgent.FINISHED) {
+				return in.readInt();
+			}
+			if (type != TargetAgent.COMPLETED) {
+				throw new IOException("Incorrect message " + type + " from the target agent");
+			}
+			Operation operation = plan.get(in.readInt() - 1);
+			boolean awaited = in.readBoolean();
+			if (progress != null) {
+				progress.completed(operation, awaited);
+			}
+			if (awaited) {
+				synchronized (out) {
+					out.writeByte(TargetAgent.ACK);
+					out.writeInt(operation.getNumber());
+					out.flush();
+				}
+			}
+		}
+	}
+
+	// An error reading a file of the source folder, as opposed to an error of the connection
+	private static class FileError extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		FileError(IOException cause) {
+			super(cause);
+		}
+	}
+}
@@ -0,0 +1,518 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import mirror.copy.ver1.Copier.ChecksumAndDateAndSizeIdengifier;
+import mirror.copy.ver1.Copier.ChecksumIdentifier;
+import mirror.copy.ver1.Copier.DateAndSizeIdentifier;
+import mirror.copy.ver1.Copier.FileStamp;
+import mirror.copy.ver1.Copier.FingerprintIdentifier;
+import mirror.copy.ver1.Copier.FolderInfo;
+import mirror.copy.ver1.Copier.Identifier;
+import mirror.copy.ver1.Copier.InodeIdentifier;
+
+// Binary snapshot of a FolderInfo:
+//   header:  magic, version, method, folder, checksum algorithm, checksum length, number of include and exclude rules
+//            and the rules
+//   entries: 1, shared path prefix length, path suffix, identifier, optional file stamp
+//   trailer: 0, number of entries
+//   folders: number of folders, then for each folder in path order: shared path prefix length, path suffix,
+//            modification time, number of entries, 1 and the hash of the folder or 0 if the method has none
+// Identifiers of the checksums method keep at most the first ChecksumIdentifier.MAX_LENGTH bytes.
+// Entries are written while the folder is scanned and read back through a memory-mapped file.
+final class Snapshot {
+
+	static final int MAGIC = 0x4D43534E; // "MCSN"
+	static final int VERSION = 1;
+
+	private static final int ENTRY = 1;
+	private static final int END = 0;
+	private static final int JAVA_SERIALIZATION_MAGIC = 0xACED;
+
+	private Snapshot() {
+	}
+
+	// The time is recorded in metrics, unless it is null
+	static FolderInfo load(File file, Metrics metrics) throws Exception {
+		long start = System.nanoTime();
+		FolderInfo results = read(file);
+		if (metrics != null) {
+			metrics.record(Metrics.SNAPSHOT_LOAD, start, results.getEntryCount(), file.length());
+		}
+		return results;
+	}
+
+	private static FolderInfo read(File file) throws Exception {
+		if (isJavaSerialized(file)) {
+			// Snapshots written by earlier versions
+			try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(file))) {
+				return (FolderInfo) in.readObject();
+			}
+		}
+		try (Reader reader = new Reader(file)) {
+			final FolderInfo results = new FolderInfo(reader.getFolder(), reader.getMethod(), reader.getHash());
+			reader.forEach(new EntryVisitor() {
+				@Override
+				public void visit(String relativePath, Identifier id, FileStamp stamp) throws IOException {
+					results.addId(id, relativePath, stamp);
+				}
+			});
+			reader.forEachFolder(new FolderVisitor() {
+				@Override
+				public void visit(String relativePath, long modificationTime, int entryCount, Long hash) {
+					results.addFolder(relativePath, modificationTime, entryCount, hash);
+				}
+			});
+			return results;
+		}
+	}
+
+	// The include and exclude rules the snapshot was scanned with
+	static PathFilter readFilter(File file) throws IOException {
+		if (isJavaSerialized(file)) {
+			return PathFilter.ALL;
+		}
+		try (Reader reader = new Reader(file)) {
+			return PathFilter.of(reader.getFilterRules());
+		}
+	}
+
+	static File temporaryFileFor(File file) {
+		return new File(file.getPath() + ".tmp");
+	}
+
+	// Replaces the snapshot with a completely written temporary file
+	static void commit(File temp, File file) throws IOException {
+		try {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static boolean isJavaSerialized(File file) throws IOException {
+		try (FileInputStream in = new FileInputStream(file)) {
+			int b1 = in.read();
+			int b2 = in.read();
+			return b1 >= 0 && b2 >= 0 && ((b1 << 8) | b2) == JAVA_SERIALIZATION_MAGIC;
+		}
+	}
+
+	static interface EntryVisitor {
+		void visit(String relativePath, Identifier id, FileStamp stamp) throws Exception;
+	}
+
+	static interface FolderVisitor {
+		void visit(String relativePath, long modificationTime, int entryCount, Long hash) throws Exception;
+	}
+
+	static class Writer implements Closeable {
+		private final FileOutputStream file;
+		private final DataOutputStream out;
+		private final String method;
+		private final String hash;
+		private final Metrics metrics;
+		private String previousPath = "";
+		private long count = 0;
+		private long nanos = 0; // spent writing, which is mixed with scanning in Step 1
+		private FolderInfo folders = null;
+		private boolean closed = false;
+
+		public Writer(File file, FolderInfo results, PathFilter filter, Metrics metrics) throws IOException {
+			this.metrics = metrics;
+			this.file = new FileOutputStream(file);
+			this.out = new DataOutputStream(new BufferedOutputStream(this.file, 1 << 16));
+			this.method = results.getMethod();
+			this.hash = results.getHash();
+			out.writeInt(MAGIC);
+			out.writeShort(VERSION);
+			writeString(method);
+			writeString(results.getFolder().getAbsolutePath());
+			writeString(hash);
+			out.writeByte(FileHasher.checksumLength(hash));
+			// The rules of this run, which a scan with other rules is compared with
+			List<String> rules = filter.getRules();
+			writeVarLong(rules.size());
+			for (String rule : rules) {
+				writeString(rule);
+			}
+		}
+
+		public synchronized void write(String relativePath, Identifier id, FileStamp stamp) throws IOException {
+			long start = System.nanoTime();
+			out.writeByte(ENTRY);
+			int shared = sharedPrefix(previousPath, relativePath);
+			writeVarLong(shared);
+			writeString(relativePath.substring(shared));
+			previousPath = relativePath;
+			writeIdentifier(id);
+			if (stamp == null) {
+				out.writeByte(0);
+			} else {
+				out.writeByte(1);
+				writeVarLong(stamp.getSize());
+				out.writeLong(stamp.getModificationTime());
+				writeString(stamp.getFileKey() == null ? "" : stamp.getFileKey());
+			}
+			count++;
+			nanos += System.nanoTime() - start;
+		}
+
+		// The folders of this FolderInfo are written after the entries when the snapshot is closed
+		public synchronized void setFolders(FolderInfo folders) {
+			this.folders = folders;
+		}
+
+		// The snapshot is on disk when this returns, so it can be committed or resumed from
+		@Override
+		public synchronized void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			long start = System.nanoTime();
+			try {
+				out.writeByte(END);
+				out.writeLong(count);
+				writeFolders();
+				out.flush();
+				file.getFD().sync();
+				if (metrics != null) {
+					metrics.record(Metrics.SNAPSHOT_SAVE, start - nanos, count, file.getChannel().position());
+				}
+			} finally {
+				out.close();
+			}
+		}
+
+		private void writeFolders() throws IOException {
+			if (folders == null) {
+				writeVarLong(0);
+				return;
+			}
+			Map<String, FolderIndex.Summary> summaries = new TreeMap<>(folders.getFolderSummaries());
+			FolderIndex index = folders.hasFolderHashes() ? folders.getFolderIndex() : null;
+			writeVarLong(summaries.size());
+			String previous = "";
+			for (Map.Entry<String, FolderIndex.Summary> entry : summaries.entrySet()) {
+				String relativePath = entry.getKey();
+				int shared = sharedPrefix(previous, relativePath);
+				writeVarLong(shared);
+				writeString(relativePath.substring(shared));
+				previous = relativePath;
+				out.writeLong(entry.getValue().getModificationTime());
+				writeVarLong(entry.getValue().getEntryCount());
+				if (index == null) {
+					out.writeByte(0);
+				} else {
+					out.writeByte(1);
+					out.writeLong(index.getHash(relativePath));
+				}
+			}
+		}
+
+		private void writeIdentifier(Identifier id) throws IOException {
+			switch (method) {
+			case Copier.CHECKSUMS: {
+				out.write(((ChecksumIdentifier) id).getBytes());
+				break;
+			}
+			case Copier.DATE_AND_SIZE: {
+				DateAndSizeIdentifier dateAndSize = (DateAndSizeIdentifier) id;
+				writeVarLong(dateAndSize.getSize());
+				out.writeLong(dateAndSize.getModificationTime());
+				break;
+			}
+			case Copier.CHECKSUMS_AND_DATE_AND_SIZE: {
+				// The absolute path is not stored, it is the folder plus the relative path
+				ChecksumAndDateAndSizeIdengifier checked = (ChecksumAndDateAndSizeIdengifier) id;
+				writeVarLong(checked.getSize());
+				out.writeLong(checked.getCreationTime());
+				out.writeLong(checked.getModificationTime());
+				out.writeLong(checked.getAccessTime());
+				String md5 = checked.getChecksum();
+				if (md5 == null) {
+					out.writeByte(0);
+				} else {
+					out.writeByte(1);
+					out.write(fromHex(md5));
+				}
+				break;
+			}
+			case Copier.INODES: {
+				InodeIdentifier inode = (InodeIdentifier) id;
+				out.writeLong(inode.getHigh());
+				out.writeLong(inode.getLow());
+				break;
+			}
+			case Copier.FINGERPRINTS: {
+				FingerprintIdentifier fingerprint = (FingerprintIdentifier) id;
+				writeVarLong(fingerprint.getSize());
+				out.writeLong(fingerprint.getModificationTime());
+				out.writeByte((fingerprint.getSample() == null ? 0 : 1) | (fingerprint.getChecksum() == null ? 0 : 2));
+				if (fingerprint.getSample() != null) {
+					out.write(fromHex(fingerprint.getSample()));
+				}
+				if (fingerprint.getChecksum() != null) {
+					out.write(fromHex(fingerprint.getChecksum()));
+				}
+				break;
+			}
+			default:
+				throw new IOException("Unknown method " + method);
+			}
+		}
+
+		private void writeString(String value) throws IOException {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			writeVarLong(bytes.length);
+			out.write(bytes);
+		}
+
+		private void writeVarLong(long value) throws IOException {
+			while ((value & ~0x7FL) != 0) {
+				out.writeByte((int) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			out.writeByte((int) value);
+		}
+
+		private static int sharedPrefix(String a, String b) {
+			int max = Math.min(a.length(), b.length());
+			int i = 0;
+			while (i < max && a.charAt(i) == b.charAt(i)) {
+				i++;
+			}
+			// Do not split a surrogate pair between the prefix and the suffix
+			if (i > 0 && Character.isHighSurrogate(a.charAt(i - 1))) {
+				i--;
+			}
+			return i;
+		}
+	}
+
+	static class Reader implements Closeable {
+		private static final long WINDOW = 1L << 28;
+
+		private final RandomAccessFile file;
+		private final FileChannel channel;
+		private final long length;
+		private MappedByteBuffer window;
+		private long windowStart;
+		private final String method;
+		private final File folder;
+		private final String hash;
+		private final int checksumLength;
+		private final List<String> filterRules = new ArrayList<>();
+
+		public Reader(File snapshot) throws IOException {
+			this.file = new RandomAccessFile(snapshot, "r");
+			this.channel = file.getChannel();
+			this.length = channel.size();
+			map(0);
+			if (readInt() != MAGIC) {
+				close();
+				throw new IOException(snapshot.getAbsolutePath() + " is not a snapshot file.");
+			}
+			int version = readShort();
+			if (version != VERSION) {
+				close();
+				throw new IOException("Unsupported snapshot version " + version + " in " + snapshot.getAbsolutePath());
+			}
+			this.method = readString();
+			this.folder = new File(readString());
+			this.hash = readString();
+			this.checksumLength = get() & 0xFF;
+			for (long count = readVarLong(); count > 0; count--) {
+				filterRules.add(readString());
+			}
+		}
+
+		public String getMethod() {
+			return method;
+		}
+
+		public File getFolder() {
+			return folder;
+		}
+
+		public String getHash() {
+			return hash;
+		}
+
+		public List<String> getFilterRules() {
+			return filterRules;
+		}
+
+		public void forEach(EntryVisitor visitor) throws Exception {
+			String previousPath = "";
+			long count = 0;
+			while (get() == ENTRY) {
+				int shared = (int) readVarLong();
+				String relativePath = previousPath.substring(0, shared) + readString();
+				previousPath = relativePath;
+				Identifier id = readIdentifier(relativePath);
+				FileStamp stamp = null;
+				if (get() != 0) {
+					long size = readVarLong();
+					long modificationTime = readLong();
+					String fileKey = readString();
+					stamp = new FileStamp(size, modificationTime, fileKey.isEmpty() ? null : fileKey);
+				}
+				visitor.visit(relativePath, id, stamp);
+				count++;
+			}
+			if (readLong() != count) {
+				throw new IOException("Snapshot is truncated or corrupted.");
+			}
+		}
+
+		// Only after forEach
+		public void forEachFolder(FolderVisitor visitor) throws Exception {
+			String previousPath = "";
+			for (long count = readVarLong(); count > 0; count--) {
+				int shared = (int) readVarLong();
+				String relativePath = previousPath.substring(0, shared) + readString();
+				previousPath = relativePath;
+				long modificationTime = readLong();
+				int entryCount = (int) readVarLong();
+				Long hash = get() == 0 ? null : readLong();
+				visitor.visit(relativePath, modificationTime, entryCount, hash);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			window = null;
+			file.close();
+		}
+
+		private Identifier readIdentifier(String relativePath) throws IOException {
+			switch (method) {
+			case Copier.CHECKSUMS: {
+				return new ChecksumIdentifier(readBytes(Math.min(checksumLength, ChecksumIdentifier.MAX_LENGTH)));
+			}
+			case Copier.DATE_AND_SIZE: {
+				return new DateAndSizeIdentifier(readVarLong(), 0, readLong(), 0);
+			}
+			case Copier.CHECKSUMS_AND_DATE_AND_SIZE: {
+				long size = readVarLong();
+				long creationTime = readLong();
+				long modificationTime = readLong();
+				long accessTime = readLong();
+				String md5 = get() == 0 ? null : toHex(readBytes(checksumLength));
+				return new ChecksumAndDateAndSizeIdengifier(new File(folder, relativePath).getAbsolutePath(), size, creationTime, modificationTime, accessTime, hash, md5);
+			}
+			case Copier.INODES: {
+				return new InodeIdentifier(readLong(), readLong());
+			}
+			case Copier.FINGERPRINTS: {
+				long size = readVarLong();
+				long modificationTime = readLong();
+				int parts = get();
+				String sample = (parts & 1) == 0 ? null : toHex(readBytes(checksumLength));
+				String checksum = (parts & 2) == 0 ? null : toHex(readBytes(checksumLength));
+				return new FingerprintIdentifier(size, modificationTime, sample, checksum);
+			}
+			default:
+				throw new IOException("Unknown method " + method);
+			}
+		}
+
+		private void map(long position) throws IOException {
+			windowStart = position;
+			window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, length - position));
+		}
+
+		private byte get() throws IOException {
+			if (!window.hasRemaining()) {
+				long next = windowStart + window.limit();
+				if (next >= length) {
+					throw new IOException("Unexpected end of snapshot.");
+				}
+				map(next);
+			}
+			return window.get();
+		}
+
+		private byte[] readBytes(int n) throws IOException {
+			byte[] bytes = new byte[n];
+			if (window.remaining() >= n) {
+				window.get(bytes);
+			} else {
+				for (int i = 0; i < n; i++) {
+					bytes[i] = get();
+				}
+			}
+			return bytes;
+		}
+
+		private int readShort() throws IOException {
+			return ((get() & 0xFF) << 8) | (get() & 0xFF);
+		}
+
+		private int readInt() throws IOException {
+			return (readShort() << 16) | readShort();
+		}
+
+		private long readLong() throws IOException {
+			return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+		}
+
+		private long readVarLong() throws IOException {
+			long value = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = get();
+				value |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			return value;
+		}
+
+		private String readString() throws IOException {
+			return new String(readBytes((int) readVarLong()), StandardCharsets.UTF_8);
+		}
+	}
+
+	static byte[] fromHex(String hex) {
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		}
+		return bytes;
+	}
+
+	static String toHex(byte[] bytes) {
+		StringBuilder result = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			result.append(Integer.toString((b & 0xff) + 0x100, 16).substring(1));
+		}
+		return result.toString();
+	}
+}
@@ -0,0 +1,18 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+// A step that cannot run, e.g. because its folders or the results of Step 1 are missing; nothing was changed
+public class SyncException extends Exception {
+
+	private static final long serialVersionUID = 6530731405235716211L;
+
+	public SyncException(String message) {
+		super(message);
+	}
+}
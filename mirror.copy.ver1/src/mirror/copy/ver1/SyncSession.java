@@ -0,0 +1,879 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mirror.copy.ver1.Copier.FolderInfo;
+
+// The steps of the program for one snapshot, i.e. the results of Step 1, e.g. to run them from a program that syncs
+// several folders in one JVM. A session is configured with its setters, and runs one step at a time; sessions with
+// different snapshots run in parallel, while a second session of the same snapshot is refused until the first one
+// is done. Steps print what they do like the command line does, and return their results; a step that cannot run
+// throws SyncException. Every step has its own Metrics, which its result returns.
+public class SyncSession {
+
+	// Snapshots in use by a session of this JVM
+	private static final Set<File> active = ConcurrentHashMap.newKeySet();
+
+	private final File snapshot;
+	private String method = Copier.CHECKSUMS;
+	private String hash = FileHasher.MD5;
+	private int threads = 1;
+	private int ioThreads = 0; // 0 means the same as threads
+	private int copyThreads = 0; // 0 means the same as threads
+	private int copiesPerStore = 0; // 0 means the same as copyThreads
+	private boolean incremental = false;
+	private boolean skipUnchangedFolders = false;
+	private boolean checksumFallback = false;
+	private boolean dryRun = false;
+	private boolean quiet = false;
+	private boolean debug = false;
+	private boolean localCopies = false;
+	private boolean hardLinks = false;
+	private int deltaThreshold = 0; // MB, 0 means no updates in place
+	private int bandwidth = 0; // MB/s, 0 means not limited
+	private int readBandwidth = 0; // MB/s
+	private int writeBandwidth = 0; // MB/s
+	private int operationsPerSecond = 0;
+	private PathFilter rules = null; // null means the rules recorded by Step 1
+	private int samplePercent = 0; // of the files verify checksums although their metadata match
+	private boolean failFast = false;
+	private Listener listener = null;
+	private byte[] agentSecret = null; // shared with target agents
+
+	// The current step
+	private PathFilter filter = PathFilter.ALL;
+	private boolean filterChanged = false;
+	private Result result = null;
+	private Metrics metrics = new Metrics();
+	private final AtomicLong sentBytes = new AtomicLong(); // to target agents
+	private FolderInfo results1 = null; // The state of the first folder in the beginning
+	private FolderInfo results2 = null; // The state of the first folder after some changes
+
+	// The snapshot file, e.g. saved.checksum; its journals are kept next to it
+	public SyncSession(File snapshot) {
+		this.snapshot = snapshot;
+	}
+
+	public File getSnapshot() {
+		return snapshot;
+	}
+
+	// How Step 1 identifies files, one of the methods of Copier; Step 2 uses the method recorded by Step 1
+	public void setMethod(String method) {
+		this.method = method;
+	}
+
+	// The checksum algorithm of Step 1, see FileHasher.isSupported
+	public void setHash(String hash) {
+		this.hash = hash;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public void setIoThreads(int ioThreads) {
+		this.ioThreads = ioThreads;
+	}
+
+	public void setCopyThreads(int copyThreads) {
+		this.copyThreads = copyThreads;
+	}
+
+	public void setCopiesPerStore(int copiesPerStore) {
+		this.copiesPerStore = copiesPerStore;
+	}
+
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+	}
+
+	public void setSkipUnchangedFolders(boolean skipUnchangedFolders) {
+		this.skipUnchangedFolders = skipUnchangedFolders;
+	}
+
+	public void setChecksumFallback(boolean checksumFallback) {
+		this.checksumFallback = checksumFallback;
+	}
+
+	public void setDryRun(boolean dryRun) {
+		this.dryRun = dryRun;
+	}
+
+	public void setQuiet(boolean quiet) {
+		this.quiet = quiet;
+	}
+
+	// Prints the identifiers of all files
+	public void setDebug(boolean debug) {
+		this.debug = debug;
+	}
+
+	public void setLocalCopies(boolean localCopies) {
+		this.localCopies = localCopies;
+	}
+
+	public void setHardLinks(boolean hardLinks) {
+		this.hardLinks = hardLinks;
+	}
+
+	// MB, 0 means no updates in place
+	public void setDeltaThreshold(int deltaThreshold) {
+		this.deltaThreshold = deltaThreshold;
+	}
+
+	public int getDeltaThreshold() {
+		return deltaThreshold;
+	}
+
+	// MB/s copied, 0 means not limited
+	public void setBandwidth(int bandwidth) {
+		this.bandwidth = bandwidth;
+	}
+
+	// MB/s read from the source folder
+	public void setReadBandwidth(int readBandwidth) {
+		this.readBandwidth = readBandwidth;
+	}
+
+	// MB/s written to all target folders
+	public void setWriteBandwidth(int writeBandwidth) {
+		this.writeBandwidth = writeBandwidth;
+	}
+
+	public void setOperationsPerSecond(int operationsPerSecond) {
+		this.operationsPerSecond = operationsPerSecond;
+	}
+
+	// Include and exclude rules, see PathFilter; null means the rules recorded by Step 1. Throws
+	// IllegalArgumentException for a rule that is not valid.
+	public void setFilterRules(List<String> rules) {
+		this.rules = rules == null ? null : PathFilter.of(rules);
+	}
+
+	public void setSamplePercent(int samplePercent) {
+		this.samplePercent = samplePercent;
+	}
+
+	public void setFailFast(boolean failFast) {
+		this.failFast = failFast;
+	}
+
+	// Target agents only accept a Step 2 that knows their secret
+	public void setAgentSecret(byte[] agentSecret) {
+		this.agentSecret = agentSecret;
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	// The rules of the current step
+	PathFilter getFilter() {
+		return filter;
+	}
+
+	// The metrics of the current step
+	Metrics getMetrics() {
+		return metrics;
+	}
+
+	// The settings of the session, as they are reported
+	public Map<String, Object> getSettings() {
+		Map<String, Object> settings = new LinkedHashMap<>();
+		settings.put("threads", threads);
+		settings.put("copyThreads", copyThreads > 0 ? copyThreads : threads);
+		settings.put("incremental", incremental);
+		settings.put("skipUnchangedFolders", skipUnchangedFolders);
+		settings.put("checksumFallback", checksumFallback);
+		settings.put("filter", filter.getRules());
+		settings.put("bandwidth", bandwidth);
+		settings.put("readBandwidth", readBandwidth);
+		settings.put("writeBandwidth", writeBandwidth);
+		settings.put("operationsPerSecond", operationsPerSecond);
+		settings.put("dryRun", dryRun);
+		settings.put("sample", samplePercent);
+		settings.put("failFast", failFast);
+		return settings;
+	}
+
+	// Scans the source folder and saves the snapshot
+	public synchronized Result step1(File source) throws Exception {
+		if (!source.isDirectory()) {
+			throw new SyncException("Source folder " + source + " is not a directory or does not exist.");
+		}
+		acquire();
+		try {
+			long timeStart = System.currentTimeMillis();
+			metrics = new Metrics();
+			filter = rules == null ? PathFilter.ALL : rules;
+			results1 = new FolderInfo(source.getAbsoluteFile(), method, hash);
+			File newChecksum = Snapshot.temporaryFileFor(snapshot);
+			try (Snapshot.Writer writer = new Snapshot.Writer(newChecksum, results1, filter, metrics)) {
+				if (Copier.FINGERPRINTS.equals(method)) {
+					// Fingerprints depend on the whole folder, so they are saved once all files are scanned
+					scan(results1.getFolder(), results1, true);
+					writer.setFolders(results1);
+					results1 = resolver(results1).resolve();
+					results1.writeTo(writer);
+				} else {
+					results1.setSnapshotWriter(writer);
+					scan(results1.getFolder(), results1, true);
+					writer.setFolders(results1);
+				}
+			}
+			Snapshot.commit(newChecksum, snapshot);
+			// A Step 2 that did not complete is replaced by the new Step 1
+			Journal.deleteAll(snapshot);
+			if (debug) {
+				System.out.println("[debug output1:]");
+				Copier.printmap(results1.getIds());
+			}
+			return new Result(results1, results1.getEntryCount(), timeStart, metrics).done(0);
+		} finally {
+			release();
+		}
+	}
+
+	// Replays the changes of the source folder since the snapshot in the target folders, or resumes the Step 2 that
+	// did not complete; the snapshot is replaced when all operations succeeded
+	public synchronized Result step2(List<File> targets) throws Exception {
+		targets = checkTargets(targets);
+		acquire();
+		try {
+			if (!snapshot.exists()) {
+				throw new SyncException("Results of Step 1 do not exist.");
+			}
+			long timeStart = System.currentTimeMillis();
+			metrics = new Metrics();
+			// results2 is saved while the source folder is scanned, for further use as results1
+			File newChecksum = Snapshot.temporaryFileFor(snapshot);
+			List<File> unfinished = Journal.existing(snapshot);
+			int returnCode;
+			if (!unfinished.isEmpty() && newChecksum.exists()) {
+				result = new Result(null, 0, timeStart, metrics);
+				result.resumed = true;
+				returnCode = resumeStep2(targets, unfinished);
+			} else {
+				// Left by a Step 2 whose results were replaced by Step 1 since
+				Journal.deleteAll(snapshot);
+				// Reading the state of the first folder as it was, from saved file into results1
+				results1 = applyFilter(Snapshot.load(snapshot, metrics), Snapshot.readFilter(snapshot));
+				result = new Result(results1, 0, timeStart, metrics);
+				if (debug) {
+					System.out.println("[debug output results1:]");
+					Copier.printmap(results1.getIds());
+				}
+				try (Snapshot.Writer writer = new Snapshot.Writer(newChecksum, results1, filter, metrics)) {
+					returnCode = doStep2(targets, writer, Journal.filesFor(snapshot, targets.size()));
+				}
+			}
+			if (dryRun) {
+				// The target folders are not changed, so Step 1 results stay valid
+				if (Journal.existing(snapshot).isEmpty()) {
+					Files.delete(newChecksum.toPath());
+				}
+			} else if (returnCode == 0) {
+				// All operations are done, so the journals are not needed any more
+				Snapshot.commit(newChecksum, snapshot);
+				Journal.deleteAll(snapshot);
+			} else if (!Journal.existing(snapshot).isEmpty()) {
+				System.out.println("Run Step 2 again to resume. The results of Step 1 are kept until all operations succeed.");
+			} else {
+				Files.deleteIfExists(newChecksum.toPath());
+			}
+			return result.done(returnCode);
+		} finally {
+			release();
+		}
+	}
+
+	// Replays changes of the source folder as they happen, until the thread is interrupted
+	public synchronized void watch(List<File> targets, long reconcileMillis) throws Exception {
+		targets = checkTargets(targets);
+		acquire();
+		try {
+			if (!snapshot.exists()) {
+				throw new SyncException("Results of Step 1 do not exist.");
+			}
+			if (!Journal.existing(snapshot).isEmpty()) {
+				throw new SyncException("Step 2 did not complete, please run it again before watching.");
+			}
+			metrics = new Metrics();
+			results1 = applyFilter(Snapshot.load(snapshot, metrics), Snapshot.readFilter(snapshot));
+			result = new Result(results1, results1.getEntryCount(), System.currentTimeMillis(), metrics);
+			System.out.println("Watching " + results1.getFolder().getAbsolutePath() + ", press Ctrl+C to stop.");
+			new Watcher(this, results1, targets, reconcileMillis).run();
+		} finally {
+			release();
+		}
+	}
+
+	// Checks the target folders against the snapshot
+	public synchronized Result verify(List<File> targets) throws Exception {
+		targets = checkTargets(targets);
+		acquire();
+		try {
+			if (!snapshot.exists()) {
+				throw new SyncException("Results of Step 1 do not exist.");
+			}
+			if (!Journal.existing(snapshot).isEmpty()) {
+				System.out.println("Step 2 did not complete, so the target folders are not expected to match its results yet.");
+			}
+			long timeStart = System.currentTimeMillis();
+			metrics = new Metrics();
+			results1 = Snapshot.load(snapshot, metrics);
+			filter = Snapshot.readFilter(snapshot);
+			result = new Result(results1, results1.getEntryCount(), timeStart, metrics);
+			for (File target : targets) {
+				if (RemoteTarget.isRemote(target)) {
+					System.out.println("Target folder " + target + " is verified by running verify on its host.");
+					continue;
+				}
+				Verifier verifier = new Verifier(this, results1, target, ioThreads > 0 ? ioThreads : threads);
+				verifier.setSample(samplePercent / 100.0);
+				verifier.setFailFast(failFast);
+				verifier.setQuiet(quiet);
+				List<Divergence> found = verifier.verify();
+				System.out.println(target.getAbsolutePath() + ": " + found.size() + " files differ, " + verifier.getChecksummedCount() + " files checksummed, "
+						+ verifier.getUnverifiedCount() + " files not verified");
+				result.divergences.addAll(found);
+				result.checksummed += verifier.getChecksummedCount();
+				result.unverified += verifier.getUnverifiedCount();
+				if (failFast && !found.isEmpty()) {
+					break;
+				}
+			}
+			return result.done(result.divergences.isEmpty() ? 0 : 1);
+		} finally {
+			release();
+		}
+	}
+
+	// A target agent with the threads and limits of this session
+	TargetAgent createAgent(File target) throws SyncException {
+		if (agentSecret == null) {
+			throw new SyncException("The agent needs a secret that Step 2 shares.");
+		}
+		int copiers = copyThreads > 0 ? copyThreads : threads;
+		TargetAgent agent = new TargetAgent(target, threads, copiers, copiesPerStore > 0 ? copiesPerStore : copiers);
+		agent.setQuiet(quiet);
+		agent.setThrottle(throttle());
+		agent.setSecret(agentSecret);
+		return agent;
+	}
+
+	private void acquire() throws SyncException {
+		if (snapshot == null) {
+			throw new SyncException("No file for the results of Step 1 specified.");
+		}
+		if (!active.add(snapshot.getAbsoluteFile())) {
+			throw new SyncException("Results of Step 1 in " + snapshot + " are used by another session.");
+		}
+	}
+
+	private void release() {
+		active.remove(snapshot.getAbsoluteFile());
+	}
+
+	private List<File> checkTargets(List<File> targetFolders) throws SyncException {
+		if (targetFolders.isEmpty()) {
+			throw new SyncException("No target folder specified.");
+		}
+		List<File> targets = new ArrayList<>();
+		for (File target : targetFolders) {
+			if (RemoteTarget.isRemote(target)) {
+				try {
+					new RemoteTarget(target, null);
+				} catch (NumberFormatException e) {
+					throw new SyncException("Incorrect port of target agent " + target.getPath());
+				}
+				if (agentSecret == null) {
+					throw new SyncException("Target agent " + target.getPath() + " needs its secret.");
+				}
+			} else if (!(target = target.getAbsoluteFile()).isDirectory()) {
+				throw new SyncException("Target folder " + target.getPath() + " is not a directory or does not exist.");
+			}
+			if (targets.contains(target)) {
+				throw new SyncException("Target folder " + target.getPath() + " is specified twice.");
+			}
+			targets.add(target);
+		}
+		return targets;
+	}
+
+	// The rules of this step: those recorded by Step 1, unless others are given. Files that other rules exclude are
+	// left out of the results of Step 1 too, so they are not deleted from the target folders.
+	private FolderInfo applyFilter(FolderInfo previous, PathFilter recorded) throws IOException {
+		filterChanged = rules != null && !rules.equals(recorded);
+		filter = rules == null ? recorded : rules;
+		if (!filterChanged) {
+			return previous;
+		}
+		System.out.println("The include and exclude rules differ from those of Step 1, the files they exclude now are left as they are.");
+		if (skipUnchangedFolders) {
+			// Files that the rules include now are in folders that did not change
+			System.out.println("All folders are scanned.");
+		}
+		return previous.filter(filter);
+	}
+
+	void scan(File folder, FolderInfo results, boolean folderWillBeModified) throws Exception {
+		long start = System.nanoTime();
+		int entries = results.getEntryCount();
+		if (threads > 1) {
+			TreeScanner scanner = new TreeScanner(threads, ioThreads > 0 ? ioThreads : threads, filter);
+			scanner.setMetrics(metrics);
+			scanner.setListener(listener);
+			scanner.scan(folder, results, folderWillBeModified);
+		} else {
+			doStep1(folder, results, folderWillBeModified);
+		}
+		metrics.record(Metrics.SCAN, start, results.getEntryCount() - entries, 0);
+		if (listener != null) {
+			listener.scanned(folder, results.getEntryCount() - entries);
+		}
+	}
+
+	private void doStep1(File sourceFolderFile, FolderInfo results, boolean folderWillBeModified) throws Exception {
+		List<Path> children = Copier.list(sourceFolderFile);
+		List<String> unchanged = Copier.addFolder(sourceFolderFile, children.size(), results);
+		if (listener != null) {
+			listener.scanning(sourceFolderFile, results.getEntryCount());
+		}
+		if (unchanged != null) {
+			for (String subfolder : unchanged) {
+				doStep1(new File(results.getFolder(), subfolder), results, folderWillBeModified);
+			}
+			return;
+		}
+		for (Path nextChild : children) {
+			BasicFileAttributes attr = Copier.readIncluded(nextChild, results, filter);
+			if (attr == null) {
+				continue;
+			}
+			if (attr.isDirectory()) {
+				doStep1(nextChild.toFile(), results, folderWillBeModified);
+			} else {
+				Copier.addFile(nextChild.toFile(), attr, results, folderWillBeModified, metrics);
+			}
+		}
+	}
+
+	private int doStep2(List<File> targets, Snapshot.Writer writer, List<File> journalFiles) throws Exception {
+		String method = results1.getMethod();
+		System.out.println("Method used in Step 1: " + method);
+		System.out.println("Checksum algorithm used in Step 1: " + results1.getHash());
+		results2 = new FolderInfo(results1.getFolder(), method, results1.getHash());
+		boolean fingerprints = Copier.FINGERPRINTS.equals(method);
+		boolean skipFolders = skipUnchangedFolders && !filterChanged;
+		if (!fingerprints) {
+			results2.setSnapshotWriter(writer);
+		}
+		if (incremental) {
+			results2.reuseIdentifiersFrom(results1);
+			results2.setSkipUnchangedFolders(skipFolders);
+		}
+
+		scan(results1.getFolder(), results2, false);
+		result.files = results2.getEntryCount();
+		writer.setFolders(results2);
+		if (checksumFallback && Copier.INODES.equals(method) && RemoteTarget.isRemote(targets.get(0))) {
+			System.out.println("Files whose file key changed are copied, the first target folder is not on this host.");
+		} else if (checksumFallback && Copier.INODES.equals(method)) {
+			// The snapshot keeps the file keys of this scan
+			InodeMatcher matcher = new InodeMatcher(results2, results1, targets.get(0));
+			matcher.setMetrics(metrics);
+			results2 = matcher.alignWith();
+			System.out.println("Files found by checksum after their file key changed: " + matcher.getMatchedCount());
+		}
+		if (incremental) {
+			System.out.println("Identifiers reused from Step 1: " + results2.getReusedCount());
+		}
+		if (skipFolders) {
+			System.out.println("Folders unchanged since Step 1: " + results2.getUnchangedFolderCount());
+		}
+		if (fingerprints) {
+			// The snapshot keeps fingerprints that tell apart files of this folder, while the comparison
+			// uses fingerprints that tell apart these files from the files in results1
+			FingerprintResolver resolver = resolver(results2);
+			resolver.resolve().writeTo(writer);
+			results2 = resolver.alignWith(results1);
+		}
+		// The new snapshot has to be complete on disk before the journal refers to it
+		writer.close();
+
+		if (debug) {
+			System.out.println("[debug output results2:]");
+			Copier.printmap(results2.getIds());
+		}
+		if (results2.equals(results1)) {
+			System.out.println("Nothing changed in source folder " + results1.getFolder().getAbsolutePath());
+			return 0;
+		}
+		result.changed = true;
+
+		if (debug) {
+			boolean equal = true;
+			for (File target : targets) {
+				if (RemoteTarget.isRemote(target)) {
+					continue;
+				}
+				FolderInfo targetState = new FolderInfo(target, method, results1.getHash()); // The state of the first folder after some changes
+				try {
+					scan(targetState.getFolder(), targetState, false);
+					if (fingerprints) {
+						targetState = resolver(targetState).alignWith(results1);
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+
+				if (results2.equals(targetState)) {
+					continue;
+				}
+				equal = false;
+
+				if (!results1.equals(targetState)) {
+					System.out.println("Please first synchronize Target folder " + target.getAbsolutePath() + " with Source folder, run Step 1,");
+					System.out.println("then make changes in source folder, then run Step 2");
+					return 1;
+				}
+			}
+			if (equal) {
+				System.out.println("Source and Target folders are equal.");
+				return 0;
+			}
+		}
+
+		return replay(results1, results2, targets, journalFiles, false);
+	}
+
+	// Continues the plans of a Step 2 that did not complete, without scanning the source folder again
+	private int resumeStep2(List<File> targets, List<File> journalFiles) throws Exception {
+		List<Journal.Unfinished> unfinished = new ArrayList<>(Collections.<Journal.Unfinished> nCopies(targets.size(), null));
+		for (File journalFile : journalFiles) {
+			Journal.Unfinished plan = Journal.load(journalFile);
+			int i = targets.indexOf(plan.getTarget());
+			if (i < 0) {
+				throw new SyncException("Step 2 for " + plan.getTarget() + " did not complete, please run it for that target folder too.");
+			}
+			unfinished.set(i, plan);
+		}
+		if (unfinished.contains(null)) {
+			throw new SyncException("Step 2 did not complete, please run it for the same target folders first.");
+		}
+		result.changed = true;
+		for (Journal.Unfinished plan : unfinished) {
+			System.out.println("Resuming Step 2 in " + plan.getTarget() + ": " + plan.getCompleted().size() + " of " + plan.getPlan().size()
+					+ " operations were completed.");
+			if (dryRun) {
+				System.out.println("Remaining operations on " + plan.getTarget() + ":");
+				for (Operation operation : plan.getPlan()) {
+					if (!plan.getCompleted().contains(operation.getNumber())) {
+						System.out.println(operation);
+					}
+				}
+			}
+		}
+		if (dryRun) {
+			return 0;
+		}
+		return execute(targets, unfinished, journalFiles, false);
+	}
+
+	// Applies the changes between two states of the source folder to the target folders. With journal files,
+	// one for each target folder, the plan and its progress are recorded there. When a replay from the same before
+	// state failed, some of its operations may be done already, so retrying tolerates finding their result.
+	int replay(FolderInfo before, FolderInfo after, List<File> targets, List<File> journalFiles, boolean retrying) throws Exception {
+		long start = System.nanoTime();
+		List<DiffEngine.Change> changes = DiffEngine.compare(before, after);
+		metrics.record(Metrics.DIFF, start, changes.size(), 0);
+		if (debug) {
+			System.out.println("\n[debug output tableR:]");
+			for (DiffEngine.Change change : changes) {
+				if (!change.getRemoved().isEmpty()) {
+					System.out.println(change.getId() + " " + change.getRemoved());
+				}
+			}
+			System.out.println("[debug output tableI:]");
+			for (DiffEngine.Change change : changes) {
+				if (!change.getInserted().isEmpty()) {
+					System.out.println(change.getId() + " " + change.getInserted());
+				}
+			}
+		}
+
+		Planner planner = new Planner();
+		planner.setLocalCopies(localCopies);
+		planner.setHardLinks(hardLinks);
+		planner.setDeltaThreshold(deltaThreshold * 1024L * 1024L);
+		planner.setTargets(targets);
+		planner.setFilter(filter);
+		start = System.nanoTime();
+		List<Operation> plan = planner.plan(changes, before, after);
+		metrics.record(Metrics.PLAN, start, plan.size(), 0);
+		if (dryRun) {
+			for (File target : targets) {
+				System.out.println("Planned operations on " + target.getPath() + ":");
+			}
+			for (Operation operation : plan) {
+				System.out.println(operation);
+			}
+			return 0;
+		}
+		List<Journal.Unfinished> unfinished = new ArrayList<>();
+		for (File target : targets) {
+			unfinished.add(new Journal.Unfinished(before.getFolder(), target, plan, Collections.<Integer> emptySet(), 0));
+		}
+		return execute(targets, unfinished, journalFiles, retrying);
+	}
+
+	// Runs the plan of every target folder at the same time, the source folder is read once for all of them.
+	// A target folder whose operations fail does not stop the others.
+	private int execute(List<File> targets, List<Journal.Unfinished> plans, List<File> journalFiles, boolean retrying) throws Exception {
+		int copiers = copyThreads > 0 ? copyThreads : threads;
+		int returnCode = 0;
+		long start = System.nanoTime();
+		int operations = 0;
+		Throttle throttle = throttle();
+		try (CopyScheduler copies = new CopyScheduler(copiers, copiesPerStore > 0 ? copiesPerStore : copiers)) {
+			copies.setQuiet(quiet);
+			copies.setThrottle(throttle);
+			ExecutorService executors = Executors.newFixedThreadPool(targets.size());
+			List<Future<Integer>> results = new ArrayList<>();
+			try {
+				for (int i = 0; i < targets.size(); i++) {
+					Journal.Unfinished plan = plans.get(i);
+					File journalFile = journalFiles == null ? null : journalFiles.get(i);
+					results.add(executors.submit(() -> execute(plan, journalFile, retrying, copies, throttle)));
+					operations += plan.getPlan().size() - plan.getCompleted().size();
+				}
+			} finally {
+				// The plans already submitted still run to the end
+				executors.shutdown();
+			}
+			for (int i = 0; i < targets.size(); i++) {
+				int failures;
+				try {
+					failures = results.get(i).get();
+					if (failures > 0) {
+						System.out.println(failures + " of " + plans.get(i).getPlan().size() + " operations failed or were skipped in " + targets.get(i) + ".");
+					}
+				} catch (ExecutionException e) {
+					System.out.println("Error replaying changes in " + targets.get(i) + ": " + e.getCause());
+					failures = plans.get(i).getPlan().size() - plans.get(i).getCompleted().size();
+				}
+				if (failures > 0) {
+					returnCode = 1;
+				}
+				result.failures.merge(targets.get(i), failures, Integer::sum);
+			}
+			long bytes = copies.getCopiedBytes() + sentBytes.getAndSet(0);
+			metrics.record(Metrics.EXECUTE, start, operations, bytes);
+			result.operations += operations;
+			result.copiedBytes += bytes;
+		}
+		return returnCode;
+	}
+
+	// Returns the number of operations that failed or were skipped. A plan without completed operations starts a new
+	// journal, otherwise the journal it was loaded from is continued.
+	private int execute(Journal.Unfinished plan, File journalFile, boolean retrying, CopyScheduler copies, Throttle throttle) throws Exception {
+		boolean resumed = !plan.getCompleted().isEmpty() || journalFile != null && journalFile.exists();
+		boolean resuming = resumed || retrying;
+		try (Journal journal = journalFile == null ? null
+				: resumed ? Journal.append(journalFile, plan) : Journal.create(journalFile, plan.getSource(), plan.getTarget(), plan.getPlan())) {
+			PlanExecutor.Progress progress = progress(plan.getTarget(), journal);
+			if (RemoteTarget.isRemote(plan.getTarget())) {
+				return executeRemote(plan, resuming, throttle, progress);
+			}
+			PlanExecutor executor = new PlanExecutor(plan.getSource(), plan.getTarget(), threads, copies);
+			executor.setResuming(resuming);
+			executor.setQuiet(quiet);
+			executor.setThrottle(throttle);
+			executor.setMetrics(metrics);
+			executor.setProgress(progress);
+			return executor.execute(plan.getPlan(), plan.getCompleted());
+		}
+	}
+
+	// The journal, if any, and then the listener learn of completed operations
+	private PlanExecutor.Progress progress(File target, Journal journal) {
+		if (listener == null) {
+			return journal;
+		}
+		return (operation, awaited) -> {
+			if (journal != null) {
+				journal.completed(operation, awaited);
+			}
+			listener.completed(target, operation.toString());
+		};
+	}
+
+	// One for all target folders, so the limits hold for the whole of Step 2; null without limits
+	private Throttle throttle() {
+		if (bandwidth == 0 && readBandwidth == 0 && writeBandwidth == 0 && operationsPerSecond == 0) {
+			return null;
+		}
+		return new Throttle(bandwidth * 1024L * 1024L, readBandwidth * 1024L * 1024L, writeBandwidth * 1024L * 1024L, operationsPerSecond, metrics);
+	}
+
+	private FingerprintResolver resolver(FolderInfo scanned) {
+		FingerprintResolver resolver = new FingerprintResolver(scanned);
+		resolver.setMetrics(metrics);
+		return resolver;
+	}
+
+	// The target agent runs the plan, the journal is kept on this host
+	private int executeRemote(Journal.Unfinished plan, boolean resuming, Throttle throttle, PlanExecutor.Progress progress) throws Exception {
+		RemoteTarget remote = new RemoteTarget(plan.getTarget(), plan.getSource());
+		remote.setThrottle(throttle);
+		remote.setSecret(agentSecret);
+		try {
+			return remote.execute(plan.getPlan(), plan.getCompleted(), resuming, progress);
+		} finally {
+			sentBytes.addAndGet(remote.getSentBytes());
+		}
+	}
+
+	// Learns of the progress of the steps, on the threads that do the work
+	public interface Listener {
+		// An operation of the plan was done in the target folder, e.g. "MOVE a to b"
+		void completed(File target, String operation);
+
+		// A scan listed a folder; files is the number of files and folders found so far in the state it fills
+		default void scanning(File folder, int files) {
+		}
+
+		// A scan of a folder completed, i.e. of the source folder, a target folder, or a part of one when watching
+		default void scanned(File folder, int files) {
+		}
+	}
+
+	// What a step did
+	public static final class Result {
+		private final File source;
+		private final String method;
+		private final String hash;
+		private int files;
+		private boolean changed = false;
+		private boolean resumed = false;
+		private int operations = 0;
+		private final Map<File, Integer> failures = new LinkedHashMap<>();
+		private long copiedBytes = 0;
+		private final List<Divergence> divergences = new ArrayList<>();
+		private int checksummed = 0;
+		private int unverified = 0;
+		private int returnCode = 0;
+		private final long timeStart;
+		private final Metrics metrics;
+		private long millis = 0;
+
+		private Result(FolderInfo results, int files, long timeStart, Metrics metrics) {
+			this.metrics = metrics;
+			this.source = results == null ? null : results.getFolder();
+			this.method = results == null ? null : results.getMethod();
+			this.hash = results == null ? null : results.getHash();
+			this.files = files;
+			this.timeStart = timeStart;
+		}
+
+		private Result done(int returnCode) {
+			this.returnCode = returnCode;
+			millis = System.currentTimeMillis() - timeStart;
+			return this;
+		}
+
+		// Null for a resumed Step 2
+		public File getSource() {
+			return source;
+		}
+
+		public String getMethod() {
+			return method;
+		}
+
+		public String getHash() {
+			return hash;
+		}
+
+		// In the source folder, or in the snapshot for verify
+		public int getFileCount() {
+			return files;
+		}
+
+		// Whether the source folder changed since the snapshot
+		public boolean isChanged() {
+			return changed;
+		}
+
+		public boolean isResumed() {
+			return resumed;
+		}
+
+		// Operations run in all target folders
+		public int getOperationCount() {
+			return operations;
+		}
+
+		// Operations that failed or were skipped, by target folder
+		public Map<File, Integer> getFailures() {
+			return Collections.unmodifiableMap(failures);
+		}
+
+		// From the source folder to the target folders
+		public long getCopiedBytes() {
+			return copiedBytes;
+		}
+
+		public List<Divergence> getDivergences() {
+			return Collections.unmodifiableList(divergences);
+		}
+
+		public int getChecksummedCount() {
+			return checksummed;
+		}
+
+		public int getUnverifiedCount() {
+			return unverified;
+		}
+
+		// As the command line exits: 0 if the step succeeded, 1 if operations failed or files differ
+		public int getReturnCode() {
+			return returnCode;
+		}
+
+		public long getMillis() {
+			return millis;
+		}
+
+		// The counters and timings of the step
+		public Metrics getMetrics() {
+			return metrics;
+		}
+	}
+}
@@ -0,0 +1,486 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// Runs the plans of Step 2 in a target folder on this host, for a RemoteTarget that connects over TCP. Moves,
+// deletes and the other operations on the target folder run here as local calls, only the files copied from the
+// source folder go over the network. Wire protocol, both ways after a header of magic and version:
+//   agent:   a random challenge
+//   client:  the HMAC of the challenge with the secret that both sides share, whether Step 2 resumes, the plan as
+//            in the journal, the numbers of completed operations;
+//            then FILE, path, modification time, CHUNKs, END for every file read from the source folder,
+//            or MISSING, path if it could not be read; ACK, number for completions that are awaited; BYE
+//   agent:   COMPLETED, number, whether it is awaited; then FINISHED, number of failed operations
+// A chunk is its length, whether it is deflated and the length of its data. Files are received into a staging
+// folder in the target folder while the plan runs, an operation that reads one starts when it has arrived; a file
+// that only one copy reads is renamed into place, so it is written once. An
+// operation that others depend on is only reported complete when the client acknowledges it, i.e. when the
+// client's journal has it, so operations are repeated safely when Step 2 resumes.
+// Every path of the plan and of the files received has to stay in the target folder, or in the staging folder for
+// files of the source folder, as the agent runs with the rights of its user for whoever knows the secret.
+class TargetAgent {
+
+	static final int DEFAULT_PORT = 7707;
+	static final int MAGIC = 0x4D434147; // "MCAG"
+	static final int VERSION = 2;
+	static final int FILE = 1;
+	static final int CHUNK = 2;
+	static final int END = 3;
+	static final int MISSING = 4;
+	static final int ACK = 5;
+	static final int BYE = 6;
+	static final int COMPLETED = 1;
+	static final int FINISHED = 2;
+	static final int CHUNK_SIZE = 256 * 1024;
+	static final String STAGING = ".mirror.staging";
+	static final int CHALLENGE_LENGTH = 32;
+	private static final String MAC = "HmacSHA256";
+
+	private final File target;
+	private final int threads;
+	private final int copyThreads;
+	private final int copiesPerStore;
+	private boolean quiet = false;
+	private Throttle throttle = null;
+	private byte[] secret = null;
+
+	public TargetAgent(File target, int threads, int copyThreads, int copiesPerStore) {
+		this.target = target;
+		this.threads = threads;
+		this.copyThreads = copyThreads;
+		this.copiesPerStore = copiesPerStore;
+	}
+
+	// Operations are not printed, only their errors
+	public void setQuiet(boolean quiet) {
+		this.quiet = quiet;
+	}
+
+	// Limits the plans of all clients, and the files received
+	public void setThrottle(Throttle throttle) {
+		this.throttle = throttle;
+	}
+
+	// Step 2 has to prove that it knows the secret
+	public void setSecret(byte[] secret) {
+		this.secret = secret;
+	}
+
+	// Serves one Step 2 at a time, until the process is stopped
+	public void run(InetAddress bind, int port) throws IOException {
+		try (ServerSocket server = new ServerSocket(port, 1, bind)) {
+			run(server);
+		}
+	}
+
+	// Serves one Step 2 at a time, until the server socket is closed
+	void run(ServerSocket server) {
+		if (secret == null) {
+			throw new IllegalStateException("The agent needs a secret");
+		}
+		System.out.println("Waiting for Step 2 on " + server.getLocalSocketAddress() + " to replay changes in " + target.getAbsolutePath());
+		while (!server.isClosed()) {
+			try (Socket socket = server.accept()) {
+				System.out.println("Step 2 from " + socket.getRemoteSocketAddress());
+				int failures = serve(socket);
+				System.out.println("Step 2 from " + socket.getRemoteSocketAddress() + " finished, " + failures + " operations failed or were skipped.");
+			} catch (IOException | RuntimeException e) {
+				// A client that sends nonsense does not stop the agent
+				if (!server.isClosed()) {
+					System.out.println("Error serving Step 2: " + e);
+				}
+			}
+		}
+	}
+
+	private int serve(Socket socket) throws IOException {
+		socket.setKeepAlive(true);
+		// Messages are flushed when complete, awaited completions should not wait for more
+		socket.setTcpNoDelay(true);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+		byte[] challenge = new byte[CHALLENGE_LENGTH];
+		new SecureRandom().nextBytes(challenge);
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.write(challenge);
+		out.flush();
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not a Step 2 client");
+		}
+		int version = in.readShort();
+		if (version != VERSION) {
+			throw new IOException("Unsupported protocol version " + version);
+		}
+		byte[] response = new byte[authenticate(secret, challenge).length];
+		in.readFully(response);
+		if (!MessageDigest.isEqual(response, authenticate(secret, challenge))) {
+			throw new IOException("Step 2 does not know the secret");
+		}
+		boolean resuming = in.readBoolean();
+		List<Operation> plan = Journal.readPlan(in);
+		File staging = new File(target, STAGING);
+		checkPlan(plan);
+		Set<Integer> completed = new HashSet<>();
+		for (int i = in.readInt(); i > 0; i--) {
+			completed.add(in.readInt());
+		}
+		// Left by a Step 2 that was interrupted
+		deleteAll(staging);
+		Map<String, CompletableFuture<Void>> arrivals = new ConcurrentHashMap<>();
+		for (Operation operation : plan) {
+			if (operation.isFromSource() && !completed.contains(operation.getNumber())) {
+				arrivals.computeIfAbsent(operation.getFrom(), path -> new CompletableFuture<Void>());
+			}
+		}
+		Map<Integer, CompletableFuture<Void>> acks = new ConcurrentHashMap<>();
+		AtomicBoolean closed = new AtomicBoolean();
+		ExecutorService runner = Executors.newSingleThreadExecutor();
+		try (CopyScheduler copies = new CopyScheduler(copyThreads, copiesPerStore)) {
+			copies.setQuiet(quiet);
+			copies.setThrottle(throttle);
+			PlanExecutor executor = new PlanExecutor(staging, target, threads, copies);
+			executor.setResuming(resuming);
+			executor.setQuiet(quiet);
+			executor.setThrottle(throttle);
+			executor.setArrivals(arrivals);
+			executor.setStaged(stagedOnce(plan, completed));
+			executor.setProgress((operation, awaited) -> {
+				CompletableFuture<Void> ack = new CompletableFuture<>();
+				if (awaited) {
+					acks.put(operation.getNumber(), ack);
+				}
+				if (closed.get()) {
+					throw new IOException("Connection closed");
+				}
+				synchronized (out) {
+					out.writeByte(COMPLETED);
+					out.writeInt(operation.getNumber());
+					out.writeBoolean(awaited);
+					out.flush();
+				}
+				if (awaited) {
+					try {
+						ack.get();
+					} catch (InterruptedException | ExecutionException e) {
+						throw new IOException("Not acknowledged by Step 2", e);
+					}
+				}
+			});
+			Future<Integer> failures = runner.submit(() -> {
+				int failed = executor.execute(plan, completed);
+				// The target folder is as Step 2 expects it when it is told that the plan is done
+				deleteAll(staging);
+				synchronized (out) {
+					out.writeByte(FINISHED);
+					out.writeInt(failed);
+					out.flush();
+				}
+				return failed;
+			});
+			IOException error = null;
+			try {
+				receive(in, staging, arrivals, acks);
+			} catch (IOException e) {
+				error = e;
+			}
+			// The operations that still wait for the client fail
+			closed.set(true);
+			IOException notReceived = new IOException("Connection closed");
+			arrivals.values().forEach(arrival -> arrival.completeExceptionally(notReceived));
+			acks.values().forEach(ack -> ack.completeExceptionally(notReceived));
+			try {
+				int failed = failures.get();
+				if (error == null) {
+					return failed;
+				}
+			} catch (InterruptedException | ExecutionException e) {
+				if (error == null) {
+					error = new IOException("Error replaying the plan", e);
+				}
+			}
+			throw error;
+		} finally {
+			runner.shutdown();
+			deleteAll(staging);
+		}
+	}
+
+	// Receives the files of the source folder and the acknowledgements until the client says BYE
+	private void receive(DataInputStream in, File staging, Map<String, CompletableFuture<Void>> arrivals, Map<Integer, CompletableFuture<Void>> acks)
+			throws IOException {
+		Inflater inflater = new Inflater();
+		byte[] buffer = new byte[CHUNK_SIZE];
+		byte[] data = new byte[CHUNK_SIZE];
+		String path = null;
+		long modificationTime = 0;
+		OutputStream file = null;
+		try {
+			while (true) {
+				int type = in.readByte();
+				switch (type) {
+				case FILE: {
+					path = checkReceived(in.readUTF(), arrivals);
+					modificationTime = in.readLong();
+					File staged = new File(staging, path);
+					Files.createDirectories(staged.getParentFile().toPath());
+					file = new FileOutputStream(staged);
+					break;
+				}
+				case CHUNK: {
+					int length = in.readInt();
+					boolean deflated = in.readBoolean();
+					int dataLength = in.readInt();
+					if (length < 0 || length > CHUNK_SIZE || dataLength < 0 || dataLength > CHUNK_SIZE || !deflated && dataLength != length
+							|| file == null) {
+						throw new IOException("Incorrect chunk");
+					}
+					in.readFully(data, 0, dataLength);
+					if (throttle != null) {
+						throttle.write(length);
+					}
+					if (deflated) {
+						inflate(inflater, data, dataLength, buffer, length);
+						file.write(buffer, 0, length);
+					} else {
+						file.write(data, 0, length);
+					}
+					break;
+				}
+				case END: {
+					if (file == null) {
+						throw new IOException("Incorrect end of file");
+					}
+					file.close();
+					file = null;
+					// Copies keep the modification time of the staged file
+					Files.setLastModifiedTime(new File(staging, path).toPath(), FileTime.fromMillis(modificationTime));
+					complete(arrivals, path, null);
+					break;
+				}
+				case MISSING: {
+					String missing = checkReceived(in.readUTF(), arrivals);
+					if (file != null) {
+						// Read only partly
+						file.close();
+						file = null;
+						Files.deleteIfExists(new File(staging, missing).toPath());
+					}
+					complete(arrivals, missing, new IOException(missing + " could not be read"));
+					break;
+				}
+				case ACK: {
+					CompletableFuture<Void> ack = acks.remove(in.readInt());
+					if (ack != null) {
+						ack.complete(null);
+					}
+					break;
+				}
+				case BYE: {
+					return;
+				}
+				default: {
+					throw new IOException("Incorrect message " + type);
+				}
+				}
+			}
+		} catch (EOFException e) {
+			throw new IOException("Step 2 disconnected", e);
+		} finally {
+			inflater.end();
+			if (file != null) {
+				file.close();
+			}
+		}
+	}
+
+	// The operations of the plan only work in the target folder, and read files of the source folder from staging
+	private void checkPlan(List<Operation> plan) throws IOException {
+		for (Operation operation : plan) {
+			checkPath(target, operation.getPath());
+			if (operation.getFrom() != null) {
+				checkPath(operation.isFromSource() ? new File(target, STAGING) : target, operation.getFrom());
+			}
+		}
+	}
+
+	// Files of the source folder that only one copy reads, so they are moved into place instead
+	private static Set<String> stagedOnce(List<Operation> plan, Set<Integer> completed) {
+		Map<String, Integer> readers = new HashMap<>();
+		for (Operation operation : plan) {
+			if (operation.isFromSource() && !completed.contains(operation.getNumber())) {
+				// Other operations that read it count twice, so the file stays
+				readers.merge(operation.getFrom(), operation.getType() == Operation.Type.COPY ? 1 : 2, Integer::sum);
+			}
+		}
+		Set<String> once = new HashSet<>();
+		readers.forEach((path, count) -> {
+			if (count == 1) {
+				once.add(path);
+			}
+		});
+		return once;
+	}
+
+	// Only files that operations of the plan read are received
+	private String checkReceived(String path, Map<String, CompletableFuture<Void>> arrivals) throws IOException {
+		checkPath(new File(target, STAGING), path);
+		if (!arrivals.containsKey(path)) {
+			throw new IOException("File " + path + " is not read by the plan");
+		}
+		return path;
+	}
+
+	// A relative path that stays in the folder when it is normalized; paths in the target folder must not be in the
+	// staging folder either
+	private void checkPath(File folder, String path) throws IOException {
+		Path root = folder.toPath().toAbsolutePath().normalize();
+		Path resolved;
+		try {
+			resolved = root.resolve(path).normalize();
+		} catch (InvalidPathException e) {
+			throw new IOException("Incorrect path " + path);
+		}
+		Path staging = target.toPath().toAbsolutePath().normalize().resolve(STAGING);
+		if (path.isEmpty() || Paths.get(path).isAbsolute() || !resolved.startsWith(root) || resolved.equals(root)
+				|| !root.startsWith(staging) && resolved.startsWith(staging)) {
+			throw new IOException("Path " + path + " is not in " + folder);
+		}
+	}
+
+	// The response to a challenge
+	static byte[] authenticate(byte[] secret, byte[] challenge) throws IOException {
+		try {
+			Mac mac = Mac.getInstance(MAC);
+			mac.init(new SecretKeySpec(secret, MAC));
+			return mac.doFinal(challenge);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Cannot authenticate", e);
+		}
+	}
+
+	// The secret is the content of a file that only the users of the agent can read, without a trailing line break
+	static byte[] readSecret(File file) throws IOException {
+		String secret = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).replaceAll("[\\r\\n]+$", "");
+		if (secret.isEmpty()) {
+			throw new IOException("Secret file " + file + " is empty");
+		}
+		return secret.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static void complete(Map<String, CompletableFuture<Void>> arrivals, String path, IOException e) {
+		CompletableFuture<Void> arrival = arrivals.get(path);
+		if (arrival == null) {
+			return;
+		}
+		if (e == null) {
+			arrival.complete(null);
+		} else {
+			arrival.completeExceptionally(e);
+		}
+	}
+
+	// Writes a chunk of a file, deflated unless deflater is null or that does not make it smaller, and returns
+	// whether it was deflated
+	static boolean writeChunk(DataOutputStream out, byte[] buffer, int length, Deflater deflater, byte[] deflated) throws IOException {
+		int deflatedLength = length;
+		if (deflater != null) {
+			deflater.reset();
+			deflater.setInput(buffer, 0, length);
+			deflater.finish();
+			deflatedLength = deflater.deflate(deflated);
+			if (!deflater.finished()) {
+				deflatedLength = length;
+			}
+		}
+		boolean smaller = deflatedLength < length;
+		out.writeByte(CHUNK);
+		out.writeInt(length);
+		out.writeBoolean(smaller);
+		out.writeInt(smaller ? deflatedLength : length);
+		out.write(smaller ? deflated : buffer, 0, smaller ? deflatedLength : length);
+		return smaller;
+	}
+
+	private static void inflate(Inflater inflater, byte[] data, int dataLength, byte[] buffer, int length) throws IOException {
+		inflater.reset();
+		inflater.setInput(data, 0, dataLength);
+		try {
+			if (inflater.inflate(buffer, 0, length) != length || !inflater.finished()) {
+				throw new IOException("Incorrect deflated chunk");
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Incorrect deflated chunk", e);
+		}
+	}
+
+	private static void deleteAll(File folder) throws IOException {
+		if (!folder.exists()) {
+			return;
+		}
+		Files.walkFileTree(folder.toPath(), new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+				if (e != null) {
+					throw e;
+				}
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+// Limits the rate of the operations of Step 2 and of the bytes they copy, so that Step 2 does not take all of the
+// disks from other programs. Every limit is a token bucket that holds one second of its rate, so short bursts are
+// not slowed down. Work is counted as it is done, and a worker that took more than the bucket holds waits until
+// the rate catches up with it, so a limit also holds for transfers that could not be split.
+// Bytes copied count once against the limit of all bytes and the limit of reads, and once per target folder
+// written against the limit of writes.
+final class Throttle {
+
+	private final Bucket bytes;
+	private final Bucket reads;
+	private final Bucket writes;
+	private final Bucket operations;
+	private final Metrics metrics;
+
+	// A rate of 0 is not limited; waits are recorded in metrics, unless it is null
+	Throttle(long bytesPerSecond, long readsPerSecond, long writesPerSecond, long operationsPerSecond, Metrics metrics) {
+		this.metrics = metrics;
+		this.bytes = Bucket.of(bytesPerSecond);
+		this.reads = Bucket.of(readsPerSecond);
+		this.writes = Bucket.of(writesPerSecond);
+		this.operations = Bucket.of(operationsPerSecond);
+	}
+
+	// Whether copies have to be split into parts to be limited
+	boolean limitsBytes() {
+		return bytes != null || reads != null || writes != null;
+	}
+
+	void read(long count) {
+		take(bytes, count);
+		take(reads, count);
+	}
+
+	void write(long count) {
+		take(writes, count);
+	}
+
+	void operation() {
+		take(operations, 1);
+	}
+
+	private void take(Bucket bucket, long count) {
+		if (bucket == null || count <= 0) {
+			return;
+		}
+		long waitNanos = bucket.take(count);
+		if (waitNanos <= 0) {
+			return;
+		}
+		long start = System.nanoTime();
+		try {
+			Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (metrics != null) {
+			metrics.record(Metrics.THROTTLE, start, 1, 0);
+		}
+	}
+
+	private static final class Bucket {
+		private final double perNano;
+		private final double capacity;
+		private double available;
+		private long refilled = System.nanoTime();
+
+		private Bucket(long perSecond) {
+			this.perNano = perSecond / 1e9;
+			this.capacity = perSecond;
+			this.available = capacity;
+		}
+
+		static Bucket of(long perSecond) {
+			return perSecond > 0 ? new Bucket(perSecond) : null;
+		}
+
+		// Returns how long to wait until the tokens taken are paid for; the bucket may go below 0 for that time
+		synchronized long take(long count) {
+			long now = System.nanoTime();
+			available = Math.min(capacity, available + (now - refilled) * perNano);
+			refilled = now;
+			available -= count;
+			return available >= 0 ? 0 : (long) (-available / perNano);
+		}
+	}
+}
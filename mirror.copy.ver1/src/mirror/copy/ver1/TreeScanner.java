@@ -0,0 +1,161 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+
+import mirror.copy.ver1.Copier.FolderInfo;
+
+// Parallel version of SyncSession.doStep1: directories are listed and their entries are read and hashed as separate
+// fork-join tasks, and the number of concurrent reads is capped independently of the pool size.
+class TreeScanner {
+
+	private static final int FILES_PER_TASK = 16;
+
+	private final int hashThreads;
+	private final Semaphore ioPermits;
+	private final PathFilter filter;
+	private Metrics metrics = null;
+	private SyncSession.Listener listener = null;
+
+	public TreeScanner(int hashThreads, int ioThreads, PathFilter filter) {
+		this.hashThreads = hashThreads;
+		this.ioPermits = new Semaphore(ioThreads);
+		this.filter = filter;
+	}
+
+	// Files read for checksums are recorded there
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	// Learns of every folder listed
+	public void setListener(SyncSession.Listener listener) {
+		this.listener = listener;
+	}
+
+	public void scan(File folder, FolderInfo results, boolean folderWillBeModified) throws Exception {
+		ForkJoinPool pool = new ForkJoinPool(hashThreads);
+		try {
+			pool.invoke(new DirectoryTask(folder, results, folderWillBeModified));
+		} catch (ScanException e) {
+			Throwable cause = e;
+			while (cause instanceof ScanException) {
+				cause = cause.getCause();
+			}
+			throw (Exception) cause;
+		} finally {
+			pool.shutdown();
+		}
+		results.sortLocations();
+	}
+
+	private List<Path> list(File folder) throws Exception {
+		ioPermits.acquire();
+		try {
+			return Copier.list(folder);
+		} finally {
+			ioPermits.release();
+		}
+	}
+
+	private class DirectoryTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final File folder;
+		private final FolderInfo results;
+		private final boolean folderWillBeModified;
+
+		DirectoryTask(File folder, FolderInfo results, boolean folderWillBeModified) {
+			this.folder = folder;
+			this.results = results;
+			this.folderWillBeModified = folderWillBeModified;
+		}
+
+		@Override
+		protected void compute() {
+			List<Path> children;
+			List<String> unchanged;
+			try {
+				children = list(folder);
+				unchanged = Copier.addFolder(folder, children.size(), results);
+			} catch (Exception e) {
+				throw new ScanException(e);
+			}
+			if (listener != null) {
+				listener.scanning(folder, results.getEntryCount());
+			}
+			List<RecursiveAction> tasks = new ArrayList<>();
+			if (unchanged != null) {
+				for (String subfolder : unchanged) {
+					tasks.add(new DirectoryTask(new File(results.getFolder(), subfolder), results, folderWillBeModified));
+				}
+				invokeAll(tasks);
+				return;
+			}
+			for (int i = 0; i < children.size(); i += FILES_PER_TASK) {
+				tasks.add(new EntriesTask(children.subList(i, Math.min(i + FILES_PER_TASK, children.size())), results, folderWillBeModified));
+			}
+			invokeAll(tasks);
+		}
+	}
+
+	// Entries of a folder: files are added, and folders are scanned by new tasks
+	private class EntriesTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final List<Path> entries;
+		private final FolderInfo results;
+		private final boolean folderWillBeModified;
+
+		EntriesTask(List<Path> entries, FolderInfo results, boolean folderWillBeModified) {
+			this.entries = entries;
+			this.results = results;
+			this.folderWillBeModified = folderWillBeModified;
+		}
+
+		@Override
+		protected void compute() {
+			List<RecursiveAction> folders = new ArrayList<>();
+			for (Path entry : entries) {
+				try {
+					ioPermits.acquire();
+					try {
+						BasicFileAttributes attr = Copier.readIncluded(entry, results, filter);
+						if (attr == null) {
+							continue;
+						}
+						if (attr.isDirectory()) {
+							folders.add(new DirectoryTask(entry.toFile(), results, folderWillBeModified));
+						} else {
+							Copier.addFile(entry.toFile(), attr, results, folderWillBeModified, metrics);
+						}
+					} finally {
+						ioPermits.release();
+					}
+				} catch (Exception e) {
+					throw new ScanException(e);
+				}
+			}
+			invokeAll(folders);
+		}
+	}
+
+	private static class ScanException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		ScanException(Exception cause) {
+			super(cause);
+		}
+	}
+}
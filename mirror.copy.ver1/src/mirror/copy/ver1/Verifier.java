@@ -0,0 +1,180 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mirror.copy.ver1.Copier.ChecksumAndDateAndSizeIdengifier;
+import mirror.copy.ver1.Copier.ChecksumIdentifier;
+import mirror.copy.ver1.Copier.FileStamp;
+import mirror.copy.ver1.Copier.FingerprintIdentifier;
+import mirror.copy.ver1.Copier.FolderInfo;
+import mirror.copy.ver1.Copier.Identifier;
+
+// Checks that a target folder has the files of a snapshot. The target folder is scanned for metadata only, and
+// a file whose size differs, or that is missing or not in the snapshot, diverges at once. Copies and moves keep
+// the modification time, so a file whose modification time differs is suspicious: it is checksummed if the
+// snapshot has a checksum of it, and diverges otherwise. Files whose metadata match are only checksummed in a
+// random sample, a different one every time.
+class Verifier {
+
+	private final SyncSession session;
+	private final FolderInfo expected;
+	private final File target;
+	private final int threads;
+	private double sample = 0;
+	private boolean failFast = false;
+	private boolean quiet = false;
+	private final AtomicInteger checksummed = new AtomicInteger();
+	private final AtomicInteger unverified = new AtomicInteger();
+
+	public Verifier(SyncSession session, FolderInfo expected, File target, int threads) {
+		this.session = session;
+		this.expected = expected;
+		this.target = target;
+		this.threads = threads;
+	}
+
+	// The fraction of the files whose metadata match that are checksummed too
+	public void setSample(double sample) {
+		this.sample = sample;
+	}
+
+	// Stops at the first divergence
+	public void setFailFast(boolean failFast) {
+		this.failFast = failFast;
+	}
+
+	// Divergences are not printed
+	public void setQuiet(boolean quiet) {
+		this.quiet = quiet;
+	}
+
+	// Suspicious files whose content could not be checked, as the snapshot has no checksum of it
+	public int getUnverifiedCount() {
+		return unverified.get();
+	}
+
+	public int getChecksummedCount() {
+		return checksummed.get();
+	}
+
+	public List<Divergence> verify() throws Exception {
+		FolderInfo found = new FolderInfo(target, Copier.INODES, expected.getHash());
+		session.scan(target, found, false);
+		Map<String, Integer> foundEntries = new HashMap<>(found.getEntryCount() * 2);
+		for (int entry = 0; entry < found.getEntryCount(); entry++) {
+			foundEntries.put(found.getRelativePath(entry), entry);
+		}
+		List<Divergence> divergences = Collections.synchronizedList(new ArrayList<Divergence>());
+		List<Integer> toChecksum = new ArrayList<>();
+		for (int entry = 0; entry < expected.getEntryCount() && !(failFast && !divergences.isEmpty()); entry++) {
+			String relativePath = expected.getRelativePath(entry);
+			Integer foundEntry = foundEntries.remove(relativePath);
+			FileStamp stamp = expected.getStamp(entry);
+			if (foundEntry == null) {
+				diverged(divergences, new Divergence(Divergence.MISSING, relativePath, stamp, null));
+				continue;
+			}
+			FileStamp foundStamp = found.getStamp(foundEntry);
+			if (stamp != null && stamp.getSize() != foundStamp.getSize()) {
+				diverged(divergences, new Divergence(Divergence.SIZE, relativePath, stamp, foundStamp));
+			} else if (stamp == null || stamp.getModificationTime() != foundStamp.getModificationTime()) {
+				if (checksumOf(expected.getIdentifier(entry)) != null) {
+					toChecksum.add(entry);
+				} else if (stamp != null) {
+					diverged(divergences, new Divergence(Divergence.MODIFIED, relativePath, stamp, foundStamp));
+				} else {
+					unverified.incrementAndGet();
+				}
+			} else if (sample > 0 && ThreadLocalRandom.current().nextDouble() < sample && checksumOf(expected.getIdentifier(entry)) != null) {
+				toChecksum.add(entry);
+			}
+		}
+		if (!(failFast && !divergences.isEmpty())) {
+			for (String relativePath : foundEntries.keySet()) {
+				diverged(divergences, new Divergence(Divergence.EXTRA, relativePath, null, found.getStamp(foundEntries.get(relativePath))));
+				if (failFast) {
+					break;
+				}
+			}
+		}
+		if (!(failFast && !divergences.isEmpty())) {
+			checksum(toChecksum, divergences);
+		}
+		return divergences;
+	}
+
+	private void checksum(List<Integer> entries, List<Divergence> divergences) throws Exception {
+		AtomicBoolean stop = new AtomicBoolean();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> results = new ArrayList<>(entries.size());
+			for (int entry : entries) {
+				results.add(pool.submit(() -> {
+					if (stop.get()) {
+						return null;
+					}
+					String relativePath = expected.getRelativePath(entry);
+					String checksum = checksumOf(expected.getIdentifier(entry));
+					String foundChecksum;
+					try {
+						foundChecksum = Snapshot.toHex(FileHasher.checksum(new File(target, relativePath), expected.getHash(), session.getMetrics()));
+					} catch (IOException e) {
+						foundChecksum = null;
+					}
+					checksummed.incrementAndGet();
+					// Checksums of the checksums method are truncated
+					if (foundChecksum == null || !foundChecksum.startsWith(checksum)) {
+						diverged(divergences, new Divergence(Divergence.CONTENT, relativePath, expected.getStamp(entry), null));
+						stop.set(failFast);
+					}
+					return null;
+				}));
+			}
+			for (Future<?> result : results) {
+				result.get();
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private void diverged(List<Divergence> divergences, Divergence divergence) {
+		divergences.add(divergence);
+		if (!quiet) {
+			System.out.println("Diverged: " + divergence);
+		}
+	}
+
+	// The checksum of the content that the snapshot has, as hex, or null
+	private static String checksumOf(Identifier id) {
+		if (id instanceof ChecksumIdentifier) {
+			return ((ChecksumIdentifier) id).getChecksum();
+		}
+		if (id instanceof ChecksumAndDateAndSizeIdengifier) {
+			return ((ChecksumAndDateAndSizeIdengifier) id).getChecksum();
+		}
+		if (id instanceof FingerprintIdentifier) {
+			return ((FingerprintIdentifier) id).getChecksum();
+		}
+		return null;
+	}
+}
@@ -0,0 +1,223 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import mirror.copy.ver1.Copier.FolderInfo;
+
+// Replays changes of the source folder in the target folder as they happen. Events are collected until the source
+// folder is quiet for a moment, then only the changed paths are identified again, the other files keep their
+// identifiers. Deleted and created files with the same identifier become moves, as in Step 2. The whole source folder
+// is rescanned on start, when events were lost, and periodically, in case the file system did not report a change.
+// After each batch the state of the source folder is saved, so Step 2 can continue from it. A batch whose operations
+// failed is not saved; it is replayed again from the same state after a while, or with the next batch.
+class Watcher {
+
+	private static final long QUIET_MILLIS = 500;
+	private static final long MAX_BATCH_MILLIS = 5000;
+	private static final long RETRY_MILLIS = 30000;
+
+	private final SyncSession session;
+	private final List<File> targets;
+	private final File savedChecksum;
+	private final long reconcileMillis;
+	private final Map<WatchKey, Path> folders = new HashMap<>();
+	private FolderInfo current; // The state of the source folder that the target folder mirrors
+	private FolderInfo latest; // The state of the source folder as last scanned
+	private long retryAt = 0; // When changes that failed are replayed again, 0 if none did
+	private WatchService watchService = null;
+
+	public Watcher(SyncSession session, FolderInfo current, List<File> targets, long reconcileMillis) {
+		this.session = session;
+		this.current = current;
+		this.latest = current;
+		this.targets = targets;
+		this.savedChecksum = session.getSnapshot();
+		this.reconcileMillis = reconcileMillis;
+	}
+
+	public void run() throws Exception {
+		Path root = current.getFolder().toPath();
+		try (WatchService service = root.getFileSystem().newWatchService()) {
+			watchService = service;
+			register(root);
+			// Changes made before the folders were registered
+			reconcile();
+			long nextReconciliation = System.currentTimeMillis() + reconcileMillis;
+			Set<String> changed = new HashSet<>();
+			boolean overflow = false;
+			long batchStart = 0;
+			while (true) {
+				long now = System.currentTimeMillis();
+				long idle = retryAt != 0 ? Math.min(nextReconciliation, retryAt) : nextReconciliation;
+				long timeout = changed.isEmpty() && !overflow ? idle - now : Math.min(QUIET_MILLIS, batchStart + MAX_BATCH_MILLIS - now);
+				WatchKey key = service.poll(Math.max(timeout, 1), TimeUnit.MILLISECONDS);
+				now = System.currentTimeMillis();
+				if (key != null) {
+					if (changed.isEmpty()) {
+						batchStart = now;
+					}
+					overflow |= collect(key, root, changed);
+					if (now - batchStart < MAX_BATCH_MILLIS) {
+						continue;
+					}
+				}
+				if (overflow || now >= nextReconciliation) {
+					reconcile();
+					changed.clear();
+					overflow = false;
+					nextReconciliation = System.currentTimeMillis() + reconcileMillis;
+				} else if (!changed.isEmpty()) {
+					replay(rescan(changed));
+					changed.clear();
+				} else if (retryAt != 0 && now >= retryAt) {
+					replay(latest);
+				}
+			}
+		}
+	}
+
+	// Returns true if events were lost
+	private boolean collect(WatchKey key, Path root, Set<String> changed) throws IOException {
+		boolean overflow = false;
+		Path folder = folders.get(key);
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == OVERFLOW || folder == null) {
+				overflow = true;
+				continue;
+			}
+			Path path = folder.resolve((Path) event.context());
+			boolean isFolder = Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS);
+			// Excluded files and folders are not mirrored; a folder that is gone is checked as a file, and has nothing to rescan
+			if (!session.getFilter().acceptsPath(root.relativize(path).toString(), isFolder)) {
+				continue;
+			}
+			if (event.kind() == ENTRY_CREATE && isFolder) {
+				register(path);
+			}
+			changed.add(root.relativize(path).toString());
+		}
+		if (!key.reset()) {
+			folders.remove(key);
+		}
+		return overflow;
+	}
+
+	private void register(Path folder) throws IOException {
+		Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				String relativePath = current.getFolder().toPath().relativize(dir).toString();
+				if (!relativePath.isEmpty() && !session.getFilter().acceptsPath(relativePath, true)) {
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+				folders.put(dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private void reconcile() throws Exception {
+		FolderInfo scanned = new FolderInfo(current.getFolder(), current.getMethod(), current.getHash());
+		scanned.reuseIdentifiersFrom(latest);
+		session.scan(current.getFolder(), scanned, false);
+		replay(scanned);
+	}
+
+	// The last scanned state with the changed paths, and everything under them, identified again
+	private FolderInfo rescan(Set<String> changed) throws Exception {
+		Set<String> roots = new HashSet<>();
+		for (String path : changed) {
+			if (!isUnder(parent(path), changed)) {
+				roots.add(path);
+			}
+		}
+		FolderInfo scanned = new FolderInfo(current.getFolder(), current.getMethod(), current.getHash());
+		scanned.reuseIdentifiersFrom(latest);
+		for (int entry = 0; entry < latest.getEntryCount(); entry++) {
+			String path = latest.getRelativePath(entry);
+			if (!isUnder(path, roots)) {
+				scanned.addId(latest.getIdentifier(entry), path, latest.getStamp(entry));
+			}
+		}
+		for (String path : roots) {
+			File file = new File(current.getFolder(), path);
+			if (file.isDirectory()) {
+				session.scan(file, scanned, false);
+			} else if (file.isFile()) {
+				Copier.addFile(file, scanned, false, session.getMetrics());
+			}
+		}
+		return scanned;
+	}
+
+	private static boolean isUnder(String path, Set<String> folders) {
+		for (String folder = path; folder != null; folder = parent(folder)) {
+			if (folders.contains(folder)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String parent(String path) {
+		return new File(path).getParent();
+	}
+
+	private void replay(FolderInfo scanned) throws Exception {
+		FolderInfo resolved = scanned;
+		FolderInfo compared = scanned;
+		if (Copier.FINGERPRINTS.equals(current.getMethod())) {
+			FingerprintResolver resolver = new FingerprintResolver(scanned);
+			resolver.setMetrics(session.getMetrics());
+			resolved = resolver.resolve();
+			compared = resolver.alignWith(current);
+		}
+		latest = resolved;
+		if (compared.equals(current)) {
+			retryAt = 0;
+			return;
+		}
+		int returnCode = session.replay(current, compared, targets, null, retryAt != 0);
+		if (returnCode != 0) {
+			// The target folders are somewhere between both states, so current and the snapshot stay as they were
+			System.out.println("Some changes were not replayed in the target folders, retrying in " + RETRY_MILLIS / 1000 + " seconds");
+			retryAt = System.currentTimeMillis() + RETRY_MILLIS;
+			return;
+		}
+		retryAt = 0;
+		current = resolved;
+		File newChecksum = Snapshot.temporaryFileFor(savedChecksum);
+		try (Snapshot.Writer writer = new Snapshot.Writer(newChecksum, current, session.getFilter(), session.getMetrics())) {
+			current.writeTo(writer);
+		}
+		Snapshot.commit(newChecksum, savedChecksum);
+	}
+}
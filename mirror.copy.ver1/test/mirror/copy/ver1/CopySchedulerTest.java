@@ -0,0 +1,185 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CopySchedulerTest {
+
+	private static final long TIME = 1500000000000L;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	// More small files than fit in a batch, and files that are transferred by the file system
+	@Test(timeout = 60000)
+	public void smallAndLargeFilesAreCopied() throws Exception {
+		File source = folder.newFolder("source");
+		File target = folder.newFolder("target");
+		Random random = new Random(1);
+		List<byte[]> contents = new ArrayList<>();
+		long size = 0;
+		for (int i = 0; i < 200; i++) {
+			byte[] content = new byte[i < 3 ? (int) CopyScheduler.LARGE_FILE_SIZE + i * 1000 : random.nextInt(10000)];
+			random.nextBytes(content);
+			write(source, "file" + i, content);
+			contents.add(content);
+			size += content.length;
+		}
+		List<CompletableFuture<Void>> results = new ArrayList<>();
+		try (CopyScheduler scheduler = scheduler(4)) {
+			for (int i = 0; i < contents.size(); i++) {
+				results.add(scheduler.copy(source, "file" + i, target, "copy" + i));
+			}
+			for (CompletableFuture<Void> result : results) {
+				result.get();
+			}
+			assertEquals(size, scheduler.getCopiedBytes());
+		}
+		for (int i = 0; i < contents.size(); i++) {
+			File copy = new File(target, "copy" + i);
+			assertArrayEquals(contents.get(i), Files.readAllBytes(copy.toPath()));
+			assertEquals(TIME, copy.lastModified());
+		}
+	}
+
+	// Copies of one file that wait together are joined, and a destination that fails does not fail the others
+	@Test(timeout = 60000)
+	public void copiesOfOneFileAreJoined() throws Exception {
+		File source = folder.newFolder("source");
+		File[] targets = { folder.newFolder("target1"), folder.newFolder("target2"), folder.newFolder("target3") };
+		byte[] large = new byte[(int) CopyScheduler.LARGE_FILE_SIZE * 2];
+		write(source, "large", large);
+		byte[] content = "content".getBytes("UTF-8");
+		write(source, "file", content);
+		write(targets[2], "file", new byte[0]);
+		try (CopyScheduler scheduler = scheduler(1)) {
+			// The only worker waits for the limit while the copies of the file are scheduled
+			scheduler.setThrottle(new Throttle(0, CopyScheduler.LARGE_FILE_SIZE, 0, 0, null));
+			CompletableFuture<Void> first = scheduler.copy(source, "large", targets[0], "large");
+			List<CompletableFuture<Void>> results = new ArrayList<>();
+			for (File target : targets) {
+				results.add(scheduler.copy(source, "file", target, "file"));
+			}
+			first.get();
+			results.get(0).get();
+			results.get(1).get();
+			assertFailsWith(FileAlreadyExistsException.class, results.get(2));
+			assertEquals(large.length + 2 * content.length, scheduler.getCopiedBytes());
+		}
+		assertArrayEquals(content, Files.readAllBytes(new File(targets[0], "file").toPath()));
+		assertArrayEquals(content, Files.readAllBytes(new File(targets[1], "file").toPath()));
+		assertEquals(0, new File(targets[2], "file").length());
+	}
+
+	// Another try would find the same files
+	@Test(timeout = 60000)
+	public void missingFilesAreNotRetried() throws Exception {
+		File source = folder.newFolder("source");
+		File target = folder.newFolder("target");
+		write(source, "file", new byte[10]);
+		String output;
+		try (CopyScheduler scheduler = scheduler(2)) {
+			output = output(() -> {
+				assertFailsWith(NoSuchFileException.class, scheduler.copy(source, "missing", target, "file"));
+				assertFailsWith(NoSuchFileException.class, scheduler.copy(source, "file", target, "missing/file"));
+			});
+		}
+		assertEquals("", output);
+	}
+
+	// A destination under a file fails with an error that is retried, until the attempts run out
+	@Test(timeout = 60000)
+	public void failedCopiesAreRetried() throws Exception {
+		File source = folder.newFolder("source");
+		File target = folder.newFolder("target");
+		write(source, "file", new byte[10]);
+		write(target, "notFolder", new byte[0]);
+		String output;
+		try (CopyScheduler scheduler = scheduler(2)) {
+			output = output(() -> assertFailsWith(FileSystemException.class, scheduler.copy(source, "file", target, "notFolder/file")));
+		}
+		assertEquals(output, 2, output.split("retrying", -1).length - 1);
+	}
+
+	// A path that the file system does not accept fails its copy, not the other copies of the file
+	@Test(timeout = 60000)
+	public void invalidPathsFail() throws Exception {
+		File source = folder.newFolder("source");
+		File target = folder.newFolder("target");
+		write(source, "file", new byte[10]);
+		try (CopyScheduler scheduler = scheduler(1)) {
+			CompletableFuture<Void> invalid = scheduler.copy(source, "file", target, "bad\0file");
+			scheduler.copy(source, "file", target, "file").get();
+			try {
+				invalid.get();
+				fail();
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof RuntimeException);
+			}
+		}
+	}
+
+	private static CopyScheduler scheduler(int threads) {
+		CopyScheduler scheduler = new CopyScheduler(threads, 2);
+		scheduler.setQuiet(true);
+		return scheduler;
+	}
+
+	private static void write(File root, String path, byte[] content) throws Exception {
+		File file = new File(root, path);
+		Files.write(file.toPath(), content);
+		assertTrue(file.setLastModified(TIME));
+	}
+
+	private static void assertFailsWith(Class<? extends Exception> type, CompletableFuture<Void> result) throws InterruptedException {
+		try {
+			result.get();
+			fail("Expected " + type.getSimpleName());
+		} catch (ExecutionException e) {
+			assertTrue(String.valueOf(e.getCause()), type.isInstance(e.getCause()));
+		}
+	}
+
+	// What the code prints on System.out
+	private static String output(Checked code) throws Exception {
+		PrintStream out = System.out;
+		ByteArrayOutputStream captured = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(captured, true, "UTF-8"));
+		try {
+			code.run();
+		} finally {
+			System.setOut(out);
+		}
+		return captured.toString("UTF-8");
+	}
+
+	private interface Checked {
+		void run() throws Exception;
+	}
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DeltaTransferTest {
+
+	// Files of less than 16 MB have the smallest blocks
+	private static final int BLOCK = DeltaTransfer.blockSize(0);
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final Random random = new Random(42);
+
+	// Only full blocks are matched, so the rest of the file is always written
+	@Test
+	public void unchangedFileWritesOnlyTheTail() throws IOException {
+		byte[] old = randomBytes(8 * BLOCK + 100);
+		assertEquals(100, update(old, old.clone()));
+	}
+
+	@Test
+	public void onlyTheChangedBlockIsWritten() throws IOException {
+		byte[] old = randomBytes(8 * BLOCK);
+		byte[] changed = old.clone();
+		changed[2 * BLOCK + 10] ^= 1;
+		assertEquals(BLOCK, update(old, changed));
+	}
+
+	@Test
+	public void appendedDataIsWritten() throws IOException {
+		byte[] old = randomBytes(4 * BLOCK);
+		byte[] appended = concat(old, randomBytes(300));
+		assertEquals(300, update(old, appended));
+	}
+
+	// Blocks that come later in the new file are overwritten before they are read, so only blocks at or after their
+	// new position are referenced
+	@Test
+	public void reorderedBlocks() throws IOException {
+		byte[] a = randomBytes(BLOCK);
+		byte[] b = randomBytes(BLOCK);
+		byte[] c = randomBytes(BLOCK);
+		byte[] d = randomBytes(BLOCK);
+		update(concat(a, b, c, d), concat(d, c, b, a));
+		update(concat(a, b, c, d), concat(b, a, d, c));
+		update(concat(a, b, c, d), concat(a, a, a, d));
+	}
+
+	@Test
+	public void blocksShiftedRight() throws IOException {
+		byte[] old = randomBytes(8 * BLOCK);
+		update(old, concat(randomBytes(100), old));
+	}
+
+	@Test
+	public void blocksShiftedLeft() throws IOException {
+		byte[] old = randomBytes(8 * BLOCK);
+		byte[] shifted = new byte[old.length - 100];
+		System.arraycopy(old, 100, shifted, 0, shifted.length);
+		update(old, shifted);
+	}
+
+	@Test
+	public void truncatedFile() throws IOException {
+		byte[] old = randomBytes(8 * BLOCK);
+		byte[] truncated = new byte[3 * BLOCK + 7];
+		System.arraycopy(old, 0, truncated, 0, truncated.length);
+		assertEquals(7, update(old, truncated));
+	}
+
+	// Updates a file with the old content to the new content, checks it and returns the number of bytes written
+	private long update(byte[] oldContent, byte[] newContent) throws IOException {
+		File source = folder.newFile();
+		File target = folder.newFile();
+		Files.write(source.toPath(), newContent);
+		Files.setLastModifiedTime(source.toPath(), FileTime.fromMillis(1500000000000L));
+		Files.write(target.toPath(), oldContent);
+		long written = DeltaTransfer.update(source, target);
+		assertArrayEquals(newContent, Files.readAllBytes(target.toPath()));
+		assertEquals(1500000000000L, target.lastModified());
+		return written;
+	}
+
+	private byte[] randomBytes(int length) {
+		byte[] bytes = new byte[length];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		int length = 0;
+		for (byte[] part : parts) {
+			length += part.length;
+		}
+		byte[] all = new byte[length];
+		int position = 0;
+		for (byte[] part : parts) {
+			System.arraycopy(part, 0, all, position, part.length);
+			position += part.length;
+		}
+		return all;
+	}
+}
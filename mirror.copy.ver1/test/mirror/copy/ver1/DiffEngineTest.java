@@ -0,0 +1,145 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import mirror.copy.ver1.Copier.ChecksumIdentifier;
+import mirror.copy.ver1.Copier.FolderInfo;
+
+public class DiffEngineTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void sameStatesHaveNoChanges() throws Exception {
+		Object[] files = { path("a", "x"), 1, path("a", "y"), 2, "z", 1 };
+		assertTrue(DiffEngine.compare(state(FileHasher.MD5, files), state(FileHasher.MD5, files)).isEmpty());
+	}
+
+	// Locations are removed, inserted and kept by identifier, in path order
+	@Test
+	public void changesOfEveryIdentifier() throws Exception {
+		FolderInfo before = state(FileHasher.MD5, "b", 1, "a", 1, "c", 2, "d", 3, path("f", "e"), 4);
+		FolderInfo after = state(FileHasher.MD5, "a", 1, "e", 1, "d", 2, path("f", "e"), 4, "n", 5);
+		Map<String, String> changes = changes(DiffEngine.compare(before, after));
+		Map<String, String> expected = new TreeMap<>();
+		expected.put(id(1), "-[b] +[e] =[a]");
+		expected.put(id(2), "-[c] +[d] =[]");
+		expected.put(id(3), "-[d] +[] =[]");
+		expected.put(id(5), "-[] +[n] =[]");
+		assertEquals(expected, changes);
+	}
+
+	// Comparing only folders whose hash differs finds the same changes as comparing every identifier
+	@Test
+	public void folderHashesFindTheSameChanges() throws Exception {
+		Random random = new Random(1);
+		for (int round = 0; round < 20; round++) {
+			List<Object> files = new ArrayList<>();
+			for (int i = 0; i < 300; i++) {
+				files.add(path("d" + random.nextInt(5), "s" + random.nextInt(4), "f" + i));
+				files.add(random.nextInt(200));
+			}
+			List<Object> changed = new ArrayList<>(files);
+			for (int i = 0; i < 10; i++) {
+				int file = random.nextInt(changed.size() / 2) * 2;
+				switch (random.nextInt(4)) {
+				case 0: // moved
+					changed.set(file, path("d" + random.nextInt(6), "moved" + i));
+					break;
+				case 1: // modified
+					changed.set(file + 1, 1000 + i);
+					break;
+				case 2: // copied
+					changed.add(path("d" + random.nextInt(6), "copy" + i));
+					changed.add(changed.get(file + 1));
+					break;
+				default: // deleted
+					changed.remove(file);
+					changed.remove(file);
+					break;
+				}
+			}
+			FolderInfo before = state(FileHasher.MD5, files.toArray());
+			FolderInfo after = state(FileHasher.MD5, changed.toArray());
+			// Another checksum algorithm name turns folder hashes off, the identifiers stay equal
+			FolderInfo unhashed = state(FileHasher.SHA256, changed.toArray());
+			assertTrue(before.hasFolderHashes());
+			assertEquals(changes(DiffEngine.compare(before, unhashed)), changes(DiffEngine.compare(before, after)));
+		}
+	}
+
+	// A folder has the same hash in both states when the files under it are the same, wherever else files changed
+	@Test
+	public void folderHashesChangeWithFilesUnderThem() throws Exception {
+		FolderInfo before = state(FileHasher.MD5, path("a", "x"), 1, path("a", "b", "y"), 2, path("c", "z"), 3);
+		FolderInfo after = state(FileHasher.MD5, path("a", "x"), 1, path("a", "b", "y2"), 2, path("c", "z"), 3);
+		FolderIndex index1 = before.getFolderIndex();
+		FolderIndex index2 = after.getFolderIndex();
+		assertEquals(index1.getHash("c"), index2.getHash("c"));
+		assertNotEquals(index1.getHash(path("a", "b")), index2.getHash(path("a", "b")));
+		assertNotEquals(index1.getHash("a"), index2.getHash("a"));
+		assertNotEquals(index1.getHash(""), index2.getHash(""));
+		assertEquals(Arrays.asList(path("a", "b")), index1.getSubfolders("a"));
+		assertEquals(Collections.singletonMap(id(2), "-[" + path("a", "b", "y") + "] +[" + path("a", "b", "y2") + "] =[]"),
+				changes(DiffEngine.compare(before, after)));
+	}
+
+	// Paths and contents, given as path, content, path, content...
+	private FolderInfo state(String hash, Object... files) throws Exception {
+		FolderInfo state = new FolderInfo(folder.getRoot(), Copier.CHECKSUMS, hash);
+		for (int i = 0; i < files.length; i += 2) {
+			state.addId(identifier((Integer) files[i + 1]), (String) files[i]);
+		}
+		return state;
+	}
+
+	private static ChecksumIdentifier identifier(int content) {
+		byte[] checksum = new byte[ChecksumIdentifier.MAX_LENGTH];
+		checksum[0] = (byte) content;
+		checksum[1] = (byte) (content >> 8);
+		return new ChecksumIdentifier(checksum);
+	}
+
+	private static String id(int content) {
+		return identifier(content).toString();
+	}
+
+	private static Map<String, String> changes(List<DiffEngine.Change> changes) {
+		Map<String, String> result = new TreeMap<>();
+		for (DiffEngine.Change change : changes) {
+			result.put(change.getId().toString(), "-" + change.getRemoved() + " +" + change.getInserted() + " =" + change.getKept());
+		}
+		return result;
+	}
+
+	private static String path(String first, String... more) {
+		File path = new File(first);
+		for (String name : more) {
+			path = new File(path, name);
+		}
+		return path.getPath();
+	}
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileHasherTest {
+
+	// XXH64 with seed 0 of pattern(length), from the reference implementation
+	private static final int[] LENGTHS = { 0, 1, 3, 4, 8, 12, 31, 32, 33, 64, 100, 1027 };
+	private static final long[] HASHES = { 0xEF46DB3751D8E999L, 0x2078E1AD38AD738BL, 0xBDEF762E8804C53EL, 0x6BB99866CB63C0A8L,
+			0x3BA000679FBEE7B5L, 0x16DB5BEC86B7F42AL, 0x7231380363BB4388L, 0x56699A69DA28FD3BL, 0xD477447593124012L,
+			0xBAD331060E4CD79AL, 0xFB443E08EF7B1EF3L, 0xE15CF3258A357291L };
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void xxHash64OfStrings() {
+		assertEquals(0xEF46DB3751D8E999L, xxHash64(""));
+		assertEquals(0xD24EC4F1A98C6E5BL, xxHash64("a"));
+		assertEquals(0x44BC2CF5AD770999L, xxHash64("abc"));
+		assertEquals(0xFBCEA83C8A378BF1L, xxHash64("Nobody inspects the spammish repetition"));
+	}
+
+	// Lengths around the 4, 8 and 32 byte steps of the algorithm
+	@Test
+	public void xxHash64OfLengths() {
+		for (int i = 0; i < LENGTHS.length; i++) {
+			assertEquals("length " + LENGTHS[i], HASHES[i], FileHasher.xxHash64(ByteBuffer.wrap(pattern(LENGTHS[i]))));
+		}
+	}
+
+	// Slices of heap and direct buffers that do not start at a multiple of 8 bytes
+	@Test
+	public void xxHash64OfUnalignedSlices() {
+		for (int i = 0; i < LENGTHS.length; i++) {
+			byte[] data = pattern(LENGTHS[i]);
+			for (int offset = 1; offset < 8; offset++) {
+				byte[] padded = new byte[offset + data.length + 3];
+				System.arraycopy(data, 0, padded, offset, data.length);
+				assertEquals("length " + LENGTHS[i] + " at " + offset, HASHES[i], FileHasher.xxHash64(ByteBuffer.wrap(padded, offset, data.length)));
+				ByteBuffer heap = ByteBuffer.wrap(padded);
+				heap.position(offset).limit(offset + data.length);
+				assertEquals("length " + LENGTHS[i] + " at " + offset, HASHES[i], FileHasher.xxHash64(heap.slice()));
+				ByteBuffer direct = ByteBuffer.allocateDirect(padded.length);
+				direct.put(padded);
+				direct.position(offset).limit(offset + data.length);
+				assertEquals("length " + LENGTHS[i] + " at " + offset, HASHES[i], FileHasher.xxHash64(direct.slice()));
+			}
+		}
+	}
+
+	// Files are read in several buffers, and only the last one is partial
+	@Test
+	public void checksumOfFiles() throws Exception {
+		File file = folder.newFile();
+		Files.write(file.toPath(), pattern(1027));
+		assertArrayEquals(ByteBuffer.allocate(8).putLong(0xE15CF3258A357291L).array(), FileHasher.checksum(file, FileHasher.XXHASH64));
+		Files.write(file.toPath(), pattern((2 << 20) + 37));
+		assertArrayEquals(ByteBuffer.allocate(8).putLong(0x132BC7A762A84929L).array(), FileHasher.checksum(file, FileHasher.XXHASH64));
+		Files.write(file.toPath(), "abc".getBytes(StandardCharsets.US_ASCII));
+		assertEquals("900150983cd24fb0d6963f7d28e17f72", Snapshot.toHex(FileHasher.checksum(file, FileHasher.MD5)));
+	}
+
+	private static long xxHash64(String data) {
+		return FileHasher.xxHash64(ByteBuffer.wrap(data.getBytes(StandardCharsets.US_ASCII)));
+	}
+
+	private static byte[] pattern(int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) (i * 7 + 13);
+		}
+		return data;
+	}
+}
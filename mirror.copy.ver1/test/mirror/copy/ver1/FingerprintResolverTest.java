@@ -0,0 +1,142 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import mirror.copy.ver1.Copier.FolderInfo;
+
+public class FingerprintResolverTest {
+
+	private static final long TIME = 1500000000000L;
+	private static final int LARGE = 100000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	// All files have the same modification time, and large files of the same size differ only between their sample
+	// blocks, so every kind of fingerprint is needed to tell them apart
+	@Test
+	public void planIsTheSameAsWithChecksums() throws Exception {
+		Random random = new Random(1);
+		List<byte[]> contents = new ArrayList<>();
+		contents.add(new byte[20]);
+		for (int i = 0; i < 3; i++) {
+			contents.add(bytes(random, 10));
+		}
+		byte[] large = bytes(random, LARGE);
+		for (int i = 0; i < 3; i++) {
+			byte[] variant = large.clone();
+			variant[20000] = (byte) i;
+			contents.add(variant);
+		}
+		for (int round = 0; round < 20; round++) {
+			File root = folder.newFolder("round" + round);
+			List<String> paths = new ArrayList<>();
+			for (int i = 0; i < 12; i++) {
+				String path = path(random, i);
+				write(root, path, contents.get(random.nextInt(contents.size())));
+				paths.add(path);
+			}
+			FolderInfo checksumsBefore = scan(root, Copier.CHECKSUMS);
+			FolderInfo fingerprintsBefore = new FingerprintResolver(scan(root, Copier.FINGERPRINTS)).resolve();
+
+			for (int change = 0; change < 6; change++) {
+				String path = paths.get(random.nextInt(paths.size()));
+				File file = new File(root, path);
+				String other = path(random, 12 + change);
+				if (!file.exists() || new File(root, other).exists()) {
+					continue;
+				}
+				switch (random.nextInt(4)) {
+				case 0:
+					new File(root, other).getParentFile().mkdirs();
+					Files.move(file.toPath(), new File(root, other).toPath());
+					paths.add(other);
+					break;
+				case 1:
+					write(root, other, Files.readAllBytes(file.toPath()));
+					paths.add(other);
+					break;
+				case 2:
+					Files.delete(file.toPath());
+					break;
+				default:
+					// Another content of the same size, with the same modification time
+					long size = file.length();
+					byte[] content;
+					do {
+						content = contents.get(random.nextInt(contents.size()));
+					} while (content.length != size);
+					write(root, path, content);
+				}
+			}
+			FolderInfo checksumsAfter = scan(root, Copier.CHECKSUMS);
+			FolderInfo fingerprintsAfter = new FingerprintResolver(scan(root, Copier.FINGERPRINTS)).alignWith(fingerprintsBefore);
+
+			Set<String> expected = plan(checksumsBefore, checksumsAfter);
+			assertEquals("round " + round, expected, plan(fingerprintsBefore, fingerprintsAfter));
+		}
+	}
+
+	// The operations of the plan and what they wait for; the numbers depend on the order of the identifiers
+	private static Set<String> plan(FolderInfo before, FolderInfo after) throws Exception {
+		Set<String> plan = new TreeSet<>();
+		for (Operation operation : new Planner().plan(DiffEngine.compare(before, after), before, after)) {
+			Set<String> dependencies = new TreeSet<>();
+			for (Operation dependency : operation.getDependencies()) {
+				dependencies.add(describe(dependency));
+			}
+			plan.add(describe(operation) + " after " + dependencies);
+		}
+		return plan;
+	}
+
+	private static String describe(Operation operation) {
+		return operation.getType() + " " + operation.getFrom() + " -> " + operation.getPath();
+	}
+
+	private FolderInfo scan(File root, String method) throws Exception {
+		SyncSession session = new SyncSession(new File(folder.getRoot(), "saved.checksum"));
+		session.setThreads(1);
+		FolderInfo results = new FolderInfo(root, method, FileHasher.MD5);
+		session.scan(root, results, false);
+		return results;
+	}
+
+	// A few folders, so that some of them move as a whole
+	private static String path(Random random, int i) {
+		return new File("folder" + random.nextInt(3), "file" + i).getPath();
+	}
+
+	private static byte[] bytes(Random random, int length) {
+		byte[] bytes = new byte[length];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+
+	private static void write(File root, String path, byte[] content) throws Exception {
+		File file = new File(root, path);
+		file.getParentFile().mkdirs();
+		Files.write(file.toPath(), content);
+		assertTrue(file.setLastModified(TIME));
+	}
+}
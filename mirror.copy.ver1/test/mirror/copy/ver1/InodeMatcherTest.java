@@ -0,0 +1,102 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import mirror.copy.ver1.Copier.FolderInfo;
+import mirror.copy.ver1.Copier.Identifier;
+
+public class InodeMatcherTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	// Files with a new file key get the identifier of the file that is gone if their content is the same
+	@Test
+	public void filesWithNewKeysAreMatchedByContent() throws Exception {
+		File source = folder.newFolder("source");
+		File target = folder.newFolder("target");
+		for (File root : new File[] { source, target }) {
+			write(root, "kept", "kept");
+			write(root, "renamed", "renamed");
+			write(root, "edited", "edited");
+			write(root, "replaced", "replaced");
+		}
+		FolderInfo previous = scan(source);
+
+		// New files are created before the old ones are deleted, so that their file keys are not reused
+		Files.copy(new File(source, "renamed").toPath(), new File(source, "moved").toPath());
+		write(source, "edited.tmp", "edited");
+		write(source, "new", "REPLACED");
+		Files.move(new File(source, "edited.tmp").toPath(), new File(source, "edited").toPath(), StandardCopyOption.REPLACE_EXISTING);
+		Files.delete(new File(source, "renamed").toPath());
+		Files.delete(new File(source, "replaced").toPath());
+		FolderInfo scanned = scan(source);
+		assertNotEquals(id(previous, "renamed"), id(scanned, "moved"));
+		assertNotEquals(id(previous, "edited"), id(scanned, "edited"));
+
+		InodeMatcher matcher = new InodeMatcher(scanned, previous, target);
+		FolderInfo aligned = matcher.alignWith();
+		assertEquals(2, matcher.getMatchedCount());
+		assertEquals(scanned.getEntryCount(), aligned.getEntryCount());
+		assertEquals(id(previous, "kept"), id(aligned, "kept"));
+		assertEquals(id(previous, "renamed"), id(aligned, "moved"));
+		assertEquals(id(previous, "edited"), id(aligned, "edited"));
+		// Same size, other content
+		assertEquals(id(scanned, "new"), id(aligned, "new"));
+		assertNotEquals(id(previous, "replaced"), id(aligned, "new"));
+	}
+
+	// A file that is gone from the target folder too cannot be read, so it is copied
+	@Test
+	public void filesGoneFromTargetAreNotMatched() throws Exception {
+		File source = folder.newFolder("source");
+		File target = folder.newFolder("target");
+		write(source, "renamed", "renamed");
+		FolderInfo previous = scan(source);
+		Files.copy(new File(source, "renamed").toPath(), new File(source, "moved").toPath());
+		Files.delete(new File(source, "renamed").toPath());
+		FolderInfo scanned = scan(source);
+		InodeMatcher matcher = new InodeMatcher(scanned, previous, target);
+		FolderInfo aligned = matcher.alignWith();
+		assertEquals(0, matcher.getMatchedCount());
+		assertEquals(id(scanned, "moved"), id(aligned, "moved"));
+	}
+
+	private FolderInfo scan(File source) throws Exception {
+		SyncSession session = new SyncSession(new File(folder.getRoot(), "saved.checksum"));
+		session.setThreads(1);
+		FolderInfo results = new FolderInfo(source, Copier.INODES, FileHasher.MD5);
+		session.scan(source, results, false);
+		return results;
+	}
+
+	private static void write(File root, String path, String content) throws Exception {
+		Files.write(new File(root, path).toPath(), content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static Identifier id(FolderInfo info, String path) {
+		for (int entry = 0; entry < info.getEntryCount(); entry++) {
+			if (info.getRelativePath(entry).equals(path)) {
+				return info.getIdentifier(entry);
+			}
+		}
+		throw new AssertionError(path + " is not in " + info.getFolder());
+	}
+}
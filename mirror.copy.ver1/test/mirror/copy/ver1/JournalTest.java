@@ -0,0 +1,92 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class JournalTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void planAndCompletedOperationsAreLoaded() throws Exception {
+		File journalFile = new File(folder.getRoot(), "saved.journal");
+		List<Operation> plan = plan();
+		try (Journal journal = Journal.create(journalFile, folder.getRoot(), folder.getRoot(), plan)) {
+			journal.completed(plan.get(0), false);
+			journal.completed(plan.get(2), true);
+		}
+		Journal.Unfinished unfinished = Journal.load(journalFile);
+		assertEquals(new HashSet<>(Arrays.asList(1, 3)), unfinished.getCompleted());
+		assertEquals(plan.toString(), unfinished.getPlan().toString());
+	}
+
+	// A record cut off by a crash is dropped when the journal is continued
+	@Test
+	public void resumeDropsTruncatedLastRecord() throws Exception {
+		File journalFile = new File(folder.getRoot(), "saved.journal");
+		List<Operation> plan = plan();
+		try (Journal journal = Journal.create(journalFile, folder.getRoot(), folder.getRoot(), plan)) {
+			journal.completed(plan.get(0), true);
+		}
+		long length = journalFile.length();
+		try (FileOutputStream out = new FileOutputStream(journalFile, true)) {
+			out.write(new byte[] { 1, 0, 0 });
+		}
+		Journal.Unfinished unfinished = Journal.load(journalFile);
+		assertEquals(new HashSet<>(Arrays.asList(1)), unfinished.getCompleted());
+		try (Journal journal = Journal.append(journalFile, unfinished)) {
+			journal.completed(plan.get(1), true);
+		}
+		assertEquals(length + 5, journalFile.length());
+		assertEquals(new HashSet<>(Arrays.asList(1, 2)), Journal.load(journalFile).getCompleted());
+	}
+
+	// The counts of a plan may come from the network, they do not size the arrays before the data is there
+	@Test(expected = EOFException.class)
+	public void truncatedPlanWithHugeCountsFails() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(Integer.MAX_VALUE);
+		out.writeByte(Operation.Type.MKDIR.ordinal());
+		out.writeUTF("");
+		out.writeUTF("folder");
+		out.writeBoolean(false);
+		out.writeInt(Integer.MAX_VALUE);
+		out.writeInt(1);
+		Journal.readPlan(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+	}
+
+	private static List<Operation> plan() {
+		Operation mkdir = Operation.mkdir("folder");
+		Operation copy = Operation.copy("folder/file", "folder/file", true);
+		copy.addDependency(mkdir);
+		Operation move = Operation.move("old", "new");
+		List<Operation> plan = Arrays.asList(mkdir, copy, move);
+		for (int i = 0; i < plan.size(); i++) {
+			plan.get(i).setNumber(i + 1);
+		}
+		return plan;
+	}
+}
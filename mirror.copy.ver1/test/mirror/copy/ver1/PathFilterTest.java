@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PathFilterTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void withoutRulesEverythingIsIncluded() {
+		assertTrue(PathFilter.ALL.acceptsPath(path("a", "b", "c.tmp"), false));
+		assertTrue(PathFilter.of(Arrays.<String> asList()).isEmpty());
+	}
+
+	// The first rule that matches decides
+	@Test
+	public void firstMatchWins() {
+		PathFilter filter = filter("+ keep.tmp", "- *.tmp", "+ *");
+		assertTrue(filter.accepts("keep.tmp", false));
+		assertTrue(filter.accepts(path("a", "keep.tmp"), false));
+		assertFalse(filter.accepts("other.tmp", false));
+		assertFalse(filter.accepts(path("a", "other.tmp"), false));
+		assertTrue(filter.accepts("other.txt", false));
+
+		PathFilter reversed = filter("- *.tmp", "+ keep.tmp");
+		assertFalse(reversed.accepts("keep.tmp", false));
+	}
+
+	// A pattern without / matches names at any depth, one with / matches the whole path
+	@Test
+	public void patternsWithSlashMatchWholePaths() {
+		PathFilter filter = filter("- build/out", "- /top.txt");
+		assertFalse(filter.accepts(path("build", "out"), true));
+		assertTrue(filter.accepts(path("a", "build", "out"), true));
+		assertFalse(filter.accepts("top.txt", false));
+		assertTrue(filter.accepts(path("a", "top.txt"), false));
+	}
+
+	// A pattern that ends with / only matches folders
+	@Test
+	public void folderOnlyRules() {
+		PathFilter filter = filter("- node_modules/");
+		assertFalse(filter.accepts("node_modules", true));
+		assertFalse(filter.accepts(path("a", "node_modules"), true));
+		assertTrue(filter.accepts("node_modules", false));
+		assertEquals(PathFilter.DEPENDS_ON_TYPE, filter.check("node_modules"));
+		assertEquals(PathFilter.INCLUDED, filter.check("src"));
+		assertEquals(PathFilter.EXCLUDED, filter("- *.o").check(path("a", "b.o")));
+	}
+
+	// regex: patterns match the whole path with / between folders
+	@Test
+	public void regexRules() {
+		PathFilter filter = filter("- regex:.*/cache/[0-9]+", "- regex:[^/]*\\.bak");
+		assertFalse(filter.accepts(path("a", "cache", "12"), false));
+		assertTrue(filter.accepts(path("a", "cache", "x12"), false));
+		assertTrue(filter.accepts(path("cache", "12"), false));
+		assertFalse(filter.accepts("old.bak", false));
+		assertTrue(filter.accepts(path("a", "old.bak"), false));
+	}
+
+	// The files and folders of an excluded folder are excluded with it, whatever the rules say about them
+	@Test
+	public void contentsOfExcludedFolderAreExcluded() {
+		PathFilter filter = filter("+ *.java", "- .git/");
+		assertFalse(filter.acceptsPath(path(".git", "objects", "ab"), false));
+		assertFalse(filter.acceptsPath(path(".git", "objects"), true));
+		assertFalse(filter.acceptsPath(path("a", ".git", "Hook.java"), false));
+		assertTrue(filter.acceptsPath(path("a", "Main.java"), false));
+		// Only a folder named .git is excluded
+		assertTrue(filter.acceptsPath(path("a", ".git"), false));
+	}
+
+	@Test
+	public void incorrectRulesAreRejected() {
+		for (String rule : new String[] { "*.tmp", "- ", "- /", "- regex:(" }) {
+			try {
+				PathFilter.of(Arrays.asList(rule));
+				fail(rule);
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void rulesFileSkipsCommentsAndEmptyLines() throws Exception {
+		File rules = folder.newFile();
+		Files.write(rules.toPath(), Arrays.asList("# build outputs", "", "- target/", "+ *"), StandardCharsets.UTF_8);
+		assertEquals(Arrays.asList("- target/", "+ *"), PathFilter.read(rules));
+		assertEquals(filter("- target/", "+ *"), PathFilter.of(PathFilter.read(rules)));
+	}
+
+	private static PathFilter filter(String... rules) {
+		return PathFilter.of(Arrays.asList(rules));
+	}
+
+	private static String path(String first, String... more) {
+		File path = new File(first);
+		for (String name : more) {
+			path = new File(path, name);
+		}
+		return path.getPath();
+	}
+}
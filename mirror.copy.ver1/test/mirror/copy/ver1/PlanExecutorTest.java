@@ -0,0 +1,115 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNoException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PlanExecutorTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void deltaUpdatesFileInPlace() throws Exception {
+		File source = folder.newFolder("source");
+		File target = folder.newFolder("target");
+		byte[] old = randomBytes(64 * 1024);
+		byte[] changed = old.clone();
+		changed[100] ^= 1;
+		Files.write(new File(source, "file").toPath(), changed);
+		Files.write(new File(target, "file").toPath(), old);
+		Object fileKey = fileKey(new File(target, "file"));
+		assertEquals(0, execute(source, target, Operation.delta("file")));
+		assertArrayEquals(changed, Files.readAllBytes(new File(target, "file").toPath()));
+		assertEquals(fileKey, fileKey(new File(target, "file")));
+	}
+
+	// Updating the file in place would change the other names of it too
+	@Test
+	public void deltaKeepsOtherHardLinks() throws Exception {
+		File source = folder.newFolder("source");
+		File target = folder.newFolder("target");
+		byte[] old = randomBytes(64 * 1024);
+		byte[] changed = old.clone();
+		changed[100] ^= 1;
+		Files.write(new File(source, "file").toPath(), changed);
+		Files.write(new File(target, "file").toPath(), old);
+		try {
+			Files.createLink(new File(target, "link").toPath(), new File(target, "file").toPath());
+		} catch (IOException | UnsupportedOperationException e) {
+			assumeNoException(e);
+		}
+		assertEquals(0, execute(source, target, Operation.delta("file")));
+		assertArrayEquals(changed, Files.readAllBytes(new File(target, "file").toPath()));
+		assertArrayEquals(old, Files.readAllBytes(new File(target, "link").toPath()));
+	}
+
+	// A path with a NUL character makes toPath() throw InvalidPathException, which is not an IOException
+	@Test(timeout = 30000)
+	public void operationsThatThrowFail() throws Exception {
+		File source = folder.newFolder("source");
+		File target = folder.newFolder("target");
+		Files.write(new File(source, "file").toPath(), randomBytes(100));
+		Operation mkdir = Operation.mkdir("bad\0folder");
+		Operation copy = Operation.copy("file", "bad\0folder/file", true);
+		copy.addDependency(mkdir);
+		assertEquals(3, execute(source, target, mkdir, copy, Operation.copy("file", "bad\0file", true), Operation.mkdir("good")));
+		assertTrue(new File(target, "good").isDirectory());
+	}
+
+	// The operations after a failed one are skipped without a stack frame each
+	@Test(timeout = 30000)
+	public void longChainIsSkipped() throws Exception {
+		File source = folder.newFolder("source");
+		File target = folder.newFolder("target");
+		Operation[] plan = new Operation[50000];
+		plan[0] = Operation.mkdir("bad\0folder");
+		for (int i = 1; i < plan.length; i++) {
+			plan[i] = Operation.delete("file" + i);
+			plan[i].addDependency(plan[i - 1]);
+		}
+		assertEquals(plan.length, execute(source, target, plan));
+	}
+
+	// Returns the number of operations that failed
+	private static int execute(File source, File target, Operation... plan) throws InterruptedException {
+		for (int i = 0; i < plan.length; i++) {
+			plan[i].setNumber(i + 1);
+		}
+		try (CopyScheduler copies = new CopyScheduler(1, 1)) {
+			copies.setQuiet(true);
+			PlanExecutor executor = new PlanExecutor(source, target, 1, copies);
+			executor.setQuiet(true);
+			return executor.execute(Arrays.asList(plan));
+		}
+	}
+
+	private static Object fileKey(File file) throws IOException {
+		return Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+	}
+
+	private static byte[] randomBytes(int length) {
+		byte[] bytes = new byte[length];
+		new Random(1).nextBytes(bytes);
+		return bytes;
+	}
+}
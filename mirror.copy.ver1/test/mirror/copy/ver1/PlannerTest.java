@@ -0,0 +1,286 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import mirror.copy.ver1.Copier.ChecksumIdentifier;
+import mirror.copy.ver1.Copier.FolderInfo;
+
+public class PlannerTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void swapGoesThroughTemporaryName() throws Exception {
+		FolderInfo before = state("a", 1, "b", 2);
+		FolderInfo after = state("a", 2, "b", 1);
+		List<Operation> plan = plan(before, after);
+		assertEquals(3, plan.size());
+		assertEquals(contents(after), replay(before, plan));
+	}
+
+	@Test
+	public void rotationGoesThroughTemporaryName() throws Exception {
+		FolderInfo before = state("c", 1, "d", 2, "e", 3);
+		FolderInfo after = state("e", 1, "c", 2, "d", 3);
+		List<Operation> plan = plan(before, after);
+		assertEquals(4, plan.size());
+		assertEquals(contents(after), replay(before, plan));
+	}
+
+	// The temporary name of a cycle is not a name of the states or of another cycle
+	@Test
+	public void temporaryNamesDoNotCollide() throws Exception {
+		FolderInfo before = state("a", 1, "b", 2, "a.mirror.tmp", 3, "a.1.mirror.tmp/f", 4, "c", 5, "d", 6);
+		FolderInfo after = state("a", 2, "b", 1, "a.mirror.tmp", 3, "a.1.mirror.tmp/f", 4, "c", 6, "d", 5);
+		List<Operation> plan = plan(before, after);
+		assertEquals(6, plan.size());
+		assertEquals(contents(after), replay(before, plan));
+	}
+
+	// The file takes the place of its own folder, so it is moved out of the folder before the folder is removed
+	@Test(timeout = 10000)
+	public void fileMovesIntoPlaceOfItsFolder() throws Exception {
+		FolderInfo before = state("x/y", 1, "z", 2);
+		FolderInfo after = state("x", 1, "z", 2);
+		List<Operation> plan = plan(before, after);
+		assertEquals(contents(after), replay(before, plan));
+	}
+
+	@Test(timeout = 10000)
+	public void fileMovesIntoPlaceOfItsGrandparent() throws Exception {
+		FolderInfo before = state("a/b/c", 1, "a/b/d", 2, "a/e", 3);
+		FolderInfo after = state("a", 1, "d", 2, "e", 3);
+		List<Operation> plan = plan(before, after);
+		assertEquals(contents(after), replay(before, plan));
+	}
+
+	// A folder whose files all moved under the same paths is moved as a whole, and a removed folder is removed
+	// only after its files were deleted
+	@Test
+	public void foldersAreMovedAndRemovedInOrder() throws Exception {
+		FolderInfo before = state("old/a", 1, "old/sub/b", 2, "gone/c", 3);
+		FolderInfo after = state("new/a", 1, "new/sub/b", 2);
+		List<Operation> plan = plan(before, after);
+		Operation mvdir = find(plan, Operation.Type.MVDIR, "new");
+		assertNotNull(mvdir);
+		assertEquals("old", mvdir.getFrom());
+		assertEquals(null, find(plan, Operation.Type.MOVE, "new/a"));
+		assertEquals(null, find(plan, Operation.Type.MKDIR, "new"));
+		Operation delete = find(plan, Operation.Type.DELETE, "gone/c");
+		Operation rmdir = find(plan, Operation.Type.RMDIR, "gone");
+		assertTrue(delete.getNumber() < rmdir.getNumber());
+		assertEquals(contents(after), replay(before, plan));
+	}
+
+	// Deleted files are deleted in the moved folder, and files added to the new folder are copied there
+	@Test
+	public void folderIsMovedWithRemovalsAndAdditions() throws Exception {
+		FolderInfo before = state("old/a", 1, "old/b", 2, "old/sub/c", 3);
+		FolderInfo after = state("new/a", 1, "new/sub/c", 3, "new/d", 4);
+		List<Operation> plan = plan(before, after);
+		assertEquals("old", find(plan, Operation.Type.MVDIR, "new").getFrom());
+		assertNotNull(find(plan, Operation.Type.DELETE, "new/b"));
+		assertEquals(contents(after).keySet(), replay(before, plan).keySet());
+	}
+
+	// The files of the folder go to several folders, so each of them is moved
+	@Test
+	public void folderIsNotMovedWhenItsFilesSplit() throws Exception {
+		FolderInfo before = state("old/a", 1, "old/b", 2, "old/c", 3);
+		FolderInfo after = state("new/a", 1, "new/b", 2, "other/c", 3);
+		List<Operation> plan = plan(before, after);
+		assertEquals(null, find(plan, Operation.Type.MVDIR, "new"));
+		assertNotNull(find(plan, Operation.Type.MOVE, "new/a"));
+		assertNotNull(find(plan, Operation.Type.MOVE, "other/c"));
+		assertNotNull(find(plan, Operation.Type.RMDIR, "old"));
+		assertEquals(contents(after), replay(before, plan));
+	}
+
+	@Test
+	public void folderIsMovedWhenTargetHasOnlyKnownFiles() throws Exception {
+		FolderInfo before = state("old/a", 1, "old/sub/b", 2);
+		FolderInfo after = state("new/a", 1, "new/sub/b", 2);
+		Planner planner = new Planner();
+		planner.setTargets(Arrays.asList(target(before)));
+		assertNotNull(find(plan(planner, before, after), Operation.Type.MVDIR, "new"));
+	}
+
+	// Files that Step 1 does not know, or that the rules exclude, stay in the target folder
+	@Test
+	public void folderWithUnknownOrExcludedFilesIsNotMoved() throws Exception {
+		FolderInfo before = state("old/a", 1, "old/sub/b", 2);
+		FolderInfo after = state("new/a", 1, "new/sub/b", 2);
+		for (String other : new String[] { "old/sub/unknown", "old/excluded.log", "old/build/file" }) {
+			File target = target(before);
+			new File(target, other).getParentFile().mkdirs();
+			new File(target, other).createNewFile();
+			Planner planner = new Planner();
+			planner.setTargets(Arrays.asList(target));
+			planner.setFilter(PathFilter.of(Arrays.asList("- *.log", "- build/")));
+			List<Operation> plan = plan(planner, before, after);
+			assertEquals(other, null, find(plan, Operation.Type.MVDIR, "new"));
+			assertNotNull(other, find(plan, Operation.Type.MOVE, "new/a"));
+		}
+		File target = target(before);
+		new File(target, "old/sub/unknown").createNewFile();
+		Planner planner = new Planner();
+		planner.setTargets(Arrays.asList(target));
+		assertEquals(null, find(plan(planner, before, after), Operation.Type.MVDIR, "new/sub"));
+	}
+
+	// A folder that is already at the destination, e.g. empty or with excluded files, would make the move fail
+	@Test
+	public void folderIsNotMovedOntoExistingFolder() throws Exception {
+		FolderInfo before = state("old/a", 1, "old/sub/b", 2);
+		FolderInfo after = state("new/a", 1, "new/sub/b", 2);
+		File target = target(before);
+		new File(target, "new").mkdir();
+		Planner planner = new Planner();
+		planner.setTargets(Arrays.asList(target));
+		List<Operation> plan = plan(planner, before, after);
+		assertEquals(null, find(plan, Operation.Type.MVDIR, "new"));
+		assertNotNull(find(plan, Operation.Type.MOVE, "new/a"));
+	}
+
+	// A remote target folder cannot be looked at
+	@Test
+	public void folderIsNotMovedInRemoteTarget() throws Exception {
+		FolderInfo before = state("old/a", 1, "old/sub/b", 2);
+		FolderInfo after = state("new/a", 1, "new/sub/b", 2);
+		Planner planner = new Planner();
+		planner.setTargets(Arrays.asList(target(before), new File(RemoteTarget.PREFIX + "localhost")));
+		assertEquals(null, find(plan(planner, before, after), Operation.Type.MVDIR, "new"));
+	}
+
+	// A file is copied into a new folder after the folder is created
+	@Test
+	public void folderIsCreatedBeforeItsFiles() throws Exception {
+		FolderInfo before = state("a", 1);
+		FolderInfo after = state("a", 1, "x/y/b", 2);
+		List<Operation> plan = plan(before, after);
+		assertTrue(find(plan, Operation.Type.MKDIR, "x").getNumber() < find(plan, Operation.Type.MKDIR, "x/y").getNumber());
+		assertTrue(find(plan, Operation.Type.MKDIR, "x/y").getNumber() < find(plan, Operation.Type.COPY, "x/y/b").getNumber());
+	}
+
+	private static List<Operation> plan(FolderInfo before, FolderInfo after) {
+		return plan(new Planner(), before, after);
+	}
+
+	private static List<Operation> plan(Planner planner, FolderInfo before, FolderInfo after) {
+		List<Operation> plan = planner.plan(DiffEngine.compare(before, after), before, after);
+		for (int i = 0; i < plan.size(); i++) {
+			assertEquals(i + 1, plan.get(i).getNumber());
+		}
+		return plan;
+	}
+
+	// Paths and contents, given as path, content, path, content...
+	private FolderInfo state(Object... files) throws Exception {
+		FolderInfo state = new FolderInfo(folder.getRoot(), Copier.CHECKSUMS, "md5");
+		for (int i = 0; i < files.length; i += 2) {
+			state.addId(new ChecksumIdentifier(new byte[] { ((Integer) files[i + 1]).byteValue() }), (String) files[i]);
+		}
+		return state;
+	}
+
+	// A target folder with the files of the state
+	private File target(FolderInfo state) throws Exception {
+		File target = folder.newFolder();
+		for (int entry = 0; entry < state.getEntryCount(); entry++) {
+			File file = new File(target, state.getRelativePath(entry));
+			file.getParentFile().mkdirs();
+			file.createNewFile();
+		}
+		return target;
+	}
+
+	private static Map<String, String> contents(FolderInfo state) {
+		Map<String, String> contents = new HashMap<>();
+		for (int entry = 0; entry < state.getEntryCount(); entry++) {
+			contents.put(state.getRelativePath(entry), state.getIdentifier(entry).toString());
+		}
+		return contents;
+	}
+
+	// Applies the operations in their order, and fails if one of them would overwrite a file or lose one
+	private static Map<String, String> replay(FolderInfo before, List<Operation> plan) {
+		Map<String, String> files = contents(before);
+		Set<String> folders = new HashSet<>(before.getFolderPaths());
+		for (Operation operation : plan) {
+			String path = operation.getPath();
+			String parent = new File(path).getParent();
+			assertTrue(operation + " has no folder", parent == null || folders.contains(parent));
+			switch (operation.getType()) {
+			case MKDIR:
+				assertTrue(operation.toString(), folders.add(path));
+				break;
+			case RMDIR:
+				for (String file : files.keySet()) {
+					assertFalse(operation + " removes " + file, file.startsWith(path + "/"));
+				}
+				assertTrue(operation.toString(), folders.remove(path));
+				break;
+			case MVDIR:
+				assertTrue(operation.toString(), folders.remove(operation.getFrom()));
+				assertTrue(operation.toString(), folders.add(path));
+				for (String moved : new HashSet<>(folders)) {
+					if (moved.startsWith(operation.getFrom() + "/")) {
+						folders.remove(moved);
+						folders.add(path + moved.substring(operation.getFrom().length()));
+					}
+				}
+				for (String moved : new HashSet<>(files.keySet())) {
+					if (moved.startsWith(operation.getFrom() + "/")) {
+						files.put(path + moved.substring(operation.getFrom().length()), files.remove(moved));
+					}
+				}
+				break;
+			case MOVE:
+				assertFalse(operation + " overwrites a file", files.containsKey(path) || folders.contains(path));
+				assertNotNull(operation + " has no file", files.get(operation.getFrom()));
+				files.put(path, files.remove(operation.getFrom()));
+				break;
+			case DELETE:
+				assertNotNull(operation + " has no file", files.remove(path));
+				break;
+			default:
+				assertFalse(operation + " overwrites a file", files.containsKey(path));
+				files.put(path, operation.toString());
+				break;
+			}
+		}
+		return files;
+	}
+
+	private static Operation find(List<Operation> plan, Operation.Type type, String path) {
+		for (Operation operation : plan) {
+			if (operation.getType() == type && operation.getPath().equals(path)) {
+				return operation;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import mirror.copy.ver1.Copier.ChecksumIdentifier;
+import mirror.copy.ver1.Copier.FileStamp;
+import mirror.copy.ver1.Copier.FolderInfo;
+import mirror.copy.ver1.Copier.Identifier;
+
+public class SnapshotTest {
+
+	// Consecutive paths share prefixes that end inside a folder name, span folders, or would split a surrogate pair
+	private static final String[] PATHS = { path("a", "b", "file"), path("a", "bc", "file"), path("a", "bc", "filed"),
+			path("a", "file"), "b", path("b2", "😀x"), path("b2", "😁y"), path("été", "café") };
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void entriesAndFoldersRoundTrip() throws Exception {
+		FolderInfo results = state();
+		File file = folder.newFile("saved.checksum");
+		write(file, results, PathFilter.of(Arrays.asList("- *.tmp", "+ a/**")));
+
+		FolderInfo loaded = Snapshot.load(file, null);
+		assertEquals(results.getMethod(), loaded.getMethod());
+		assertEquals(results.getHash(), loaded.getHash());
+		assertEquals(results.getFolder().getAbsoluteFile(), loaded.getFolder());
+		assertEquals(PATHS.length, loaded.getEntryCount());
+		for (int entry = 0; entry < PATHS.length; entry++) {
+			assertEquals(results.getRelativePath(entry), loaded.getRelativePath(entry));
+			assertEquals(results.getIdentifier(entry), loaded.getIdentifier(entry));
+			assertEquals(String.valueOf(results.getStamp(entry)), String.valueOf(loaded.getStamp(entry)));
+		}
+		Map<String, FolderIndex.Summary> summaries = results.getFolderSummaries();
+		assertEquals(summaries.keySet(), loaded.getFolderSummaries().keySet());
+		for (String path : summaries.keySet()) {
+			FolderIndex.Summary summary = loaded.getFolderSummaries().get(path);
+			assertEquals(summaries.get(path).getModificationTime(), summary.getModificationTime());
+			assertEquals(summaries.get(path).getEntryCount(), summary.getEntryCount());
+			assertEquals(results.getFolderHash(path), loaded.getFolderHash(path));
+		}
+		assertEquals(results, loaded);
+		assertEquals(Arrays.asList("- *.tmp", "+ a/**"), Snapshot.readFilter(file).getRules());
+	}
+
+	// The reader maps the file and visits the entries in the order they were written
+	@Test
+	public void readerVisitsEntriesInOrder() throws Exception {
+		FolderInfo results = state();
+		File file = folder.newFile("saved.checksum");
+		write(file, results, PathFilter.ALL);
+		final List<String> paths = new ArrayList<>();
+		try (Snapshot.Reader reader = new Snapshot.Reader(file)) {
+			assertEquals(Copier.CHECKSUMS, reader.getMethod());
+			assertTrue(reader.getFilterRules().isEmpty());
+			reader.forEach(new Snapshot.EntryVisitor() {
+				@Override
+				public void visit(String relativePath, Identifier id, FileStamp stamp) {
+					paths.add(relativePath);
+				}
+			});
+			final List<String> folders = new ArrayList<>();
+			reader.forEachFolder(new Snapshot.FolderVisitor() {
+				@Override
+				public void visit(String relativePath, long modificationTime, int entryCount, Long hash) {
+					folders.add(relativePath);
+				}
+			});
+			assertEquals(results.getFolderSummaries().size(), folders.size());
+		}
+		assertEquals(Arrays.asList(PATHS), paths);
+	}
+
+	@Test
+	public void truncatedSnapshotIsRejected() throws Exception {
+		File file = folder.newFile("saved.checksum");
+		write(file, state(), PathFilter.ALL);
+		try (RandomAccessFile truncated = new RandomAccessFile(file, "rw")) {
+			truncated.setLength(truncated.length() / 2);
+		}
+		try {
+			Snapshot.load(file, null);
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	private FolderInfo state() throws Exception {
+		FolderInfo results = new FolderInfo(folder.getRoot(), Copier.CHECKSUMS, FileHasher.MD5);
+		for (int i = 0; i < PATHS.length; i++) {
+			byte[] checksum = new byte[ChecksumIdentifier.MAX_LENGTH];
+			checksum[0] = (byte) i;
+			// Files without a stamp too
+			results.addId(new ChecksumIdentifier(checksum), PATHS[i], i % 3 == 0 ? null : new FileStamp(i * 1000L, 1500000000000L + i, "(dev=1,ino=" + i + ")"));
+		}
+		results.addFolder("", 1500000000000L, 5, null);
+		results.addFolder("a", 1500000000001L, 3, null);
+		results.addFolder(path("a", "b"), 1500000000002L, 1, null);
+		results.addFolder(path("a", "bc"), 1500000000003L, 2, null);
+		results.addFolder("b2", 1500000000004L, 2, null);
+		results.addFolder("été", 1500000000005L, 1, null);
+		return results;
+	}
+
+	private static void write(File file, FolderInfo results, PathFilter filter) throws Exception {
+		try (Snapshot.Writer writer = new Snapshot.Writer(file, results, filter, null)) {
+			for (int entry = 0; entry < results.getEntryCount(); entry++) {
+				writer.write(results.getRelativePath(entry), results.getIdentifier(entry), results.getStamp(entry));
+			}
+			writer.setFolders(results);
+		}
+	}
+
+	private static String path(String first, String... more) {
+		File file = new File(first);
+		for (String name : more) {
+			file = new File(file, name);
+		}
+		return file.getPath();
+	}
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+// Runs plans against an agent on an ephemeral port of this host
+public class TargetAgentTest {
+
+	private static final byte[] SECRET = "secret".getBytes(StandardCharsets.UTF_8);
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File source;
+	private File target;
+	private ServerSocket server;
+	private Thread agent;
+
+	@Before
+	public void startAgent() throws Exception {
+		source = folder.newFolder("source");
+		target = folder.newFolder("target");
+		server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		TargetAgent targetAgent = new TargetAgent(target, 2, 2, 2);
+		targetAgent.setQuiet(true);
+		targetAgent.setSecret(SECRET);
+		agent = new Thread(() -> targetAgent.run(server));
+		agent.start();
+	}
+
+	@After
+	public void stopAgent() throws Exception {
+		server.close();
+		agent.join(10000);
+	}
+
+	@Test(timeout = 30000)
+	public void planIsReplayed() throws Exception {
+		// Larger than a chunk, so it is sent in several
+		byte[] large = randomBytes(TargetAgent.CHUNK_SIZE * 2 + 100);
+		Files.write(new File(source, "large").toPath(), large);
+		write(source, "small", "small");
+		new File(source, "sub").mkdir();
+		write(source, "sub/file", "file");
+		write(target, "old", "moved");
+		write(target, "deleted", "deleted");
+		new File(target, "removed").mkdir();
+
+		Operation mkdir = Operation.mkdir("sub");
+		Operation copyToSub = Operation.copy("sub/file", "sub/file", true);
+		copyToSub.addDependency(mkdir);
+		List<Operation> plan = plan(mkdir, copyToSub, Operation.copy("large", "large", true), Operation.copy("small", "small", true),
+				Operation.copy("small", "small2", true), Operation.move("old", "new"), Operation.delete("deleted"), Operation.rmdir("removed"));
+		Set<Integer> completed = new HashSet<>();
+		assertEquals(0, remote(SECRET).execute(plan, Collections.<Integer> emptySet(), false, (operation, awaited) -> completed.add(operation.getNumber())));
+
+		assertEquals(plan.size(), completed.size());
+		assertArrayEquals(large, Files.readAllBytes(new File(target, "large").toPath()));
+		assertEquals("small", read(target, "small"));
+		assertEquals("small", read(target, "small2"));
+		assertEquals("file", read(target, "sub/file"));
+		assertEquals("moved", read(target, "new"));
+		assertEquals(new File(source, "large").lastModified(), new File(target, "large").lastModified());
+		assertEquals(new HashSet<>(Arrays.asList("large", "small", "small2", "sub", "new")), new HashSet<>(Arrays.asList(target.list())));
+	}
+
+	// The operations that were completed before are not repeated, and those that may have been done tolerate it
+	@Test(timeout = 30000)
+	public void planIsResumed() throws Exception {
+		write(source, "file", "file");
+		write(target, "new", "moved");
+		write(target, "file", "partial");
+		List<Operation> plan = plan(Operation.move("old", "new"), Operation.copy("file", "file", true));
+		assertEquals(0, remote(SECRET).execute(plan, new HashSet<>(Arrays.asList(1)), true, null));
+		assertEquals("moved", read(target, "new"));
+		assertEquals("file", read(target, "file"));
+	}
+
+	@Test(timeout = 30000)
+	public void wrongSecretIsRejected() throws Exception {
+		write(source, "file", "file");
+		List<Operation> plan = plan(Operation.copy("file", "file", true));
+		try {
+			remote("other".getBytes(StandardCharsets.UTF_8)).execute(plan, Collections.<Integer> emptySet(), false, null);
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+		assertFalse(new File(target, "file").exists());
+		// The agent serves the next Step 2
+		assertEquals(0, remote(SECRET).execute(plan, Collections.<Integer> emptySet(), false, null));
+		assertEquals("file", read(target, "file"));
+	}
+
+	@Test(timeout = 30000)
+	public void pathOutsideTargetIsRefused() throws Exception {
+		write(source, "file", "file");
+		write(target, "kept", "kept");
+		for (Operation operation : Arrays.asList(Operation.copy("file", "../escaped", true), Operation.move("kept", "sub/../../escaped"),
+				Operation.copy("../source/file", "copied", false))) {
+			try {
+				remote(SECRET).execute(plan(operation), Collections.<Integer> emptySet(), false, null);
+				fail(operation.toString());
+			} catch (IOException e) {
+				// expected
+			}
+		}
+		assertFalse(new File(folder.getRoot(), "escaped").exists());
+		assertFalse(new File(target, "copied").exists());
+		assertEquals("kept", read(target, "kept"));
+	}
+
+	private RemoteTarget remote(byte[] secret) {
+		RemoteTarget remote = new RemoteTarget(new File(RemoteTarget.PREFIX + "127.0.0.1:" + server.getLocalPort()), source);
+		remote.setSecret(secret);
+		return remote;
+	}
+
+	private static List<Operation> plan(Operation... operations) {
+		for (int i = 0; i < operations.length; i++) {
+			operations[i].setNumber(i + 1);
+		}
+		return Arrays.asList(operations);
+	}
+
+	private static void write(File folder, String path, String content) throws IOException {
+		Files.write(new File(folder, path).toPath(), content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String read(File folder, String path) throws IOException {
+		return new String(Files.readAllBytes(new File(folder, path).toPath()), StandardCharsets.UTF_8);
+	}
+
+	private static byte[] randomBytes(int length) {
+		byte[] bytes = new byte[length];
+		new Random(1).nextBytes(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ThrottleTest {
+
+	@Test(timeout = 10000)
+	public void unlimitedDoesNotWait() {
+		Metrics metrics = new Metrics();
+		Throttle throttle = new Throttle(0, 0, 0, 0, metrics);
+		assertFalse(throttle.limitsBytes());
+		long start = System.nanoTime();
+		for (int i = 0; i < 1000; i++) {
+			throttle.read(1L << 30);
+			throttle.write(1L << 30);
+			throttle.operation();
+		}
+		assertTrue(millisSince(start) < 1000);
+		assertEquals(0, metrics.getItems(Metrics.THROTTLE));
+	}
+
+	// The bucket holds one second of the rate, so a burst of up to that much does not wait
+	@Test(timeout = 10000)
+	public void burstDoesNotWait() {
+		Metrics metrics = new Metrics();
+		Throttle throttle = new Throttle(0, 0, 0, 100, metrics);
+		long start = System.nanoTime();
+		for (int i = 0; i < 100; i++) {
+			throttle.operation();
+		}
+		assertTrue(millisSince(start) < 500);
+		assertEquals(0, metrics.getItems(Metrics.THROTTLE));
+	}
+
+	// A worker that takes more than the bucket holds waits until the rate catches up with it
+	@Test(timeout = 10000)
+	public void overdraftWaits() {
+		Metrics metrics = new Metrics();
+		Throttle throttle = new Throttle(1000, 0, 0, 0, metrics);
+		assertTrue(throttle.limitsBytes());
+		long start = System.nanoTime();
+		throttle.read(1000);
+		throttle.read(500);
+		long elapsed = millisSince(start);
+		assertTrue(elapsed + " ms", elapsed >= 400 && elapsed < 3000);
+		assertEquals(1, metrics.getItems(Metrics.THROTTLE));
+	}
+
+	// Reads and writes are limited separately, and bytes read count against the limit of all bytes
+	@Test(timeout = 10000)
+	public void readsAndWritesAreLimitedSeparately() {
+		Throttle throttle = new Throttle(0, 0, 1000, 0, null);
+		assertTrue(throttle.limitsBytes());
+		long start = System.nanoTime();
+		throttle.read(100000);
+		assertTrue(millisSince(start) < 500);
+		throttle.write(1000);
+		throttle.write(500);
+		long elapsed = millisSince(start);
+		assertTrue(elapsed + " ms", elapsed >= 400 && elapsed < 3000);
+	}
+
+	private static long millisSince(long start) {
+		return (System.nanoTime() - start) / 1000000;
+	}
+}
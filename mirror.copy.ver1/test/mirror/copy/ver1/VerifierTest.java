@@ -0,0 +1,171 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import mirror.copy.ver1.Copier.FolderInfo;
+
+public class VerifierTest {
+
+	private static final long TIME = 1500000000000L;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void sameTreeDoesNotDiverge() throws Exception {
+		File source = source();
+		File target = copy(source);
+		Verifier verifier = verifier(Copier.CHECKSUMS, source, target);
+		verifier.setSample(1);
+		assertTrue(verifier.verify().isEmpty());
+		assertEquals(6, verifier.getChecksummedCount());
+	}
+
+	@Test
+	public void metadataDivergesAtOnce() throws Exception {
+		File source = source();
+		File target = copy(source);
+		write(target, "missing", null, 0);
+		write(target, "extra", "extra", TIME);
+		write(target, path("sub", "size"), "longer size", TIME);
+		Map<String, String> expected = new TreeMap<>();
+		expected.put("missing", Divergence.MISSING);
+		expected.put("extra", Divergence.EXTRA);
+		expected.put(path("sub", "size"), Divergence.SIZE);
+		assertEquals(expected, divergences(verifier(Copier.CHECKSUMS, source, target)));
+	}
+
+	// A file whose modification time differs is checksummed and diverges only if its content differs
+	@Test
+	public void modifiedFilesAreChecksummed() throws Exception {
+		File source = source();
+		File target = copy(source);
+		write(target, "touched", "touched", TIME + 10000);
+		write(target, path("sub", "changed"), "CHANGED", TIME + 10000);
+		Verifier verifier = verifier(Copier.CHECKSUMS, source, target);
+		Map<String, String> expected = new TreeMap<>();
+		expected.put(path("sub", "changed"), Divergence.CONTENT);
+		assertEquals(expected, divergences(verifier));
+		assertEquals(2, verifier.getChecksummedCount());
+		assertEquals(0, verifier.getUnverifiedCount());
+	}
+
+	// Without checksums in the snapshot, a file whose modification time differs diverges
+	@Test
+	public void modifiedFilesWithoutChecksumsDiverge() throws Exception {
+		File source = source();
+		File target = copy(source);
+		write(target, "touched", "touched", TIME + 10000);
+		Verifier verifier = verifier(Copier.DATE_AND_SIZE, source, target);
+		verifier.setSample(1);
+		Map<String, String> expected = new TreeMap<>();
+		expected.put("touched", Divergence.MODIFIED);
+		assertEquals(expected, divergences(verifier));
+		assertEquals(0, verifier.getChecksummedCount());
+	}
+
+	// A file whose content differs but whose metadata match is found by the sample only
+	@Test
+	public void sampleFindsContentWithSameMetadata() throws Exception {
+		File source = source();
+		File target = copy(source);
+		write(target, "hidden", "HIDDEN", TIME);
+		Verifier verifier = verifier(Copier.CHECKSUMS, source, target);
+		assertTrue(verifier.verify().isEmpty());
+		assertEquals(0, verifier.getChecksummedCount());
+		verifier = verifier(Copier.CHECKSUMS, source, target);
+		verifier.setSample(1);
+		Map<String, String> expected = new TreeMap<>();
+		expected.put("hidden", Divergence.CONTENT);
+		assertEquals(expected, divergences(verifier));
+	}
+
+	@Test
+	public void failFastStopsAtFirstDivergence() throws Exception {
+		File source = source();
+		File target = copy(source);
+		write(target, "missing", null, 0);
+		write(target, "extra", "extra", TIME);
+		Verifier verifier = verifier(Copier.CHECKSUMS, source, target);
+		verifier.setFailFast(true);
+		assertEquals(1, verifier.verify().size());
+	}
+
+	private File source() throws Exception {
+		File source = folder.newFolder("source");
+		write(source, "missing", "missing", TIME);
+		write(source, "touched", "touched", TIME);
+		write(source, "hidden", "hidden", TIME);
+		write(source, path("sub", "size"), "size", TIME);
+		write(source, path("sub", "changed"), "changed", TIME);
+		write(source, path("sub", "same"), "same", TIME);
+		return source;
+	}
+
+	private File copy(File source) throws Exception {
+		File target = folder.newFolder("target");
+		for (String path : new String[] { "missing", "touched", "hidden", path("sub", "size"), path("sub", "changed"), path("sub", "same") }) {
+			write(target, path, new String(Files.readAllBytes(new File(source, path).toPath()), StandardCharsets.UTF_8), TIME);
+		}
+		return target;
+	}
+
+	// Writes the file with the modification time, or deletes it if content is null
+	private static void write(File root, String path, String content, long time) throws Exception {
+		File file = new File(root, path);
+		if (content == null) {
+			assertTrue(file.delete());
+			return;
+		}
+		file.getParentFile().mkdirs();
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+		assertTrue(file.setLastModified(time));
+	}
+
+	private Verifier verifier(String method, File source, File target) throws Exception {
+		SyncSession session = new SyncSession(new File(folder.getRoot(), "saved.checksum"));
+		session.setThreads(1);
+		FolderInfo expected = new FolderInfo(source, method, FileHasher.MD5);
+		session.scan(source, expected, false);
+		Verifier verifier = new Verifier(session, expected, target, 2);
+		verifier.setQuiet(true);
+		return verifier;
+	}
+
+	private static Map<String, String> divergences(Verifier verifier) throws Exception {
+		List<Divergence> divergences = verifier.verify();
+		Map<String, String> kinds = new TreeMap<>();
+		for (Divergence divergence : divergences) {
+			kinds.put(divergence.getPath(), divergence.getKind());
+		}
+		assertEquals(divergences.size(), kinds.size());
+		return kinds;
+	}
+
+	private static String path(String first, String... more) {
+		File file = new File(first);
+		for (String name : more) {
+			file = new File(file, name);
+		}
+		return file.getPath();
+	}
+}
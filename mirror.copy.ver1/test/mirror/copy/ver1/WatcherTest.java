@@ -0,0 +1,155 @@
+/**
+ * Copyright (c) 2017 Aleksandr Sviridenko.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package mirror.copy.ver1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import mirror.copy.ver1.Copier.FolderInfo;
+
+public class WatcherTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Thread watcher = null;
+	private final AtomicReference<Throwable> error = new AtomicReference<>();
+
+	@After
+	public void stop() throws Exception {
+		if (watcher != null) {
+			watcher.interrupt();
+			watcher.join(30000);
+			assertFalse(watcher.isAlive());
+		}
+	}
+
+	// Batches of changes are replayed as they happen, and the snapshot is saved after each of them
+	@Test(timeout = 60000)
+	public void changesAreReplayed() throws Exception {
+		File source = folder.newFolder("source");
+		File target = folder.newFolder("target");
+		for (File root : new File[] { source, target }) {
+			write(root, "kept", "kept");
+			write(root, "renamed", "renamed");
+			write(root, "deleted", "deleted");
+			write(root, "modified", "modified");
+			write(root, path("sub", "file"), "file");
+		}
+		SyncSession session = session(source, target);
+
+		write(source, "added", "added");
+		write(source, "modified", "MODIFIED!");
+		write(source, "ignored.log", "log");
+		Files.move(new File(source, "renamed").toPath(), new File(source, "moved").toPath());
+		Files.delete(new File(source, "deleted").toPath());
+		awaitSame(source, target);
+		assertFalse(new File(target, "ignored.log").exists());
+
+		// A new folder and its files, in the next batch
+		write(source, path("new", "deep", "file"), "deep");
+		Files.move(new File(source, "sub").toPath(), new File(source, "moved sub").toPath());
+		awaitSame(source, target);
+
+		watcher.interrupt();
+		watcher.join(30000);
+		assertFalse(watcher.isAlive());
+		watcher = null;
+		// The snapshot has the state that the target folder mirrors
+		assertEquals(0, session.verify(Collections.singletonList(target)).getReturnCode());
+	}
+
+	private SyncSession session(File source, File target) throws Exception {
+		SyncSession session = new SyncSession(new File(folder.getRoot(), "saved.checksum"));
+		session.setQuiet(true);
+		session.setFilterRules(Arrays.asList("- *.log"));
+		session.step1(source);
+		// Made before watching, found by the scan on start
+		write(source, "early", "early");
+		watcher = new Thread(() -> {
+			try {
+				session.watch(Collections.singletonList(target), 3600000);
+			} catch (InterruptedException e) {
+				// stopped
+			} catch (Throwable e) {
+				error.set(e);
+			}
+		});
+		watcher.setDaemon(true);
+		watcher.start();
+		return session;
+	}
+
+	// Waits until the target folder has the files of the source folder, except the excluded ones, and the snapshot
+	// has their paths
+	private void awaitSame(File source, File target) throws Exception {
+		Map<String, String> expected = tree(source);
+		expected.remove("ignored.log");
+		while (!expected.equals(tree(target)) || !expected.keySet().equals(snapshotPaths())) {
+			assertTrue(String.valueOf(error.get()), watcher.isAlive());
+			Thread.sleep(100);
+		}
+	}
+
+	private Set<String> snapshotPaths() throws Exception {
+		FolderInfo saved = Snapshot.load(new File(folder.getRoot(), "saved.checksum"), new Metrics());
+		Set<String> paths = new TreeSet<>();
+		for (int entry = 0; entry < saved.getEntryCount(); entry++) {
+			paths.add(saved.getRelativePath(entry));
+		}
+		return paths;
+	}
+
+	private static Map<String, String> tree(File root) throws IOException {
+		Map<String, String> files = new TreeMap<>();
+		Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				files.put(root.toPath().relativize(file).toString(), new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return files;
+	}
+
+	private static void write(File root, String path, String content) throws Exception {
+		File file = new File(root, path);
+		file.getParentFile().mkdirs();
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String path(String first, String... more) {
+		File file = new File(first);
+		for (String name : more) {
+			file = new File(file, name);
+		}
+		return file.getPath();
+	}
+}